@@ -0,0 +1,106 @@
+package com.willwinder.rtp;
+
+import com.willwinder.rtp.util.*;
+
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Headless test of clock slave mode: a VirtualClockSource drives the MidiClockPll through the normal input path,
+ * and the PLL's tempo and position are compared with the source's. Before that the transport is checked with exact
+ * timestamps, and the test exits with 1 if it fails.
+ *
+ * Usage: ClockTest [bpm] [jitter microseconds] [seconds]
+ */
+public class ClockTest {
+    public static void main(String[] args) throws Exception {
+        double bpm = args.length > 0 ? Double.parseDouble(args[0]) : 120;
+        long jitterNanos = (args.length > 1 ? Long.parseLong(args[1]) : 2000) * 1000;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 10;
+        if (!checkTransport()) {
+            System.exit(1);
+        }
+
+        MonotonicClock clock = new MonotonicClock();
+        MidiClockPll midiClock = new MidiClockPll();
+        MidiInputManager midiInputs = new MidiInputManager(
+                new NoteEventDispatcher(new NoteEventRing(1024)), new MidiRouter(RoutingGraph.identity()), midiClock,
+                new PipelineLatency(), clock);
+
+        VirtualTransmitter transmitter = new VirtualTransmitter();
+        midiInputs.attach("Virtual Clock", transmitter);
+        VirtualClockSource source = new VirtualClockSource(transmitter, bpm, jitterNanos);
+
+        // Let the PLL lock before starting the transport.
+        source.startClock();
+        Thread.sleep(2000);
+        source.start();
+        while (source.getTransportTickNanos() == 0) {
+            Thread.sleep(1);
+        }
+        long startNanos = clock.fromSystemNanos(source.getTransportTickNanos());
+
+        LatencyHistogram positionError = new LatencyHistogram("position error");
+        long end = startNanos + seconds * 1_000_000_000L;
+        long now;
+        while ((now = clock.nowNanos()) < end) {
+            double expected = (now - startNanos) / 60e9 * bpm;
+            double actual = midiClock.getPositionQuarterNotes(now);
+            positionError.record((long) (Math.abs(expected - actual) * 60e9 / bpm));
+            Thread.sleep(16);
+        }
+        source.stop();
+
+        System.out.printf("source bpm=%.2f, pll bpm=%.3f, tick jitter=%.0fus%n",
+                bpm, midiClock.getBpm(), midiClock.getJitterNanos() / 1000);
+        System.out.printf("position error: p50=%.2fms p99=%.2fms max=%.2fms%n",
+                positionError.getValueAtPercentile(50) / 1e6, positionError.getValueAtPercentile(99) / 1e6,
+                positionError.getMax() / 1e6);
+        System.exit(0);
+    }
+
+    /**
+     * Send START, CLOCK and STOP straight to a PLL at exactly 120 BPM, with a second input sending its own clock at
+     * the same time.
+     * @return true if the position follows the ticks, stays at the last tick after STOP, and only the first input
+     *         was followed until it went quiet.
+     */
+    private static boolean checkTransport() {
+        MidiClockPll pll = new MidiClockPll();
+        long period = (long) (60e9 / (120 * MidiClockPll.PPQN));
+        long nanos = 1_000_000_000L;
+        boolean ok = true;
+
+        // The clock runs while the transport is stopped, so the PLL locks before START.
+        for (int i = 0; i <= MidiClockPll.PPQN; i++, nanos += period) {
+            pll.message(1, ShortMessage.TIMING_CLOCK, 0, 0, nanos);
+            pll.message(2, ShortMessage.TIMING_CLOCK, 0, 0, nanos + period / 3);
+        }
+        ok &= check("locked at 120 BPM", pll.isLocked() && Math.abs(pll.getBpm() - 120) < 0.01);
+        ok &= check("stopped at 0", pll.getPositionTicks(nanos) == 0);
+
+        pll.message(1, ShortMessage.START, 0, 0, nanos - period / 2);
+        ok &= check("started at 0", pll.isRunning() && pll.getPositionTicks(nanos - period / 4) == 0);
+        for (int i = 0; i < 2 * MidiClockPll.PPQN; i++, nanos += period) {
+            pll.message(1, ShortMessage.TIMING_CLOCK, 0, 0, nanos);
+            pll.message(2, ShortMessage.STOP, 0, 0, nanos + period / 3);
+        }
+        long lastTickNanos = nanos - period;
+        ok &= check("running at tick 47.5", Math.abs(pll.getPositionTicks(lastTickNanos + period / 2) - 47.5) < 0.01);
+
+        pll.message(1, ShortMessage.STOP, 0, 0, lastTickNanos + period / 2);
+        ok &= check("stopped at tick 47", !pll.isRunning() && pll.getPositionTicks(lastTickNanos + 10 * period) == 47);
+
+        // The first input goes quiet, the second takes over and the loop starts again.
+        nanos = lastTickNanos + 2_000_000_000L;
+        pll.message(2, ShortMessage.START, 0, 0, nanos);
+        pll.message(2, ShortMessage.TIMING_CLOCK, 0, 0, nanos + period);
+        ok &= check("second input took over",
+                pll.isRunning() && !pll.isLocked() && pll.getPositionTicks(nanos + period) == 0);
+        return ok;
+    }
+
+    private static boolean check(String name, boolean passed) {
+        System.out.println(name + ": " + (passed ? "ok" : "FAILED"));
+        return passed;
+    }
+}
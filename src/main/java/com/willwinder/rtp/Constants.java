@@ -3,4 +3,7 @@ package com.willwinder.rtp;
 public class Constants {
     public static final Integer DEFAULT_WIDTH = 640;
     public static final Integer DEFAULT_HEIGHT = 480;
+
+    // Notes played on MIDI input device N are put on track PLAYER_TRACK + N - 1.
+    public static final int PLAYER_TRACK = 99;
 }
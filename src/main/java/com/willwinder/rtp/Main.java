@@ -1,24 +1,32 @@
 package com.willwinder.rtp;
 
-import com.google.common.eventbus.EventBus;
-
 import com.willwinder.rtp.controller.MainController;
 import com.willwinder.rtp.graphics.KeyPointCache;
+import com.willwinder.rtp.model.BitSetKeyboardState;
 import com.willwinder.rtp.model.MainModel;
 import com.willwinder.rtp.model.TimelineNotes;
 import com.willwinder.rtp.model.params.*;
-import com.willwinder.rtp.util.KeyboardReceiver;
+import com.willwinder.rtp.util.MidiClockPll;
+import com.willwinder.rtp.util.MidiInputManager;
+import com.willwinder.rtp.util.MidiOutScheduler;
+import com.willwinder.rtp.util.MonotonicClock;
+import com.willwinder.rtp.util.NoteEventDispatcher;
+import com.willwinder.rtp.util.NoteEventRing;
+import com.willwinder.rtp.util.PipelineLatency;
+import com.willwinder.rtp.util.StressPattern;
 import com.willwinder.rtp.view.AnimateRenderables;
+import com.willwinder.rtp.view.LatencyCalibration;
 import com.willwinder.rtp.view.MainView;
+import com.willwinder.rtp.view.Metronome;
 
 import com.willwinder.rtp.view.NoiseMaker;
+import com.willwinder.rtp.view.SequencePlayer;
 import javafx.application.Application;
 import javafx.scene.Scene;
 import javafx.scene.paint.Color;
 import javafx.stage.Stage;
 
 import javax.sound.midi.MidiSystem;
-import javax.sound.midi.MidiUnavailableException;
 import java.io.File;
 import java.time.Duration;
 
@@ -31,13 +39,12 @@ import static com.willwinder.rtp.Constants.DEFAULT_WIDTH;
 public class Main extends Application {
 
     @Override
-    public void start(Stage stage) throws MidiUnavailableException {
+    public void start(Stage stage) {
         AllParams allParams = initializeAllParams();
 
-        // Setup the MIDI keyboard
-        MidiSystem
-                .getTransmitter()
-                .setReceiver(allParams.keyboardReceiver);
+        // Connect the MIDI keyboards
+        allParams.midiInputs.start();
+        allParams.midiOutParams.scheduler.start();
 
         String javaVersion = System.getProperty("java.version");
         String javafxVersion = System.getProperty("javafx.version");
@@ -51,6 +58,7 @@ public class Main extends Application {
         mainPane.openMidiFileEvent.set(mainController.openMidiFileActionHandler);
         mainPane.playMidiFileEvent.set(mainController.playMidiFileActionHandler);
         mainPane.pauseMidiFileEvent.set(mainController.pauseMidiFileActionHandler);
+        mainPane.exportMidiFileEvent.set(mainController.exportMidiFileActionHandler);
 
         Scene scene = new Scene(mainPane, DEFAULT_WIDTH, DEFAULT_HEIGHT, Color.BLACK);
         stage.setTitle("RealTime Piano");
@@ -76,9 +84,35 @@ public class Main extends Application {
      * // TODO: This should involve saving/loading parameters from a file somehow.
      */
     private AllParams initializeAllParams() {
-        NoiseMaker nm = new NoiseMaker(NoiseMaker.Mode.JFUGUE);
-        EventBus eventBus = new EventBus();
-        KeyboardReceiver receiver = new KeyboardReceiver(eventBus, nm);
+        MonotonicClock clock = new MonotonicClock();
+        PipelineLatency pipelineLatency = new PipelineLatency();
+        NoiseMaker nm = new NoiseMaker(NoiseMaker.Mode.JFUGUE, pipelineLatency);
+        NoteEventDispatcher noteEventDispatcher = new NoteEventDispatcher(new NoteEventRing(1024));
+        RoutingParams routingParams = new RoutingParams(
+                0,
+                0,
+                0,
+                0,
+                0,
+                true,
+                true);
+        MidiClockPll midiClock = new MidiClockPll();
+        MidiInputManager midiInputs = new MidiInputManager(noteEventDispatcher, routingParams.router, midiClock, pipelineLatency, clock);
+        BitSetKeyboardState keyboardState = new BitSetKeyboardState();
+        MidiOutScheduler midiOut = new MidiOutScheduler(clock);
+        pipelineLatency.register(midiOut.jitter);
+        MidiOutParams midiOutParams = new MidiOutParams(
+                midiOut,
+                MidiOutScheduler.NO_DEVICE,
+                50);
+
+        // The audio only enqueues so it is called directly, the synth has its own thread. The key cache gets its own
+        // thread, the timeline and keyboard view subscribe on the FX thread.
+        noteEventDispatcher.subscribe("audio", NoteEventDispatcher.Delivery.SYNCHRONOUS, nm::noteEvent);
+        noteEventDispatcher.subscribe("keyboard-state", NoteEventDispatcher.Delivery.WORKER, event -> {
+            keyboardState.noteEvent(event);
+            pipelineLatency.record(PipelineLatency.Stage.MODEL_UPDATE, event.receiveNanos);
+        });
 
         KeyPointCacheParams keyPointCacheParams = new KeyPointCacheParams(
                 50.0,
@@ -95,8 +129,8 @@ public class Main extends Application {
 
         KeyPointCache keyPointCache = new KeyPointCache(keyPointCacheParams);
 
-        var playerNotes = new TimelineNotes();
-        eventBus.register(playerNotes);
+        // Live notes are evicted once they scroll off the timeline, or past this many.
+        var playerNotes = new TimelineNotes(10000);
 
         TimelineParams timelineParams = new TimelineParams(
                 playerNotes,
@@ -117,26 +151,71 @@ public class Main extends Application {
 
         ControllerParams controllerParams = new ControllerParams(
                 ControllerParams.Mode.FOLLOW,
-                ControllerParams.Hands.BOTH
+                ControllerParams.Hands.BOTH,
+                false,
+                new SequencePlayer(nm, bpmParams.tempoMap),
+                bpmParams
         );
 
         AnimationParams animationParams = new AnimationParams(
                 true,
                 true,
-                true
+                true,
+                false,
+                false
         );
 
+        StressParams stressParams = new StressParams(
+                StressPattern.CHORDS,
+                1000,
+                10);
+
+        AudioParams audioParams = new AudioParams(
+                nm,
+                48000,
+                128,
+                32,
+                "",
+                256);
+
+        CalibrationParams calibrationParams = new CalibrationParams(
+                new LatencyCalibration(nm),
+                midiOut,
+                0,
+                0);
+
+        Metronome metronome = new Metronome(clock, nm);
+        nm.setMixSource(metronome);
+        pipelineLatency.register(metronome.drift);
+        MetronomeParams metronomeParams = new MetronomeParams(
+                metronome,
+                bpmParams,
+                calibrationParams,
+                false,
+                1,
+                "",
+                50);
+
         AllParams params = new AllParams(
                 keyPointCacheParams,
                 keyPointCache,
                 timelineParams,
                 bpmParams,
                 staffParams,
-                eventBus,
-                receiver,
-                receiver,
+                noteEventDispatcher,
+                keyboardState,
+                midiInputs,
+                midiClock,
+                routingParams,
+                midiOutParams,
+                audioParams,
+                calibrationParams,
+                metronomeParams,
                 controllerParams,
-                animationParams);
+                animationParams,
+                stressParams,
+                pipelineLatency,
+                clock);
 
         return params;
     }
@@ -0,0 +1,94 @@
+package com.willwinder.rtp;
+
+import com.willwinder.rtp.model.NotePairing;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Headless test of NotePairing: random opens and closes over a few sources, channels and keys go through the generic
+ * pairing and through Ints, and both have to pair the same notes as a map of stacks. Exits with 1 if they don't.
+ *
+ * Usage: NotePairingTest [operations] [seed]
+ */
+public class NotePairingTest {
+    private static final int SOURCES = 3;
+
+    public static void main(String[] args) {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        Random random = new Random(seed);
+
+        NotePairing<String> generic = new NotePairing<>();
+        NotePairing.Ints ints = new NotePairing.Ints();
+        Map<Integer, ArrayDeque<Integer>> expected = new HashMap<>();
+        int mismatches = 0;
+        int next = 0;
+
+        for (int op = 0; op < operations; op++) {
+            int source = random.nextInt(SOURCES);
+            // Few keys, so keys are often struck again before they are released.
+            int channel = random.nextInt(2);
+            int key = 60 + random.nextInt(4);
+            int id = (source * 16 + channel) * 128 + key;
+
+            if (random.nextInt(100) < 50) {
+                int note = next++;
+                generic.open(source, channel, key, Integer.toString(note));
+                ints.open(source, channel, key, note);
+                expected.computeIfAbsent(id, k -> new ArrayDeque<>()).push(note);
+            } else if (random.nextInt(1000) == 0) {
+                List<String> closedGeneric = new ArrayList<>();
+                List<Integer> closedInts = new ArrayList<>();
+                generic.closeAll(source, closedGeneric::add);
+                ints.closeAll(source, closedInts::add);
+                int count = 0;
+                for (Map.Entry<Integer, ArrayDeque<Integer>> e : expected.entrySet()) {
+                    if (e.getKey() / (16 * 128) == source) {
+                        count += e.getValue().size();
+                        e.getValue().clear();
+                    }
+                }
+                if (closedGeneric.size() != count || closedInts.size() != count
+                        || !closedGeneric.equals(toStrings(closedInts))) {
+                    mismatches++;
+                }
+            } else {
+                ArrayDeque<Integer> stack = expected.get(id);
+                Integer want = stack == null ? null : stack.poll();
+                String gotGeneric = generic.close(source, channel, key);
+                int gotInt = ints.close(source, channel, key);
+                boolean ok = want == null
+                        ? gotGeneric == null && gotInt == NotePairing.Ints.NONE
+                        : want.toString().equals(gotGeneric) && want == gotInt;
+                if (!ok) {
+                    mismatches++;
+                }
+            }
+
+            int open = expected.values().stream().mapToInt(ArrayDeque::size).sum();
+            if (op % 1000 == 0 && (generic.getOpenCount() != open || ints.getOpenCount() != open)) {
+                mismatches++;
+            }
+        }
+
+        generic.clear();
+        ints.clear();
+        boolean ok = mismatches == 0 && generic.getOpenCount() == 0 && ints.getOpenCount() == 0
+                && generic.close(0, 0, 60) == null && ints.close(0, 0, 60) == NotePairing.Ints.NONE;
+        System.out.println(operations + " operations, " + mismatches + " mismatches" + (ok ? " ok" : " FAILED"));
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static List<String> toStrings(List<Integer> notes) {
+        List<String> strings = new ArrayList<>();
+        for (int note : notes) {
+            strings.add(Integer.toString(note));
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,95 @@
+package com.willwinder.rtp;
+
+import com.willwinder.rtp.model.TempoMap;
+import com.willwinder.rtp.util.PipelineLatency;
+import com.willwinder.rtp.view.AudioBackend;
+import com.willwinder.rtp.view.NoiseMaker;
+import com.willwinder.rtp.view.SequencePlayer;
+
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import java.io.ByteArrayInputStream;
+
+/**
+ * Headless test of listen mode: a MIDI file whose note off is a running status NOTE_ON with velocity 0 is played
+ * through the SequencePlayer, and a recording backend checks the note is released. Exits with 1 if it fails.
+ *
+ * Usage: SequencerTest
+ */
+public class SequencerTest {
+    private static final int KEY = 60;
+
+    /**
+     * Keeps track of which keys are sounding.
+     */
+    private static class RecordingBackend implements AudioBackend {
+        private final boolean[] sounding = new boolean[128];
+        private int noteOns = 0;
+        private int noteOffs = 0;
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public synchronized void noteOn(int channel, int key, int velocity) {
+            noteOns++;
+            sounding[key] = true;
+        }
+
+        @Override
+        public synchronized void noteOff(int channel, int key, int velocity) {
+            noteOffs++;
+            sounding[key] = false;
+        }
+
+        @Override
+        public synchronized void allNotesOff() {
+            for (int key = 0; key < sounding.length; key++) {
+                sounding[key] = false;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Format 0, one track, 96 ticks per quarter. The second event has no status byte, it reuses the NOTE_ON.
+        byte[] song = {
+                'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0, 96,
+                'M', 'T', 'r', 'k', 0, 0, 0, 11,
+                0, (byte) 0x90, KEY, 100,
+                96, KEY, 0,
+                0, (byte) 0xFF, 0x2F, 0
+        };
+        Sequence sequence = MidiSystem.getSequence(new ByteArrayInputStream(song));
+
+        RecordingBackend backend = new RecordingBackend();
+        NoiseMaker noiseMaker = new NoiseMaker(backend, new PipelineLatency());
+        SequencePlayer player = new SequencePlayer(noiseMaker, new TempoMap(600));
+        player.load(sequence, 600);
+        if (!player.isLoaded()) {
+            System.out.println("FAILED: no sequencer");
+            System.exit(1);
+        }
+
+        player.start(0);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!player.isFinished() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Let the synth thread drain the input.
+        Thread.sleep(100);
+        player.close();
+
+        boolean ok;
+        synchronized (backend) {
+            ok = backend.noteOns == 1 && backend.noteOffs == 1 && !backend.sounding[KEY];
+            System.out.println("note ons=" + backend.noteOns + ", note offs=" + backend.noteOffs
+                    + ", still sounding=" + backend.sounding[KEY] + (ok ? " ok" : " FAILED"));
+        }
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,196 @@
+package com.willwinder.rtp;
+
+import com.willwinder.rtp.model.*;
+import com.willwinder.rtp.util.*;
+import com.willwinder.rtp.view.NoiseMaker;
+
+import javax.sound.midi.ShortMessage;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Headless stress test of the note pipeline, for soak testing on machines without a display or a keyboard.
+ *
+ * Usage: StressTest [pattern] [messages per second] [seconds] [--synth]
+ *
+ * Without a display there are no frames, so a probe thread runs the renderers' queries at 60Hz and its time is
+ * reported as the frame time: the live notes and a song made of the same pattern over the timeline and each staff
+ * row, and both density pyramids over a zoomed out timeline. Exits with 1 if any events were dropped.
+ */
+public class StressTest {
+    // Live notes are kept like the app's, a six second timeline plus TimelineParams' margin, or at most MAX_NOTES.
+    private static final long RETENTION_MS = 7000;
+    private static final int MAX_NOTES = 10000;
+    // The app's default view: a six second timeline on a canvas about 800 pixels high, and a two row grand staff.
+    private static final long TIMELINE_MS = 6000;
+    private static final double TIMELINE_PIXELS = 800;
+    private static final int STAFF_ROWS = 2;
+    // A zoomed out timeline, drawn from the density pyramids.
+    private static final long ZOOMED_OUT_MS = 120_000;
+
+    // Where the probe leaves its results, so the queries can't be optimized away.
+    private static volatile double probeSink;
+
+    public static void main(String[] args) throws Exception {
+        StressPattern pattern = args.length > 0 ? StressPattern.valueOf(args[0]) : StressPattern.RANDOM;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        Duration duration = Duration.ofSeconds(args.length > 2 ? Long.parseLong(args[2]) : 10);
+        boolean synth = args.length > 3 && args[3].equals("--synth");
+
+        MonotonicClock clock = new MonotonicClock();
+        PipelineLatency pipelineLatency = new PipelineLatency();
+        NoteEventDispatcher noteEventDispatcher = new NoteEventDispatcher(new NoteEventRing(1024));
+        MidiInputManager midiInputs = new MidiInputManager(
+                noteEventDispatcher, new MidiRouter(RoutingGraph.identity()), new MidiClockPll(), pipelineLatency, clock);
+        BitSetKeyboardState keyboardState = new BitSetKeyboardState();
+        TimelineNotes playerNotes = new TimelineNotes(MAX_NOTES);
+        playerNotes.setRetentionMs(RETENTION_MS);
+
+        // Same consumers as the app, except the FX thread ones become workers.
+        NoiseMaker nm = null;
+        if (synth) {
+            nm = new NoiseMaker(NoiseMaker.Mode.JFUGUE, pipelineLatency);
+            noteEventDispatcher.subscribe("audio", NoteEventDispatcher.Delivery.SYNCHRONOUS, nm::noteEvent);
+        }
+        noteEventDispatcher.subscribe("keyboard-state", NoteEventDispatcher.Delivery.WORKER, event -> {
+            keyboardState.noteEvent(event);
+            pipelineLatency.record(PipelineLatency.Stage.MODEL_UPDATE, event.receiveNanos);
+        });
+        noteEventDispatcher.subscribe("timeline", NoteEventDispatcher.Delivery.WORKER, playerNotes::noteEvent);
+
+        NoteStore song = buildSong(pattern, rate, duration);
+        DensityPyramid songDensity = DensityPyramid.of(song);
+        Thread probe = new Thread(() -> frameProbe(keyboardState, playerNotes, song, songDensity, clock, pipelineLatency),
+                "StressTest-frames");
+        probe.setDaemon(true);
+        probe.start();
+
+        midiInputs.start();
+        StressGenerator.Report report = new StressGenerator(midiInputs, noteEventDispatcher, pipelineLatency)
+                .run(pattern, rate, duration, 0);
+
+        System.out.println(report);
+        for (PipelineLatency.Stage s : PipelineLatency.Stage.values()) {
+            LatencyHistogram h = pipelineLatency.get(s);
+            System.out.printf("%s: count=%d p50=%dus p99=%dus max=%dus%n", h.name, h.getCount(),
+                    h.getValueAtPercentile(50) / 1000, h.getValueAtPercentile(99) / 1000, h.getMax() / 1000);
+        }
+        for (NoteEventDispatcher.Subscription s : noteEventDispatcher.getSubscriptions()) {
+            System.out.println(s);
+        }
+        if (nm != null) {
+            System.out.printf("synth: queue depth=%d, dropped=%d, service time p50=%dus p99=%dus max=%dus%n",
+                    nm.getQueueDepth(), nm.getDroppedCount(), nm.serviceTime.getValueAtPercentile(50) / 1000,
+                    nm.serviceTime.getValueAtPercentile(99) / 1000, nm.serviceTime.getMax() / 1000);
+        }
+
+        boolean dropped = report.dropped != 0 || (nm != null && nm.getDroppedCount() != 0);
+        System.exit(dropped ? 1 : 0);
+    }
+
+    /**
+     * A song of the pattern's messages at the test's rate, paired like MainController pairs a MIDI file's.
+     */
+    private static NoteStore buildSong(StressPattern pattern, int rate, Duration duration) {
+        TempoMap tempo = new TempoMap(120);
+        NoteStore.Builder builder = new NoteStore.Builder(tempo);
+        NotePairing.Ints open = new NotePairing.Ints();
+        Random random = new Random(1);
+        long messages = rate * duration.toSeconds();
+        long tick = 0;
+        for (long i = 0; i < messages; i++) {
+            int message = pattern.message(i, random);
+            if (message < 0) continue;
+
+            tick = (long) (i * 1000.0 / rate / tempo.getMsPerTick());
+            int status = message >> 16 & 0xF0;
+            int key = message >> 8 & 0x7F;
+            int velocity = message & 0x7F;
+            if (status == ShortMessage.NOTE_ON && velocity > 0) {
+                open.open(0, 0, key, builder.add(tick, -1, key, velocity, 0, 0));
+            } else if (status == ShortMessage.NOTE_ON || status == ShortMessage.NOTE_OFF) {
+                int started = open.close(0, 0, key);
+                if (started != NotePairing.Ints.NONE) {
+                    builder.setEnd(started, tick);
+                }
+            }
+        }
+        long songEnd = tick;
+        open.closeAll(0, started -> builder.setEnd(started, songEnd));
+        return builder.build();
+    }
+
+    private static void frameProbe(BitSetKeyboardState keyboardState, TimelineNotes playerNotes, NoteStore song,
+                                   DensityPyramid songDensity, MonotonicClock clock, PipelineLatency latency) {
+        long[] mask = new long[2];
+        List<TimelineNotes.TimelineNote> visibleNotes = new ArrayList<>();
+        NoteStore.Cursor songNotes = new NoteStore.Cursor();
+        long songStartMs = clock.nowMs();
+        while (true) {
+            long start = System.nanoTime();
+            long nowMs = clock.nowMs();
+            long songMs = nowMs - songStartMs;
+            double sum = 0;
+            keyboardState.snapshot(mask);
+
+            // TimelineSparks, then each GrandStaff row, from one snapshot as a frame does.
+            TimelineNotes.Snapshot snapshot = playerNotes.snapshot();
+            snapshot.query(nowMs - TIMELINE_MS, Long.MAX_VALUE, visibleNotes);
+            for (var note : visibleNotes) {
+                if (note.receiveNanos != 0) {
+                    latency.record(PipelineLatency.Stage.FRAME_DRAWN, note.receiveNanos);
+                    note.receiveNanos = 0;
+                }
+                sum += note.endTimeMs - note.startTimeMs;
+            }
+            sum += visit(song.overlapping(songMs, songMs + TIMELINE_MS, songNotes));
+            for (int row = 0; row < STAFF_ROWS; row++) {
+                long fromMs = nowMs + row * TIMELINE_MS;
+                snapshot.query(fromMs, fromMs + TIMELINE_MS, visibleNotes);
+                sum += visibleNotes.size();
+                fromMs = songMs + row * TIMELINE_MS;
+                sum += visit(song.overlapping(fromMs, fromMs + TIMELINE_MS, songNotes));
+            }
+
+            // Zoomed out, TimelineSparks and SongMinimap draw the pyramids instead.
+            sum += visit(playerNotes.getDensity(), 1, nowMs - ZOOMED_OUT_MS, nowMs);
+            sum += visit(songDensity, song.getTempoMap().getMsPerTick(), songMs, songMs + ZOOMED_OUT_MS);
+            probeSink = sum;
+
+            latency.frameTime.record(System.nanoTime() - start);
+            try {
+                Thread.sleep(16);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static double visit(NoteStore.Cursor note) {
+        double sum = 0;
+        while (note.next()) {
+            sum += note.endMs() - note.startMs() + note.key();
+        }
+        return sum;
+    }
+
+    /**
+     * Read every bin TimelineSparks would draw for a time range, at the level it would pick.
+     * @param msPerUnit milliseconds per unit of the pyramid's time.
+     */
+    private static double visit(DensityPyramid density, double msPerUnit, long fromMs, long toMs) {
+        int level = density.levelFor(ZOOMED_OUT_MS / TIMELINE_PIXELS / msPerUnit, (toMs - fromMs) / msPerUnit);
+        long binWidth = density.getBinWidth(level);
+        long firstBin = Math.floorDiv((long) (fromMs / msPerUnit), binWidth);
+        long lastBin = Math.floorDiv((long) (toMs / msPerUnit), binWidth);
+        double sum = 0;
+        for (int key = 0; key < 128; key++) {
+            for (long bin = firstBin; bin <= lastBin; bin++) {
+                sum += density.get(level, key, bin);
+            }
+        }
+        return sum;
+    }
+}
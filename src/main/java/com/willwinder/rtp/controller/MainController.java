@@ -1,24 +1,39 @@
 package com.willwinder.rtp.controller;
 
 import com.willwinder.rtp.graphics.KeyPointCache;
+import com.willwinder.rtp.model.BeatMap;
+import com.willwinder.rtp.model.DensityPyramid;
+import com.willwinder.rtp.model.Key;
 import com.willwinder.rtp.model.MainModel;
-import com.willwinder.rtp.model.TimelineNotes;
+import com.willwinder.rtp.model.NotePairing;
+import com.willwinder.rtp.model.NoteStore;
+import com.willwinder.rtp.model.TempoMap;
 import com.willwinder.rtp.model.params.AllParams;
-import com.willwinder.rtp.util.NoteEvent;
+import com.willwinder.rtp.model.params.ControllerParams;
+import com.willwinder.rtp.util.MidiClockPll;
+import com.willwinder.rtp.util.MidiOutScheduler;
+import com.willwinder.rtp.util.MonotonicClock;
+import com.willwinder.rtp.util.NoteEventDispatcher;
+import com.willwinder.rtp.util.PipelineLatency;
 import com.willwinder.rtp.util.Util;
+import com.willwinder.rtp.view.Metronome;
+import com.willwinder.rtp.view.SequencePlayer;
+import com.willwinder.rtp.view.SongRenderer;
 
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.Alert;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.ProgressBar;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 import javax.sound.midi.*;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.file.Files;
 
 /**
  * Controller.
@@ -33,12 +48,17 @@ public class MainController {
     ////////////////////////
     // Playback metadata. //
     ////////////////////////
-    private ArrayList<TimelineNotes.TimelineNote> midiNotes;
-    private int noteIdx = 0;
     private boolean playing = false;
     private boolean paused = false;
-    private long lastUpdateMs = 0;
-    private long songOffsetMs = 0;
+    private long lastUpdateNanos = 0;
+    // Fractional so that sub-millisecond frame deltas aren't lost.
+    private double songOffsetMs = 0;
+
+    // Scratch key masks for updateTime.
+    private final long[] requiredNotes = new long[2];
+    private final long[] optionalNotes = new long[2];
+    private final long[] activeNotes = new long[2];
+    private final NoteStore.Cursor currentNotes = new NoteStore.Cursor();
 
     public MainController(GraphicsContext gc, AllParams params, MainModel model, Stage parent) {
         this.gc = gc;
@@ -47,90 +67,164 @@ public class MainController {
         this.model = model;
         this.parent = parent;
 
+        // Player notes are added to the timeline on a worker, the renderers read the snapshots it publishes.
+        params.noteEventDispatcher.subscribe("timeline", NoteEventDispatcher.Delivery.WORKER, event -> {
+            params.timelineParams.playerNotes.noteEvent(event);
+            params.pipelineLatency.record(PipelineLatency.Stage.MODEL_UPDATE, event.receiveNanos);
+        });
+
         model.midiFileSequence.addListener(s -> loadMidiFile());
+
+        // Songs are stored in ticks, keep the same tick under the playhead when the tempo changes.
+        params.bpmParams.bpm.addListener((observable, oldValue, newValue) -> {
+            songOffsetMs = songOffsetMs * oldValue.doubleValue() / newValue.doubleValue();
+        });
     }
 
     // Set the playback time based on parameters
     public EventHandler<ActionEvent> updateTimelineTimeEvent = event -> updateTime();
     private void updateTime() {
-        long now = System.currentTimeMillis();
+        long now = allParams.clock.nowNanos();
+
+        MidiOutScheduler midiOut = this.allParams.midiOutParams.scheduler;
+        Metronome metronome = this.allParams.metronomeParams.metronome;
+        SequencePlayer sequencePlayer = this.allParams.controllerParams.sequencePlayer;
 
         // Realtime mode - simple. Exit early when complete
         if (this.allParams.timelineParams.out.get()) {
-            this.allParams.timelineParams.nowMs.setValue(now);
+            midiOut.stop();
+            sequencePlayer.stop();
+            // Clicks on the same free running grid BPMLines draws.
+            metronome.play(MonotonicClock.toMs(now), now, 1.0);
+            this.allParams.timelineParams.nowMs.setValue((long) this.allParams.calibrationParams.realtimeDisplayMs(MonotonicClock.toMs(now)));
             return;
         }
 
         // Playback mode
-        long start = songOffsetMs;
-        long end = songOffsetMs + this.allParams.timelineParams.timelineDurationMs.get();
+        boolean clockSlave = this.allParams.controllerParams.clockSlave.get();
+        boolean listen = !clockSlave && this.allParams.controllerParams.mode.get() == ControllerParams.Mode.LISTEN;
+        if (clockSlave) {
+            followClock(now);
+        }
+        if (!listen || !playing || paused) {
+            sequencePlayer.stop();
+        }
+
+        long start = (long) songOffsetMs;
 
-        Set<Integer> requiredNotes = new HashSet<>();
-        Set<Integer> optionalNotes = new HashSet<>();
+        // 128 bit key masks, key N is bit (N % 64) of mask[N / 64].
+        requiredNotes[0] = requiredNotes[1] = 0;
+        optionalNotes[0] = optionalNotes[1] = 0;
         //String r = "";
         //String o = "";
-        for (var note : this.allParams.timelineParams.midiNotes) {
-            var len = note.endTimeMs - note.startTimeMs;
-            if (note.startTimeMs <= start && note.endTimeMs > start) {
+        NoteStore.Cursor note = this.allParams.timelineParams.midiNotes.get().overlapping(start, start + 1, currentNotes);
+        while (note.next()) {
+            var len = note.endMs() - note.startMs();
+            if (note.startMs() <= start && note.endMs() > start) {
+                int key = note.key();
                 // Make the note optional after the first half has been played
-                if (note.startTimeMs + (len/2.0) > start) {
-                    //r += " " + note.key.note + note.key.octave;
-                    requiredNotes.add(note.key.key);
+                if (note.startMs() + (len/2.0) > start) {
+                    //r += " " + Util.dataToNote(key) + Util.dataToOctave(key);
+                    requiredNotes[key >>> 6] |= 1L << key;
                 } else {
-                    //o += " " + note.key.note + note.key.octave;
-                    optionalNotes.add(note.key.key);
+                    //o += " " + Util.dataToNote(key) + Util.dataToOctave(key);
+                    optionalNotes[key >>> 6] |= 1L << key;
                 }
             }
         }
         //System.out.println("required: " + r + ", optional: " + o);
 
-        var activeNotes = allParams.timelineParams.playerNotes.getActiveNotes();
+        allParams.keyboardState.snapshot(activeNotes);
         boolean missingOrExtra = false;
-        if (requiredNotes.size() > 0) {
-            int foundNum = 0;
-            for (var active : activeNotes) {
-                // Check if the note was required, and that it was activated within 500ms
-                boolean foundRequired = requiredNotes.contains(active.key.key);
-                boolean foundOptional = optionalNotes.contains(active.key.key);
-
-                if (foundRequired) {
-                    foundNum++;
-                } else if (foundOptional) {
-                    // cool
-                } else {
-                    missingOrExtra = true;
-                    System.out.println("Extra: " + active.key.note + active.key.octave);
-                    break;
+        if ((requiredNotes[0] | requiredNotes[1]) != 0) {
+            for (int word = 0; word < 2 && !missingOrExtra; word++) {
+                long extra = activeNotes[word] & ~(requiredNotes[word] | optionalNotes[word]);
+                long missing = requiredNotes[word] & ~activeNotes[word];
+
+                if (extra != 0) {
+                    int key = word * 64 + Long.numberOfTrailingZeros(extra);
+                    System.out.println("Extra: " + Util.dataToNote(key) + Util.dataToOctave(key));
                 }
+                missingOrExtra = extra != 0 || missing != 0;
             }
-            missingOrExtra = missingOrExtra || foundNum < requiredNotes.size();
         }
 
-        if (!playing || paused || missingOrExtra) {
-            this.lastUpdateMs = 0;
+        if (clockSlave) {
+            // Positioned by followClock.
+            this.lastUpdateNanos = 0;
+            MidiClockPll midiClock = this.allParams.midiClock;
+            // The tempo is 0 until the clock locks, and again if it loses the lock before getBpm.
+            double clockBpm = midiClock.isLocked() ? midiClock.getBpm() : 0;
+            if (midiClock.isRunning() && clockBpm > 0) {
+                double rate = clockBpm / this.allParams.bpmParams.bpm.get();
+                midiOut.play(songOffsetMs, now, rate);
+                metronome.play(songOffsetMs, now, rate);
+            } else if (midiClock.isRunning()) {
+                // Running but not locked yet, hold until the tempo is known.
+                midiOut.hold();
+                metronome.stop();
+            } else {
+                midiOut.stop();
+                metronome.stop();
+            }
+        } else if (listen && playing && !paused) {
+            followSequencer(now);
+            midiOut.play(songOffsetMs, now, 1.0);
+            metronome.play(songOffsetMs, now, 1.0);
+        } else if (!playing || paused || missingOrExtra) {
+            this.lastUpdateNanos = 0;
+            // The follow mode stall lets the output ring on, pause stops it.
+            if (playing && !paused) {
+                midiOut.hold();
+            } else {
+                midiOut.stop();
+            }
+            metronome.stop();
         } else {
-            if (this.lastUpdateMs != 0) {
-                long delta = now - this.lastUpdateMs;
-                songOffsetMs += delta;
-                this.allParams.timelineParams.nowMs.setValue(songOffsetMs);
+            if (this.lastUpdateNanos != 0) {
+                long delta = now - this.lastUpdateNanos;
+                songOffsetMs += delta / 1e6;
+                this.allParams.timelineParams.nowMs.setValue((long) this.allParams.calibrationParams.displayMs(songOffsetMs));
             }
-            this.lastUpdateMs = now;
+            this.lastUpdateNanos = now;
+            midiOut.play(songOffsetMs, now, 1.0);
+            metronome.play(songOffsetMs, now, 1.0);
         }
+    }
 
-        // Update timeline midi notes
-        // Remove ones that are no longer visible.
-        var iter = this.allParams.timelineParams.midiNotes.iterator();
-        while (iter.hasNext()) {
-            var note = iter.next();
-            if (note.endTimeMs < start) iter.remove();
+    /**
+     * Move the song to the external clock's position. Nothing moves until the clock has sent a transport message.
+     */
+    private void followClock(long now) {
+        MidiClockPll midiClock = this.allParams.midiClock;
+        if (midiClock.getTransportCount() == 0) {
+            return;
         }
 
-        // Add new notes coming onto the timeline.
-        while (noteIdx < this.midiNotes.size() && this.midiNotes.get(noteIdx).startTimeMs < end) {
-            this.allParams.timelineParams.midiNotes.add(
-                    this.midiNotes.get(noteIdx));
-            this.noteIdx++;
+        songOffsetMs = midiClock.getPositionQuarterNotes(now) * this.allParams.timelineParams.quarterNoteDurationMs.get();
+        this.allParams.timelineParams.nowMs.setValue((long) this.allParams.calibrationParams.displayMs(songOffsetMs));
+    }
+
+    /**
+     * Move the song to the sequencer's position, it is the one clock for both the audio and the timeline. The count-in
+     * before the song and the scroll out after it run on the application clock.
+     */
+    private void followSequencer(long now) {
+        SequencePlayer sequencePlayer = this.allParams.controllerParams.sequencePlayer;
+        if (sequencePlayer.isRunning()) {
+            songOffsetMs = sequencePlayer.getSongMs(now);
+        } else {
+            if (this.lastUpdateNanos != 0) {
+                songOffsetMs += (now - this.lastUpdateNanos) / 1e6;
+            }
+            // Starts at the end of the count-in, or resumes after a pause.
+            if (songOffsetMs >= 0 && !sequencePlayer.isFinished()) {
+                sequencePlayer.start(songOffsetMs);
+            }
         }
+        this.lastUpdateNanos = now;
+        // Notes are sent to the synth when they are due, so they are heard late by the output latency.
+        this.allParams.timelineParams.nowMs.setValue((long) this.allParams.calibrationParams.realtimeDisplayMs(songOffsetMs));
     }
 
     public EventHandler<ActionEvent> openMidiFileActionHandler = event -> {
@@ -153,6 +247,65 @@ public class MainController {
         }
     };
 
+    public EventHandler<ActionEvent> exportMidiFileActionHandler = event -> {
+        Sequence sequence = this.model.midiFileSequence.get();
+        if (sequence == null) {
+            return;
+        }
+
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Export WAV File");
+        fileChooser.setInitialFileName("song.wav");
+        fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("WAV files", "*.wav"));
+        File f = fileChooser.showSaveDialog(parent);
+        if (f == null) {
+            return;
+        }
+
+        int bpm = this.allParams.bpmParams.bpm.get();
+        int sampleRate = this.allParams.audioParams.sampleRate.get();
+        SongRenderer renderer = new SongRenderer(sampleRate, 64, Runtime.getRuntime().availableProcessors());
+        Task<Void> task = new Task<>() {
+            @Override
+            protected Void call() throws Exception {
+                renderer.render(sequence, bpm, f, fraction -> updateProgress(fraction, 1.0), this::isCancelled);
+                return null;
+            }
+        };
+
+        ProgressBar progressBar = new ProgressBar();
+        progressBar.progressProperty().bind(task.progressProperty());
+        progressBar.setPrefWidth(300);
+        Alert alert = new Alert(Alert.AlertType.NONE, null, ButtonType.CANCEL);
+        alert.setHeaderText("Exporting " + f.getName() + " at " + bpm + " BPM");
+        alert.getDialogPane().setContent(progressBar);
+        alert.initOwner(parent);
+        alert.setOnHidden(e -> task.cancel());
+
+        task.setOnSucceeded(e -> alert.close());
+        task.setOnFailed(e -> {
+            alert.close();
+            Throwable failure = task.getException();
+            failure.printStackTrace();
+            // The renderer removes it on an IOException, anything else could leave a truncated file behind.
+            try {
+                Files.deleteIfExists(f.toPath());
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            String message = failure.getMessage() != null ? failure.getMessage() : failure.toString();
+            Alert error = new Alert(Alert.AlertType.ERROR, message);
+            error.setHeaderText("Unable to export " + f.getName());
+            error.initOwner(parent);
+            error.show();
+        });
+
+        Thread t = new Thread(task, "SongRenderer-export");
+        t.setDaemon(true);
+        t.start();
+        alert.show();
+    };
+
     private void loadMidiFile() {
         if (this.model.midiFileSequence.isNull().get()) {
             return;
@@ -160,7 +313,6 @@ public class MainController {
 
         long duration = this.allParams.timelineParams.timelineDurationMs.get();
         this.songOffsetMs = -duration;
-        this.noteIdx = 0;
         this.allParams.timelineParams.nowMs.setValue(-duration);
 
         var seq = this.model.midiFileSequence.get();
@@ -172,12 +324,14 @@ public class MainController {
             ppqn = seq.getDivisionType();
         }
 
-        double msPerQuarterNote = 60000.0 / (double) this.allParams.bpmParams.bpm.get();
-        double msPerTick = msPerQuarterNote / ppqn;
-        this.allParams.timelineParams.quarterNoteDurationMs.setValue(msPerQuarterNote);
+        // Notes are kept in ticks, the tempo map converts them at the current BPM.
+        TempoMap tempoMap = this.allParams.bpmParams.tempoMap;
+        tempoMap.setResolution(ppqn);
 
         int trackNum = 0;
-        TimelineNotes midiNotes = new TimelineNotes();
+        NoteStore.Builder builder = new NoteStore.Builder(tempoMap);
+        // Open notes by track, channel and key, a release ends the matching one.
+        NotePairing.Ints open = new NotePairing.Ints();
 
         for (Track track : seq.getTracks()) {
             trackNum++;
@@ -185,20 +339,32 @@ public class MainController {
                 MidiEvent midiEvent = track.get(i);
                 var tick = midiEvent.getTick();
 
-                String msg = Util.midiMessageToString(midiEvent.getMessage());
-                if (msg.length() > 0) {
-                    System.out.println(msg);
-                }
-
-                var key = Util.midiMessageToKey(midiEvent.getMessage());
-                if (key.isPresent()) {
-                    var delta = tick * msPerTick;
-                    midiNotes.noteEvent(new NoteEvent(key.get(), trackNum, (long) delta));
+                int note = Util.decodeNote(midiEvent.getMessage());
+                if (note != Util.NOT_A_NOTE) {
+                    Key key = Util.decodedKey(note);
+                    int channel = key.status & 0x0F;
+                    if (key.isActive()) {
+                        open.open(trackNum, channel, key.key, builder.add(tick, -1, key.key, Util.decodedVelocity(note), trackNum, channel));
+                    } else {
+                        int started = open.close(trackNum, channel, key.key);
+                        if (started != NotePairing.Ints.NONE) {
+                            builder.setEnd(started, tick);
+                        }
+                    }
                 }
             }
+
+            // Notes the track never released end with it.
+            long trackEnd = track.ticks();
+            open.closeAll(trackNum, started -> builder.setEnd(started, trackEnd));
         }
 
-        this.midiNotes = midiNotes.getSortedNotesArray();
+        NoteStore midiNotes = builder.build();
+        this.allParams.timelineParams.songDensity.set(DensityPyramid.of(midiNotes));
+        this.allParams.timelineParams.midiNotes.set(midiNotes);
+        this.allParams.midiOutParams.scheduler.load(midiNotes);
+        this.allParams.metronomeParams.metronome.setBeatMap(BeatMap.fromSequence(seq));
+        this.allParams.controllerParams.sequencePlayer.load(seq, this.allParams.bpmParams.bpm.get());
     }
 
     public EventHandler<ActionEvent> pauseMidiFileActionHandler = event -> this.paused = true;
@@ -211,7 +377,8 @@ public class MainController {
         }
 
         // Reset play information.
-        this.lastUpdateMs = 0;
+        this.allParams.controllerParams.sequencePlayer.stop();
+        this.lastUpdateNanos = 0;
         this.songOffsetMs = -this.allParams.timelineParams.timelineDurationMs.get();
         this.playing = true;
     };
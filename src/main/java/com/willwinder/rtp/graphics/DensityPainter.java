@@ -0,0 +1,59 @@
+package com.willwinder.rtp.graphics;
+
+import com.willwinder.rtp.model.DensityPyramid;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+
+/**
+ * Draws the bins of a DensityPyramid as columns of rectangles. Bins are shaded by how much of them is covered in a
+ * few steps, and neighbouring bins of the same shade are one rectangle, so a column is at most one rectangle per bin.
+ */
+public class DensityPainter {
+    private static final int SHADES = 4;
+    // Bins covered less than this are left empty, removing notes leaves rounding behind.
+    private static final float MIN_COVER = 0.001f;
+
+    private final Color[] shades = new Color[SHADES];
+
+    /**
+     * @param color drawn as is for a fully covered bin, more transparent for less.
+     */
+    public DensityPainter(Color color) {
+        for (int i = 0; i < SHADES; i++) {
+            shades[i] = Color.color(color.getRed(), color.getGreen(), color.getBlue(), (i + 1) / (double) SHADES);
+        }
+    }
+
+    /**
+     * Fill one key's bins from firstBin to lastBin. Times map to y = yAtZero + yPerUnit * time, in the pyramid's
+     * units, clipped to [minY, maxY].
+     */
+    public void drawColumn(GraphicsContext gc, DensityPyramid density, int level, int key, long firstBin, long lastBin,
+                           double x, double width, double yAtZero, double yPerUnit, double minY, double maxY) {
+        long binWidth = density.getBinWidth(level);
+        int runShade = 0;
+        long runStart = firstBin;
+        for (long bin = firstBin; bin <= lastBin + 1; bin++) {
+            int shade = bin > lastBin ? 0 : shade(density.get(level, key, bin));
+            if (shade == runShade) continue;
+
+            if (runShade > 0) {
+                double y1 = yAtZero + yPerUnit * (runStart * binWidth);
+                double y2 = yAtZero + yPerUnit * (bin * binWidth);
+                double top = Math.max(minY, Math.min(y1, y2));
+                double bottom = Math.min(maxY, Math.max(y1, y2));
+                if (bottom > top) {
+                    gc.setFill(shades[runShade - 1]);
+                    gc.fillRect(x, top, width, bottom - top);
+                }
+            }
+            runShade = shade;
+            runStart = bin;
+        }
+    }
+
+    private static int shade(float cover) {
+        if (cover < MIN_COVER) return 0;
+        return Math.min(SHADES, (int) Math.ceil(cover * SHADES));
+    }
+}
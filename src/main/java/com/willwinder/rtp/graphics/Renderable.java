@@ -15,18 +15,21 @@ public interface Renderable {
         public final double canvasHeight;
         public final boolean reset;
         public final long nowMs;
+        public final long frameNanos;
 
         /**
          * @param canvasWidth current width of the canvas.
          * @param canvasHeight current height of the canvas.
          * @param reset indicates that the display has been reset and a full redraw should occur.
          * @param nowMs the current time in milliseconds, passed in since many renderables need it.
+         * @param frameNanos the time of this frame on the MonotonicClock, unlike nowMs it never pauses.
          */
-        public DrawParams(double canvasWidth, double canvasHeight, boolean reset, long nowMs) {
+        public DrawParams(double canvasWidth, double canvasHeight, boolean reset, long nowMs, long frameNanos) {
             this.canvasWidth = canvasWidth;
             this.canvasHeight = canvasHeight;
             this.reset = reset;
             this.nowMs = nowMs;
+            this.frameNanos = frameNanos;
         }
     }
 
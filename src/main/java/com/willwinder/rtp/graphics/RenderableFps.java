@@ -5,22 +5,22 @@ import javafx.scene.canvas.GraphicsContext;
 public class RenderableFps implements Renderable {
     private final Renderable r;
     private final int fps;
-    private final double delayMs;
+    private final long delayNanos;
 
     private long nextDraw = 0;
 
     public RenderableFps(Renderable r, int fps) {
         this.r = r;
         this.fps = fps;
-        this.delayMs = 1 / (double) fps;
+        this.delayNanos = 1_000_000_000L / fps;
     }
 
 
     @Override
     public void draw(GraphicsContext gc, DrawParams params) throws RenderableException {
-        if (nextDraw < params.nowMs) {
+        if (nextDraw < params.frameNanos) {
             r.draw(gc, params);
-            nextDraw = params.nowMs + (long) (delayMs * 1000);
+            nextDraw = params.frameNanos + delayNanos;
         }
     }
 }
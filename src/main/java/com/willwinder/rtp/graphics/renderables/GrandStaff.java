@@ -2,6 +2,7 @@ package com.willwinder.rtp.graphics.renderables;
 
 import com.willwinder.rtp.graphics.Renderable;
 import com.willwinder.rtp.model.Key;
+import com.willwinder.rtp.model.NoteStore;
 import com.willwinder.rtp.model.TimelineNotes;
 import com.willwinder.rtp.model.params.GrandStaffParams;
 import com.willwinder.rtp.model.params.TimelineParams;
@@ -9,7 +10,10 @@ import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.image.Image;
 import javafx.scene.paint.Color;
 
+import javax.sound.midi.ShortMessage;
+
 import java.io.InputStream;
+import java.util.ArrayList;
 
 public class GrandStaff implements Renderable {
 
@@ -20,6 +24,9 @@ public class GrandStaff implements Renderable {
     private Image cleffs = null;
     private Image bars = null;
     private double staffHeight = 0.0;
+    // Scratch list for the notes on a row.
+    private final ArrayList<TimelineNotes.TimelineNote> visibleNotes = new ArrayList<>();
+    private final NoteStore.Cursor songNotes = new NoteStore.Cursor();
 
     public GrandStaff(TimelineParams timelineParams, GrandStaffParams grandStaffParams) {
         this.timelineParams = timelineParams;
@@ -80,6 +87,7 @@ public class GrandStaff implements Renderable {
         double notesLeftMargin = this.brace.getWidth() + 2 * this.cleffs.getWidth();
 
         int rows = this.grandStaffParams.rows.get();
+        TimelineNotes.Snapshot playerNotes = this.timelineParams.playerNotes.snapshot();
         for (int i = 0; i < rows; i++) {
             double yOffset = this.grandStaffParams.descending.get() ? y + i * staffHeight : y + (rows - i - 1) * staffHeight;
             long durOffset = duration * i;
@@ -110,24 +118,27 @@ public class GrandStaff implements Renderable {
 
             // Process the sparks
             boolean realtime = this.timelineParams.out.get();
-            synchronized (timelineParams.midiNotes) {
-                for (var note : this.timelineParams.midiNotes) {
-                    if (note.startTimeMs < timelineEndMs && ((note.endTimeMs < 0) || (note.endTimeMs > timelineStartMs))) {
-                        drawNote(gc, note, timelineEndMs, duration, notesLeftMargin, params.canvasWidth - notesLeftMargin, yOffset, this.staffHeight, realtime);
-                    }
+            // The row's window, start and end are swapped in realtime mode.
+            long fromMs = Math.min(timelineStartMs, timelineEndMs);
+            long toMs = Math.max(timelineStartMs, timelineEndMs);
+            double barsWidth = params.canvasWidth - notesLeftMargin;
+            NoteStore.Cursor note = this.timelineParams.midiNotes.get().overlapping(fromMs, toMs, songNotes);
+            while (note.next()) {
+                if (note.startMs() < timelineEndMs && ((note.endMs() < 0) || (note.endMs() > timelineStartMs))) {
+                    // Keys are interned, this doesn't allocate.
+                    Key key = Key.of(ShortMessage.NOTE_ON | note.channel(), note.key(), note.velocity());
+                    drawNote(gc, key, note.startMs(), note.endMs(), note.track(), timelineEndMs, duration, notesLeftMargin, barsWidth, yOffset, this.staffHeight, realtime);
                 }
             }
 
-            synchronized (timelineParams.playerNotes) {
-                for (var noteList : this.timelineParams.playerNotes) {
-                    for (var note : noteList) {
-                        if (note.startTimeMs < timelineEndMs && ((note.endTimeMs < 0) || (note.endTimeMs > timelineStartMs))) {
-                            drawNote(gc, note, timelineEndMs, duration, notesLeftMargin, params.canvasWidth - notesLeftMargin, yOffset, this.staffHeight, realtime);
-                        }
-                    }
+            playerNotes.query(fromMs, toMs, visibleNotes);
+            for (var playerNote : visibleNotes) {
+                if (playerNote.startTimeMs < timelineEndMs && ((playerNote.endTimeMs < 0) || (playerNote.endTimeMs > timelineStartMs))) {
+                    drawNote(gc, playerNote.key, playerNote.startTimeMs, playerNote.endTimeMs, playerNote.track, timelineEndMs, duration, notesLeftMargin, barsWidth, yOffset, this.staffHeight, realtime);
                 }
             }
         }
+        visibleNotes.clear();
     }
 
     private Image getBrace(double height) {
@@ -486,19 +497,19 @@ public class GrandStaff implements Renderable {
 
     // TODO: Convert to 'drawMeasure' and accept a series of notes so that a bar can be drawn over notes when necessary.
     //       Computing the measure when creating the Key object is probably going to be a good idea.
-    private static void drawNote(GraphicsContext gc, TimelineNotes.TimelineNote note, long timelineStartMs, long durationMs, double barsLeftMargin, double barsWidth, double areaYOffset, double staffHeight, boolean realtime) {
+    private static void drawNote(GraphicsContext gc, Key key, long startTimeMs, long endTimeMs, int track, long timelineStartMs, long durationMs, double barsLeftMargin, double barsWidth, double areaYOffset, double staffHeight, boolean realtime) {
         // Notes need to scroll left to right.
         // Lets start by drawing the note at the correct height by drawing it right in the middle.
-        Cleff c = getCleff(note.key);
+        Cleff c = getCleff(key);
 
-        if (note.track == 1) {
+        if (track == 1) {
             c = Cleff.TREBLE;
         }
-        if (note.track == 2) {
+        if (track == 2) {
             c = Cleff.BASS;
         }
 
-        double yOffset = getYOffsetForNote(note.key.octave, note.key.note, c, staffHeight) + areaYOffset;
+        double yOffset = getYOffsetForNote(key.octave, key.note, c, staffHeight) + areaYOffset;
         double xOffsetStart, xOffsetEnd;
         double height = 15;
         double width = 20;
@@ -507,12 +518,12 @@ public class GrandStaff implements Renderable {
         double w;
 
         // Note: Using max here means the note head will crash into the edge and remain visible until the note ends.
-        double startOffsetFactor = Math.max(1 - ((timelineStartMs - note.startTimeMs) / (double) durationMs), 0.0);
-        double endOffsetFactor   = Math.max(1 - ((timelineStartMs - note.endTimeMs)   / (double) durationMs), 0.0);
+        double startOffsetFactor = Math.max(1 - ((timelineStartMs - startTimeMs) / (double) durationMs), 0.0);
+        double endOffsetFactor   = Math.max(1 - ((timelineStartMs - endTimeMs)   / (double) durationMs), 0.0);
 
         // Tweak factors for realtime mode.
         if (realtime) {
-            if (note.endTimeMs < 0) {
+            if (endTimeMs < 0) {
                 endOffsetFactor = 0;
             } else {
                 endOffsetFactor   = 1 - endOffsetFactor;
@@ -1,16 +1,16 @@
 package com.willwinder.rtp.graphics.renderables;
 
-import com.google.common.eventbus.Subscribe;
 import com.willwinder.rtp.model.KeyboardState;
 import com.willwinder.rtp.graphics.KeyPointCache;
 import com.willwinder.rtp.graphics.Renderable;
 import com.willwinder.rtp.model.Key;
 import com.willwinder.rtp.util.NoteEvent;
+import com.willwinder.rtp.util.NoteEventDispatcher;
+import com.willwinder.rtp.util.PipelineLatency;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.paint.Color;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
 
 /**
  * KeyboardView is used to draw the keyboard to a JavaFX canvas. It contains a reference
@@ -18,13 +18,22 @@ import java.util.Set;
  */
 public class KeyboardView implements Renderable {
 
-    private final Set<Integer> updatedKeys = new HashSet<>();
+    private final boolean[] updatedKeys = new boolean[128];
+    // Key state as seen through this view's own cursor, so a key is never drawn before its event is drained.
+    private final boolean[] activeKeys = new boolean[128];
+    // Receive time of the last event for each key which hasn't been drawn yet.
+    private final long[] receiveNanos = new long[128];
     private final KeyboardState state;
     private final KeyPointCache keyPointCache;
+    private final NoteEventDispatcher.Subscription noteEvents;
+    private final PipelineLatency latency;
+    private long lostEvents = 0;
 
-    public KeyboardView(KeyboardState state, KeyPointCache cache) {
+    public KeyboardView(KeyboardState state, KeyPointCache cache, NoteEventDispatcher dispatcher, PipelineLatency latency) {
         this.state = state;
         this.keyPointCache = cache;
+        this.latency = latency;
+        this.noteEvents = dispatcher.subscribe("keyboard-view", NoteEventDispatcher.Delivery.FX_THREAD, this::noteEventHandler);
     }
 
     /**
@@ -56,11 +65,10 @@ public class KeyboardView implements Renderable {
         }
     }
 
-    @Subscribe
-    public void noteEventHandler(NoteEvent event) {
-        synchronized (updatedKeys) {
-            updatedKeys.add(event.key.key);
-        }
+    private void noteEventHandler(NoteEvent event) {
+        activeKeys[event.key.key] = event.key.isActive();
+        updatedKeys[event.key.key] = true;
+        receiveNanos[event.key.key] = event.receiveNanos;
     }
 
     /**
@@ -70,27 +78,36 @@ public class KeyboardView implements Renderable {
      */
     @Override
     public void draw(GraphicsContext gc, DrawParams p) {
-        if (p.reset) {
+        // Redraw everything if some events were dropped, there is no way to know which keys changed.
+        boolean lost = noteEvents.getLostCount() != lostEvents;
+        if (lost) {
+            lostEvents = noteEvents.getLostCount();
+            for (int keyNum = 0; keyNum < activeKeys.length; keyNum++) {
+                activeKeys[keyNum] = state.isActive(keyNum);
+            }
+        }
+
+        if (p.reset || lost) {
             this.keyPointCache.reset(p.canvasHeight, p.canvasWidth);
 
             // reset all keys
             Key.Note note = Key.Note.noteForKey(this.keyPointCache.params.firstKey.get());
             for (int keyOffset = 0; keyOffset < this.keyPointCache.params.numKeys.get(); keyOffset++) {
                 int keyNum = keyOffset + this.keyPointCache.params.firstKey.get();
-                boolean isActive = state.getActiveKeyCodes().contains(keyNum);
-                drawKey(gc, keyNum, note, isActive);
+                drawKey(gc, keyNum, note, keyNum < activeKeys.length && activeKeys[keyNum]);
                 note = note.nextNote();
             }
         }
         else {
-            synchronized (updatedKeys) {
-                for (int keyNum : updatedKeys) {
+            for (int keyNum = 0; keyNum < updatedKeys.length; keyNum++) {
+                if (updatedKeys[keyNum]) {
                     Key.Note note = Key.Note.noteForKey(keyNum);
-                    boolean isActive = state.getActiveKeyCodes().contains(keyNum);
-                    drawKey(gc, keyNum, note, isActive);
+                    drawKey(gc, keyNum, note, activeKeys[keyNum]);
+                    latency.record(PipelineLatency.Stage.FRAME_DRAWN, receiveNanos[keyNum]);
                 }
-                updatedKeys.clear();
             }
         }
+        Arrays.fill(updatedKeys, false);
+        Arrays.fill(receiveNanos, 0);
     }
 }
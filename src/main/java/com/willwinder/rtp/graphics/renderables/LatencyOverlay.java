@@ -0,0 +1,51 @@
+package com.willwinder.rtp.graphics.renderables;
+
+import com.willwinder.rtp.graphics.Renderable;
+import com.willwinder.rtp.util.LatencyHistogram;
+import com.willwinder.rtp.util.PipelineLatency;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+
+/**
+ * Draw p50/p99/max of each note pipeline stage in the top left corner.
+ */
+public class LatencyOverlay implements Renderable {
+    private static final double LINE_HEIGHT = 14.0;
+    private static final long REFRESH_NANOS = 250_000_000L;
+
+    private final PipelineLatency latency;
+    private final String[] lines = new String[PipelineLatency.Stage.values().length];
+    private long lastRefresh = 0;
+
+    public LatencyOverlay(PipelineLatency latency) {
+        this.latency = latency;
+    }
+
+    private static String format(LatencyHistogram h) {
+        return String.format("%-20s p50 %7.2fms  p99 %7.2fms  max %7.2fms  (%d)",
+                h.name,
+                h.getValueAtPercentile(50) / 1e6,
+                h.getValueAtPercentile(99) / 1e6,
+                h.getMax() / 1e6,
+                h.getCount());
+    }
+
+    @Override
+    public void draw(GraphicsContext gc, DrawParams p) {
+        // Formatting is relatively slow, no need to do it every frame.
+        long now = p.frameNanos;
+        if (now - lastRefresh > REFRESH_NANOS) {
+            for (PipelineLatency.Stage s : PipelineLatency.Stage.values()) {
+                lines[s.ordinal()] = format(latency.get(s));
+            }
+            lastRefresh = now;
+        }
+
+        gc.setFill(Color.color(0, 0, 0, 0.7));
+        gc.fillRect(5, 5, 480, LINE_HEIGHT * lines.length + 8);
+        gc.setFill(Color.LIMEGREEN);
+        for (int i = 0; i < lines.length; i++) {
+            gc.fillText(lines[i], 10, 5 + LINE_HEIGHT * (i + 1));
+        }
+    }
+}
@@ -19,6 +19,6 @@ public class NumKeysView implements Renderable {
     @Override
     public void draw(GraphicsContext gc, DrawParams p) {
         gc.setFill(Color.WHITE);
-        gc.fillText(String.valueOf(state.getActiveKeys().size()), 10.0, 10.0);
+        gc.fillText(String.valueOf(state.getActiveKeyCount()), 10.0, 10.0);
     }
 }
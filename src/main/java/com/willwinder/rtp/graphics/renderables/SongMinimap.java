@@ -0,0 +1,74 @@
+package com.willwinder.rtp.graphics.renderables;
+
+import com.willwinder.rtp.graphics.DensityPainter;
+import com.willwinder.rtp.graphics.Renderable;
+import com.willwinder.rtp.model.DensityPyramid;
+import com.willwinder.rtp.model.NoteStore;
+import com.willwinder.rtp.model.params.TimelineParams;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+
+/**
+ * An overview of the song in a strip on the right of the timeline, drawn from the song's density pyramid. It covers
+ * several timelines worth of the song and scrolls with it, with a box around the part the timeline shows.
+ */
+public class SongMinimap implements Renderable {
+    private static final double WIDTH = 88;
+    // The strip covers this many timeline durations, or the whole song if it is shorter.
+    private static final int TIMELINES = 10;
+    // Piano keys, the strip is one pixel per key.
+    private static final int FIRST_KEY = 21;
+    private static final int KEYS = 88;
+    private static final Color BACKGROUND = Color.color(0, 0, 0, 0.7);
+    private static final DensityPainter PAINTER = new DensityPainter(Color.ORANGE);
+
+    private final TimelineParams params;
+
+    public SongMinimap(TimelineParams params) {
+        this.params = params;
+    }
+
+    @Override
+    public void draw(GraphicsContext gc, DrawParams p) throws RenderableException {
+        NoteStore store = this.params.midiNotes.get();
+        if (store.size() == 0) return;
+
+        DensityPyramid density = this.params.songDensity.get();
+        double msPerTick = store.getTempoMap().getMsPerTick();
+        double height = this.params.getHeight(p.canvasHeight);
+        double x = p.canvasWidth - WIDTH;
+        long duration = this.params.timelineDurationMs.get();
+        boolean out = this.params.out.get();
+
+        // Keep now a quarter of the way in, without scrolling past either end of the song.
+        double songMs = density.getEnd() * msPerTick;
+        double spanMs = Math.max(duration, Math.min(songMs, duration * (double) TIMELINES));
+        double fromMs = Math.max(0, Math.min(p.nowMs - spanMs / 4, songMs - spanMs));
+
+        // The same direction as the timeline, later times are higher for incoming notes.
+        double yPerMs = (out ? 1 : -1) * height / spanMs;
+        double yAtZero = (out ? 0 : height) - fromMs * yPerMs;
+
+        gc.setFill(BACKGROUND);
+        gc.fillRect(x, 0, WIDTH, height);
+
+        int level = density.levelFor(spanMs / height / msPerTick, spanMs / msPerTick);
+        long binWidth = density.getBinWidth(level);
+        long firstBin = Math.floorDiv((long) (fromMs / msPerTick), binWidth);
+        long lastBin = Math.floorDiv((long) ((fromMs + spanMs) / msPerTick), binWidth);
+        double keyWidth = WIDTH / KEYS;
+        for (int k = 0; k < KEYS; k++) {
+            PAINTER.drawColumn(gc, density, level, FIRST_KEY + k, firstBin, lastBin, x + k * keyWidth, keyWidth,
+                    yAtZero, yPerMs * msPerTick, 0, height);
+        }
+
+        // The part of the song on the timeline.
+        double nowY = yAtZero + yPerMs * p.nowMs;
+        double endY = yAtZero + yPerMs * (out ? p.nowMs - duration : p.nowMs + duration);
+        gc.setStroke(Color.WHITE);
+        gc.setLineWidth(1);
+        gc.strokeRect(x + 0.5, Math.min(nowY, endY), WIDTH - 1, Math.abs(endY - nowY));
+        gc.setStroke(Color.RED);
+        gc.strokeLine(x, nowY, p.canvasWidth, nowY);
+    }
+}
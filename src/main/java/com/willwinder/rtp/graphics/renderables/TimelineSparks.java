@@ -1,30 +1,50 @@
 package com.willwinder.rtp.graphics.renderables;
 
+import com.willwinder.rtp.Constants;
+import com.willwinder.rtp.graphics.DensityPainter;
 import com.willwinder.rtp.graphics.Renderable;
+import com.willwinder.rtp.model.DensityPyramid;
 import com.willwinder.rtp.model.KeyboardState;
+import com.willwinder.rtp.model.NoteStore;
 import com.willwinder.rtp.model.TimelineNotes;
 import com.willwinder.rtp.model.params.TimelineParams;
+import com.willwinder.rtp.util.PipelineLatency;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.paint.Color;
 
 import java.time.Duration;
+import java.util.ArrayList;
 
 /**
  * Render sparks in the timeline to represent pressed keys.
+ *
+ * When a pixel row covers more than LOD_MS_PER_PIXEL, most notes would be thinner than a pixel. The song and the
+ * ended player notes are then drawn from their density pyramids instead, which costs about one rectangle per key and
+ * pixel row whatever the number of notes. Notes under the playhead and held notes are still drawn one by one.
  */
 public class TimelineSparks implements Renderable {
     private static Duration CLEANUP_INTERVAL = Duration.ofSeconds(5);
+    // One color per MIDI input device.
+    private static final Color[] PLAYER_COLORS = {Color.RED, Color.LIMEGREEN, Color.DEEPSKYBLUE, Color.MAGENTA};
+    private static final double LOD_MS_PER_PIXEL = 40;
+    private static final DensityPainter SONG_DENSITY = new DensityPainter(Color.ORANGE);
+    private static final DensityPainter PLAYER_DENSITY = new DensityPainter(PLAYER_COLORS[0]);
 
     private final TimelineParams params;
     private KeyboardState state;
+    private final PipelineLatency latency;
+    // Scratch list for the notes on screen.
+    private final ArrayList<TimelineNotes.TimelineNote> visibleNotes = new ArrayList<>();
+    private final NoteStore.Cursor songNotes = new NoteStore.Cursor();
 
     /**
      * Create the timeline spark renderable.
      * @param params
      */
-    public TimelineSparks(TimelineParams params, KeyboardState state) {
+    public TimelineSparks(TimelineParams params, KeyboardState state, PipelineLatency latency) {
         this.params = params;
         this.state = state;
+        this.latency = latency;
     }
 
     /**
@@ -43,64 +63,115 @@ public class TimelineSparks implements Renderable {
             topMs = p.nowMs + duration;
         }
 
+        // Notes which ended before the cutoff are too old to draw. Song notes past the top of the timeline haven't
+        // arrived yet, player notes are all drawn until TimelineNotes evicts them.
+        long ageCutoff = this.params.out.get() ? topMs : p.nowMs;
+        long songCutoff = Math.max(topMs, p.nowMs);
+
+        double timelineHeight = params.getHeight(p.canvasHeight);
+        if (duration / timelineHeight > LOD_MS_PER_PIXEL) {
+            drawDensity(gc, p, topMs, ageCutoff, songCutoff, timelineHeight);
+            return;
+        }
+
         // Process the sparks
-        synchronized (params.midiNotes) {
-            for (var note : this.params.midiNotes) {
-                long ageCutoff = this.params.out.get() ? topMs : p.nowMs;
-
-                // TODO: Who is responsiblge for clearing out old stuff now?
-                //       There is an EndOfTrack event, perhaps that could help somehow.
-                // If it's too old, remove it.
-                if (note.endTimeMs > 0 && note.endTimeMs < ageCutoff) {
-                    //iter.remove();
-                    continue;
-                }
+        NoteStore.Cursor note = this.params.midiNotes.get().overlapping(ageCutoff, songCutoff, songNotes);
+        while (note.next()) {
+            drawSpark(gc, note.key(), note.startMs(), note.endMs(), note.track(), topMs, p.canvasWidth, p.canvasHeight, p.nowMs);
+        }
 
-                // Draw it if the start time is before the cutoff.
-                if (note.endTimeMs < 0 || note.endTimeMs > ageCutoff) {
-                    drawSpark(gc, note, topMs, p.canvasWidth, p.canvasHeight, p.nowMs);
-                }
+        // Process the sparks
+        this.params.playerNotes.snapshot().query(ageCutoff, Long.MAX_VALUE, visibleNotes);
+        for (var playerNote : visibleNotes) {
+            boolean drawn = drawSpark(gc, playerNote.key.key, playerNote.startTimeMs, playerNote.endTimeMs, playerNote.track, topMs, p.canvasWidth, p.canvasHeight, p.nowMs);
+
+            // First time a live note is drawn.
+            if (drawn && playerNote.receiveNanos != 0) {
+                latency.record(PipelineLatency.Stage.FRAME_DRAWN, playerNote.receiveNanos);
+                playerNote.receiveNanos = 0;
             }
         }
+        visibleNotes.clear();
+    }
 
-        // Process the sparks
-        synchronized (params.playerNotes) {
-            for (var noteList : this.params.playerNotes) {
-                for (var note : noteList) {
-                    long ageCutoff = this.params.out.get() ? topMs : p.nowMs;
-
-                    // TODO: Who is responsiblge for clearing out old stuff now?
-                    //       There is an EndOfTrack event, perhaps that could help somehow.
-                    // If it's too old, remove it.
-                    if (note.endTimeMs > 0 && note.endTimeMs < ageCutoff) {
-                        //iter.remove();
-                        continue;
-                    }
-
-                    // Draw it if the start time is before the cutoff.
-                    if (note.endTimeMs < 0 || note.endTimeMs > ageCutoff) {
-                        drawSpark(gc, note, topMs, p.canvasWidth, p.canvasHeight, p.nowMs);
-                    }
-                }
+    /**
+     * Draw the timeline zoomed out, from the density pyramids.
+     */
+    private void drawDensity(GraphicsContext gc, DrawParams p, long topMs, long ageCutoff, long songCutoff, double timelineHeight) {
+        long duration = this.params.timelineDurationMs.get();
+        NoteStore store = this.params.midiNotes.get();
+        double msPerTick = store.getTempoMap().getMsPerTick();
+        drawDensity(gc, this.params.songDensity.get(), SONG_DENSITY, msPerTick, ageCutoff, songCutoff, topMs, duration, timelineHeight);
+        drawDensity(gc, this.params.playerNotes.getDensity(), PLAYER_DENSITY, 1, ageCutoff, p.nowMs, topMs, duration, timelineHeight);
+
+        // Notes being played, so pressed keys still light up.
+        NoteStore.Cursor note = store.overlapping(p.nowMs, p.nowMs + 1, songNotes);
+        while (note.next()) {
+            drawSpark(gc, note.key(), note.startMs(), note.endMs(), note.track(), topMs, p.canvasWidth, p.canvasHeight, p.nowMs);
+        }
+
+        // Ended player notes are in the density, only held ones are drawn.
+        this.params.playerNotes.snapshot().query(ageCutoff, Long.MAX_VALUE, visibleNotes);
+        for (var playerNote : visibleNotes) {
+            boolean drawn = playerNote.endTimeMs >= 0
+                    || drawSpark(gc, playerNote.key.key, playerNote.startTimeMs, playerNote.endTimeMs, playerNote.track, topMs, p.canvasWidth, p.canvasHeight, p.nowMs);
+            if (drawn && playerNote.receiveNanos != 0) {
+                latency.record(PipelineLatency.Stage.FRAME_DRAWN, playerNote.receiveNanos);
+                playerNote.receiveNanos = 0;
+            }
+        }
+        visibleNotes.clear();
+    }
+
+    /**
+     * Draw the bins of a pyramid between two times.
+     * @param msPerUnit milliseconds per unit of the pyramid's time.
+     */
+    private void drawDensity(GraphicsContext gc, DensityPyramid density, DensityPainter painter, double msPerUnit,
+                             long fromMs, long toMs, long topMs, long duration, double timelineHeight) {
+        if (toMs <= fromMs) return;
+        int level = density.levelFor(duration / timelineHeight / msPerUnit, (toMs - fromMs) / msPerUnit);
+        long binWidth = density.getBinWidth(level);
+        long firstBin = Math.floorDiv((long) (fromMs / msPerUnit), binWidth);
+        long lastBin = Math.floorDiv((long) (toMs / msPerUnit), binWidth);
+
+        // Outgoing notes move down from the top, incoming ones down towards the keyboard.
+        double yPerMs = (this.params.out.get() ? 1 : -1) * timelineHeight / duration;
+        double yAtZero = -topMs * yPerMs;
+
+        for (int key = 0; key < 128; key++) {
+            var points = this.params.keyPointCache.getPoints(key);
+            if (points == null) continue;
+            double xMin = Double.MAX_VALUE;
+            double xMax = -Double.MAX_VALUE;
+            for (double x : points.xPoints) {
+                xMin = Math.min(xMin, x);
+                xMax = Math.max(xMax, x);
             }
+            painter.drawColumn(gc, density, level, key, firstBin, lastBin, xMin, xMax - xMin,
+                    yAtZero, yPerMs * msPerUnit, 0, timelineHeight);
         }
     }
 
     /**
      * Compute the spark size, and then draw it.
      * @param gc GraphicsContext where the spark will be drawn.
-     * @param note metadata associated with the spark.
+     * @param key MIDI key number.
+     * @param startTimeMs when the note started.
+     * @param endTimeMs when the note ended, or -1 if it is still held.
+     * @param track selects the color.
      * @param topMs timestamp in milliseconds of the top of the timeline. "now" is at the bottom.
      * @param w width of the timeline canvas.
      * @param h height of the timeline canvas.
      * @param now precomputed now timestamp to ensure all sparks are aligned.
+     * @return true if the spark was drawn.
      */
-    private void drawSpark(GraphicsContext gc, TimelineNotes.TimelineNote note, long topMs, double w, double h, long now) {
+    private boolean drawSpark(GraphicsContext gc, int key, long startTimeMs, long endTimeMs, int track, long topMs, double w, double h, long now) {
         // Get X dimensions (key width)
-        var points = this.params.keyPointCache.getPoints(note.key.key);
+        var points = this.params.keyPointCache.getPoints(key);
 
         // TODO: Handle unknown keys
-        if (points == null) return;
+        if (points == null) return false;
 
         double xMin = Double.MAX_VALUE;
         double xMax = Double.MIN_VALUE;
@@ -119,15 +190,15 @@ public class TimelineSparks implements Renderable {
         boolean isNoteActive = false;
         // Notes are outgoing
         if (this.params.out.get()) {
-            if (note.endTimeMs > 0) {
-                long range = note.endTimeMs - topMs;
+            if (endTimeMs > 0) {
+                long range = endTimeMs - topMs;
                 yMax = range / (double) duration * timelineHeight;
             } else {
                 yMax = timelineHeight;
             }
 
-            if (note.startTimeMs > topMs) {
-                long range = note.startTimeMs - topMs;
+            if (startTimeMs > topMs) {
+                long range = startTimeMs - topMs;
                 yMin = range / (double) duration * timelineHeight;
             } else {
                 yMin = 0;
@@ -135,17 +206,17 @@ public class TimelineSparks implements Renderable {
         }
         // Notes are incoming
         else {
-            if (note.endTimeMs > 0) {
-                long range = topMs - note.endTimeMs;
+            if (endTimeMs > 0) {
+                long range = topMs - endTimeMs;
                 yMax = range / (double) duration * timelineHeight;
             } else {
                 // If there is no end time, this note is probably from the keyboard. No need to show it.
-                return;
+                return false;
                 //yMax = timelineHeight;
             }
 
-            if (note.startTimeMs > now) {
-                long range = topMs - note.startTimeMs;
+            if (startTimeMs > now) {
+                long range = topMs - startTimeMs;
                 yMin = range / (double) duration * timelineHeight;
             } else {
                 isNoteActive = true;
@@ -153,22 +224,23 @@ public class TimelineSparks implements Renderable {
             }
         }
 
-        boolean isKeyActive = state.getActiveKeyCodes().contains(note.key.key);
+        boolean isKeyActive = state.isActive(key);
         boolean notePressed = isNoteActive && isKeyActive;
 
         Color fillColor;
-        switch(note.track) {
+        switch(track) {
             case 1:
                 fillColor = notePressed ? Color.ORANGE : Color.YELLOW;
                 break;
             case 2:
                 fillColor = notePressed ? Color.VIOLET : Color.BLUE;
                 break;
-            case 99:
-                fillColor = Color.RED;
-                break;
             default:
-                fillColor = Color.ORANGE;
+                if (track >= Constants.PLAYER_TRACK) {
+                    fillColor = PLAYER_COLORS[(track - Constants.PLAYER_TRACK) % PLAYER_COLORS.length];
+                } else {
+                    fillColor = Color.ORANGE;
+                }
                 break;
         };
         gc.setFill(fillColor);
@@ -178,5 +250,7 @@ public class TimelineSparks implements Renderable {
                 yMin,
                 Math.min(xMax - xMin, w),
                 Math.min(yMax - yMin, timelineHeight));
+
+        return true;
     }
 }
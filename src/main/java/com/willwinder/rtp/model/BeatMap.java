@@ -0,0 +1,121 @@
+package com.willwinder.rtp.model;
+
+import com.willwinder.rtp.util.MetaUtils;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The time signatures of a song, positioned in quarter notes so the beat grid follows BPMParams like BPMLines.
+ *
+ * Each time signature starts a segment. Beats are counted from the start of their segment, and the first segment
+ * is extended backwards so the count-in before the song lines up with it.
+ */
+public class BeatMap {
+    private static final int META_TIME_SIGNATURE = 0x58;
+
+    // Parallel arrays, one entry per segment sorted by start.
+    private final double[] startQuarters;
+    private final int[] beatsPerBar;
+    private final double[] beatQuarters;
+
+    /**
+     * A map with a single time signature.
+     * @param numerator   beats per bar.
+     * @param denominator note value of a beat, 4 for quarter notes.
+     */
+    public BeatMap(int numerator, int denominator) {
+        this(new double[]{0}, new int[]{numerator}, new double[]{4.0 / denominator});
+    }
+
+    private BeatMap(double[] startQuarters, int[] beatsPerBar, double[] beatQuarters) {
+        this.startQuarters = startQuarters;
+        this.beatsPerBar = beatsPerBar;
+        this.beatQuarters = beatQuarters;
+    }
+
+    /**
+     * Read the time signature meta events of every track, a song without any is in 4/4.
+     */
+    public static BeatMap fromSequence(Sequence sequence) {
+        double ppqn = sequence.getDivisionType() == Sequence.PPQ ? sequence.getResolution() : sequence.getDivisionType();
+
+        // Later tracks win if two tracks change the signature at the same tick.
+        TreeMap<Long, MetaUtils.TimeSignatureData> changes = new TreeMap<>();
+        for (Track track : sequence.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent event = track.get(i);
+                if (event.getMessage() instanceof MetaMessage) {
+                    MetaMessage meta = (MetaMessage) event.getMessage();
+                    if (meta.getType() == META_TIME_SIGNATURE && meta.getData().length >= 4) {
+                        changes.put(event.getTick(), new MetaUtils.TimeSignatureData(meta.getData()));
+                    }
+                }
+            }
+        }
+        if (changes.isEmpty() || changes.firstKey() > 0) {
+            changes.put(0L, null);
+        }
+
+        int n = changes.size();
+        double[] starts = new double[n];
+        int[] beats = new int[n];
+        double[] lengths = new double[n];
+        int i = 0;
+        for (Map.Entry<Long, MetaUtils.TimeSignatureData> e : changes.entrySet()) {
+            MetaUtils.TimeSignatureData ts = e.getValue();
+            starts[i] = e.getKey() / ppqn;
+            beats[i] = ts == null || ts.numerator <= 0 ? 4 : ts.numerator;
+            lengths[i] = ts == null || ts.denominator <= 0 ? 1.0 : 4.0 / ts.denominator;
+            i++;
+        }
+        return new BeatMap(starts, beats, lengths);
+    }
+
+    /**
+     * @return the segment which contains a position, the first segment for anything before it.
+     */
+    public int segmentAt(double quarters) {
+        int lo = 0;
+        int hi = startQuarters.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (startQuarters[mid] <= quarters) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    public int getSegmentCount() {
+        return startQuarters.length;
+    }
+
+    public double getStartQuarters(int segment) {
+        return startQuarters[segment];
+    }
+
+    /**
+     * @return where the next segment starts, or infinity for the last one.
+     */
+    public double getEndQuarters(int segment) {
+        return segment + 1 < startQuarters.length ? startQuarters[segment + 1] : Double.POSITIVE_INFINITY;
+    }
+
+    public int getBeatsPerBar(int segment) {
+        return beatsPerBar[segment];
+    }
+
+    /**
+     * @return length of one beat in quarter notes, 0.5 in 6/8.
+     */
+    public double getBeatQuarters(int segment) {
+        return beatQuarters[segment];
+    }
+}
@@ -0,0 +1,105 @@
+package com.willwinder.rtp.model;
+
+import com.willwinder.rtp.util.NoteEvent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * KeyboardState backed by a 128 bit atomic bitset, with the velocity and timestamp of each key stored in
+ * parallel arrays. Readers never lock or allocate.
+ *
+ * Several devices can hold the same key, so noteEvent remembers which sources hold each key and the key is only
+ * released once none do. Sources past 63 share the last bit.
+ */
+public class BitSetKeyboardState implements KeyboardState {
+    private static final int NUM_KEYS = 128;
+
+    private final AtomicLongArray active = new AtomicLongArray(2);
+    private final AtomicLong version = new AtomicLong(0);
+
+    // Written before the key's bit is flipped, so a reader who sees the bit also sees these.
+    private final int[] velocities = new int[NUM_KEYS];
+    private final long[] timestampsMs = new long[NUM_KEYS];
+    // Bit per source holding each key. noteEvent is only called from one thread.
+    private final long[] holders = new long[NUM_KEYS];
+
+    /**
+     * Update the state from a note event, called by the keyboard state consumer of the note event ring.
+     */
+    public void noteEvent(NoteEvent event) {
+        int key = event.key.key;
+        if (key < 0 || key >= NUM_KEYS) return;
+        long source = 1L << Math.min(event.source, 63);
+        if (event.key.isActive()) {
+            holders[key] |= source;
+            noteOn(key, event.velocity, event.timestampMs);
+        } else {
+            holders[key] &= ~source;
+            if (holders[key] == 0) {
+                noteOff(key, event.timestampMs);
+            }
+        }
+    }
+
+    public void noteOn(int key, int velocity, long timestampMs) {
+        if (key < 0 || key >= NUM_KEYS) return;
+        velocities[key] = velocity;
+        timestampsMs[key] = timestampMs;
+        set(key, true);
+    }
+
+    public void noteOff(int key, long timestampMs) {
+        if (key < 0 || key >= NUM_KEYS) return;
+        timestampsMs[key] = timestampMs;
+        set(key, false);
+    }
+
+    private void set(int key, boolean on) {
+        int word = key >>> 6;
+        long bit = 1L << key;
+        long prev, next;
+        do {
+            prev = active.get(word);
+            next = on ? prev | bit : prev & ~bit;
+        } while (!active.compareAndSet(word, prev, next));
+        version.incrementAndGet();
+    }
+
+    @Override
+    public boolean isActive(int key) {
+        if (key < 0 || key >= NUM_KEYS) return false;
+        return (active.get(key >>> 6) & (1L << key)) != 0;
+    }
+
+    @Override
+    public int getVelocity(int key) {
+        return velocities[key];
+    }
+
+    @Override
+    public long getTimestampMs(int key) {
+        return timestampsMs[key];
+    }
+
+    @Override
+    public int getActiveKeyCount() {
+        return Long.bitCount(active.get(0)) + Long.bitCount(active.get(1));
+    }
+
+    @Override
+    public long snapshot(long[] mask) {
+        long v;
+        do {
+            v = version.get();
+            mask[0] = active.get(0);
+            mask[1] = active.get(1);
+        } while (v != version.get());
+        return v;
+    }
+
+    @Override
+    public long getVersion() {
+        return version.get();
+    }
+}
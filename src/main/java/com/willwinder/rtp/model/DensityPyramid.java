@@ -0,0 +1,240 @@
+package com.willwinder.rtp.model;
+
+import java.util.Arrays;
+
+/**
+ * How much of each key's time is covered by notes, at several resolutions. Level 0 splits time into bins of the base
+ * width, every level above doubles it. Each bin holds the fraction of the bin covered by notes on that key, more than
+ * 1 where notes overlap. A zoomed out timeline draws the bins of the level closest to one pixel, so the work is
+ * bounded by the pixels on screen instead of the notes.
+ *
+ * Times are in whatever unit the notes use: ticks for a song pyramid, built once with of, and milliseconds for live
+ * notes. A live pyramid keeps a fixed number of bins per level as a ring, bins older than the ring are forgotten, so
+ * it can follow the player forever. Notes are added when they end and removed when they're evicted, by one writer.
+ * Readers don't lock, a bin read during an update is shaded wrong for one frame.
+ */
+public class DensityPyramid {
+    // Song bins start at this fraction of a quarter note.
+    private static final int SONG_BINS_PER_QUARTER = 8;
+
+    private final long binWidth;
+    private final int levels;
+    // Keys kept, a song only needs the range it plays.
+    private final int minKey;
+    private final int keys;
+    // Bins kept per level.
+    private final int[] capacity;
+    // [level][(key - minKey) * capacity + slot]
+    private final float[][] cover;
+    // [level][slot] the bin a slot holds.
+    private final long[][] tag;
+    private final long end;
+    private final boolean ring;
+
+    /**
+     * A ring for live notes.
+     * @param binWidth width of a level 0 bin.
+     * @param levels number of levels.
+     * @param binsPerLevel how many of the newest bins each level keeps.
+     */
+    public DensityPyramid(long binWidth, int levels, int binsPerLevel) {
+        this(binWidth, filled(levels, binsPerLevel), Long.MAX_VALUE, 0, 128, true);
+        for (long[] t : tag) {
+            Arrays.fill(t, Long.MIN_VALUE);
+        }
+    }
+
+    private DensityPyramid(long binWidth, int[] capacity, long end, int minKey, int keys, boolean ring) {
+        this.binWidth = binWidth;
+        this.levels = capacity.length;
+        this.minKey = minKey;
+        this.keys = keys;
+        this.capacity = capacity;
+        this.end = end;
+        this.ring = ring;
+        this.cover = new float[levels][];
+        this.tag = new long[levels][];
+        for (int level = 0; level < levels; level++) {
+            cover[level] = new float[keys * capacity[level]];
+            tag[level] = new long[capacity[level]];
+            for (int slot = 0; slot < capacity[level]; slot++) {
+                tag[level][slot] = slot;
+            }
+        }
+    }
+
+    /**
+     * Build the pyramid of a song, in ticks. Notes which never end run to the end of the song.
+     */
+    public static DensityPyramid of(NoteStore notes) {
+        long end = 1;
+        int minKey = 127;
+        int maxKey = 0;
+        for (int i = 0; i < notes.size(); i++) {
+            end = Math.max(end, Math.max(notes.getStartTick(i), notes.getEndTick(i)) + 1);
+            minKey = Math.min(minKey, notes.getKey(i));
+            maxKey = Math.max(maxKey, notes.getKey(i));
+        }
+        if (minKey > maxKey) {
+            minKey = maxKey = 0;
+        }
+
+        long binWidth = Math.max(1, (long) (notes.getTempoMap().getResolution() / SONG_BINS_PER_QUARTER));
+        int levels = 1;
+        while ((end - 1) / (binWidth << (levels - 1)) > 0) {
+            levels++;
+        }
+        int[] capacity = new int[levels];
+        for (int level = 0; level < levels; level++) {
+            capacity[level] = (int) ((end - 1) / (binWidth << level)) + 1;
+        }
+
+        int keys = maxKey - minKey + 1;
+        DensityPyramid pyramid = new DensityPyramid(binWidth, capacity, end, minKey, keys, false);
+
+        // Level 0 from the notes. The bins a note covers completely are summed as a difference, so a long note costs
+        // the same as a short one.
+        int cap = capacity[0];
+        float[] level0 = pyramid.cover[0];
+        float[] full = new float[keys * (cap + 1)];
+        for (int i = 0; i < notes.size(); i++) {
+            int k = notes.getKey(i) - minKey;
+            long start = notes.getStartTick(i);
+            long noteEnd = Math.max(start + 1, notes.getEndTick(i) < 0 ? end : notes.getEndTick(i));
+            int first = (int) (start / binWidth);
+            int last = (int) ((noteEnd - 1) / binWidth);
+            if (first == last) {
+                level0[k * cap + first] += (noteEnd - start) / (float) binWidth;
+                continue;
+            }
+            level0[k * cap + first] += ((first + 1) * binWidth - start) / (float) binWidth;
+            level0[k * cap + last] += (noteEnd - last * binWidth) / (float) binWidth;
+            full[k * (cap + 1) + first + 1] += 1;
+            full[k * (cap + 1) + last] -= 1;
+        }
+        for (int k = 0; k < keys; k++) {
+            float covered = 0;
+            for (int bin = 0; bin < cap; bin++) {
+                covered += full[k * (cap + 1) + bin];
+                level0[k * cap + bin] += covered;
+            }
+        }
+
+        // Every level above covers two bins of the one below.
+        for (int level = 1; level < levels; level++) {
+            float[] below = pyramid.cover[level - 1];
+            float[] c = pyramid.cover[level];
+            int belowCap = capacity[level - 1];
+            cap = capacity[level];
+            for (int k = 0; k < keys; k++) {
+                for (int bin = 0; bin < cap; bin++) {
+                    float right = 2 * bin + 1 < belowCap ? below[k * belowCap + 2 * bin + 1] : 0;
+                    c[k * cap + bin] = (below[k * belowCap + 2 * bin] + right) / 2;
+                }
+            }
+        }
+        return pyramid;
+    }
+
+    private static int[] filled(int levels, int bins) {
+        int[] capacity = new int[levels];
+        Arrays.fill(capacity, bins);
+        return capacity;
+    }
+
+    /**
+     * Add a note covering [start, end).
+     */
+    public void add(int key, long start, long end) {
+        update(key, start, end, 1);
+    }
+
+    /**
+     * Take away a note which was added, once it is no longer wanted.
+     */
+    public void remove(int key, long start, long end) {
+        update(key, start, end, -1);
+    }
+
+    private void update(int key, long start, long end, int sign) {
+        int k0 = key - minKey;
+        if (k0 < 0 || k0 >= keys) return;
+        end = Math.max(end, start + 1);
+        for (int level = 0; level < levels; level++) {
+            long width = binWidth << level;
+            int cap = capacity[level];
+            long last = Math.floorDiv(end - 1, width);
+            // Only the newest bins of a ring are kept.
+            long first = Math.max(Math.floorDiv(start, width), last - cap + 1);
+            float[] c = cover[level];
+            long[] t = tag[level];
+            for (long bin = first; bin <= last; bin++) {
+                int slot = (int) Math.floorMod(bin, (long) cap);
+                if (t[slot] != bin) {
+                    // Older than the bin in the slot, or a removal of a bin already forgotten.
+                    if (t[slot] > bin || sign < 0) continue;
+                    for (int k = 0; k < keys; k++) {
+                        c[k * cap + slot] = 0;
+                    }
+                    t[slot] = bin;
+                }
+                long covered = Math.min(end, (bin + 1) * width) - Math.max(start, bin * width);
+                int i = k0 * cap + slot;
+                c[i] = Math.max(0, c[i] + sign * covered / (float) width);
+            }
+        }
+    }
+
+    /**
+     * Forget every note.
+     */
+    public void clear() {
+        for (int level = 0; level < levels; level++) {
+            Arrays.fill(cover[level], 0);
+            Arrays.fill(tag[level], Long.MIN_VALUE);
+        }
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public long getBinWidth(int level) {
+        return binWidth << level;
+    }
+
+    /**
+     * @return the end of a song, past its last note.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * @param unitsPerPixel time covered by one pixel.
+     * @param visibleUnits time covered by the whole view.
+     * @return the finest level whose bins are at least a pixel, and for a ring still keeps every bin in view.
+     */
+    public int levelFor(double unitsPerPixel, double visibleUnits) {
+        for (int level = 0; level < levels; level++) {
+            long width = binWidth << level;
+            if (width >= unitsPerPixel && (!ring || visibleUnits / width + 2 <= capacity[level])) {
+                return level;
+            }
+        }
+        return levels - 1;
+    }
+
+    /**
+     * @return fraction of the bin covered by the key, 0 if the bin isn't kept.
+     */
+    public float get(int level, int key, long bin) {
+        int k0 = key - minKey;
+        int cap = capacity[level];
+        int slot = (int) Math.floorMod(bin, (long) cap);
+        if (k0 < 0 || k0 >= keys || tag[level][slot] != bin) {
+            return 0;
+        }
+        return cover[level][k0 * cap + slot];
+    }
+}
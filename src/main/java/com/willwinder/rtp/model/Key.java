@@ -4,23 +4,52 @@ import com.willwinder.rtp.util.Util;
 
 import javax.sound.midi.ShortMessage;
 
+/**
+ * Identity of a note message, everything except the velocity. Keys are interned flyweights, use Key.of to get
+ * one and carry the velocity separately.
+ */
 public class Key {
     public final Note note;
     public final int octave;
     public final int command;
     public final int status;
     public final int key;
-    public final int velocity;
     public final int hand;
+    private final boolean active;
+
+    // Indexed by [status - NOTE_OFF][key][active], covers NOTE_OFF and NOTE_ON on all 16 channels.
+    private static final Key[][][] INTERNED = new Key[32][128][2];
+    static {
+        for (int status = ShortMessage.NOTE_OFF; status < ShortMessage.NOTE_ON + 16; status++) {
+            int command = status & 0xF0;
+            for (int key = 0; key < 128; key++) {
+                Note note = Util.dataToNote(key);
+                int octave = Util.dataToOctave(key);
+                INTERNED[status - ShortMessage.NOTE_OFF][key][0] = new Key(note, octave, command, status, key, 0, false);
+                INTERNED[status - ShortMessage.NOTE_OFF][key][1] = new Key(note, octave, command, status, key, 0, command == ShortMessage.NOTE_ON);
+            }
+        }
+    }
 
-    public Key(Note note, int octave, int command, int status, int key, int velocity, int hand) {
+    private Key(Note note, int octave, int command, int status, int key, int hand, boolean active) {
         this.note = note;
         this.octave = octave;
         this.command = command;
         this.status = status;
         this.key = key;
-        this.velocity = velocity;
         this.hand = hand;
+        this.active = active;
+    }
+
+    /**
+     * Look up the interned key for a note message.
+     * @param status NOTE_ON or NOTE_OFF status byte, including the channel.
+     * @param key MIDI key code 0-127.
+     * @param velocity message velocity, a NOTE_ON with velocity 0 is a release.
+     * @return the shared Key instance.
+     */
+    public static Key of(int status, int key, int velocity) {
+        return INTERNED[status - ShortMessage.NOTE_OFF][key][velocity != 0 ? 1 : 0];
     }
 
     public enum Note {
@@ -38,10 +67,12 @@ public class Key {
         B("B");
 
         public final String name;
+        private final boolean blackKey;
         private final static Note[] values = values();
 
         Note(String name) {
             this.name = name;
+            this.blackKey = name.contains("#");
         }
 
         /**
@@ -73,7 +104,7 @@ public class Key {
          * @return true if the note is a black key, otherwise false.
          */
         public boolean isBlackKey() {
-            return this.name.contains("#");
+            return this.blackKey;
         }
 
         /**
@@ -96,12 +127,12 @@ public class Key {
             }
 
             // Next note after a sharp is a semitone up.
-            if (this.name.contains("#")) {
+            if (this.blackKey) {
                 return true;
             }
             // If not a sharp, only a semitone if the next note is.
             if(this.ordinal() + 1 < values.length) {
-                return values[this.ordinal() + 1].name.contains("#");
+                return values[this.ordinal() + 1].blackKey;
             }
 
             // When wrapping octaves from B -> C, it is a full tone, not a semitone.
@@ -109,8 +140,11 @@ public class Key {
         }
     }
 
+    /**
+     * @return true for a NOTE_ON with a non-zero velocity.
+     */
     public boolean isActive() {
-        return this.command == ShortMessage.NOTE_ON && this.velocity != 0;
+        return this.active;
     }
 
     @Override
@@ -126,8 +160,6 @@ public class Key {
                 " --  command: " +
                 command +
                 ", status: " +
-                status +
-                ", velocity: " +
-                velocity;
+                status;
     }
 }
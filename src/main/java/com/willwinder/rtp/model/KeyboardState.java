@@ -1,23 +1,52 @@
 package com.willwinder.rtp.model;
 
-import com.willwinder.rtp.model.Key;
-
-import java.util.Map;
-import java.util.Set;
-
 /**
  * Active key cache interface.
+ *
+ * Keys are MIDI key codes 0-127. None of these calls allocate, so they are safe to use once per note per frame.
  */
 public interface KeyboardState {
     /**
-     * Get a collection of active keys being pressed on a MIDI transmitter.
-     * @return collection of Key objects.
+     * Whether or not a key is currently being pressed on a MIDI transmitter.
+     * @param key MIDI key code.
+     * @return true if the key is down.
+     */
+    boolean isActive(int key);
+
+    /**
+     * @param key MIDI key code.
+     * @return velocity of the last press of the key, only meaningful while it is active.
+     */
+    int getVelocity(int key);
+
+    /**
+     * @param key MIDI key code.
+     * @return timestamp in milliseconds of the last press or release of the key.
+     */
+    long getTimestampMs(int key);
+
+    /**
+     * @return number of keys which are currently active.
+     */
+    int getActiveKeyCount();
+
+    /**
+     * Copy the active keys into a 128 bit mask, key N is bit (N % 64) of mask[N / 64].
+     * @param mask array with at least two elements.
+     * @return the version of the state which was copied.
+     */
+    long snapshot(long[] mask);
+
+    /**
+     * @return a counter which is incremented whenever a key changes.
      */
-    Map<Integer, Key> getActiveKeys();
+    long getVersion();
 
     /**
-     * Get a collection of active keys being pressed on a MIDI transmitter.
-     * @return collection of Key codes.
+     * @param version a value previously returned by getVersion or snapshot.
+     * @return true if any key changed after that version.
      */
-    Set<Integer> getActiveKeyCodes();
+    default boolean changedSince(long version) {
+        return getVersion() != version;
+    }
 }
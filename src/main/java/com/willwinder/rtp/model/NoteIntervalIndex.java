@@ -0,0 +1,63 @@
+package com.willwinder.rtp.model;
+
+/**
+ * Finds the notes overlapping a time window without looking at the whole song or session.
+ *
+ * Notes are kept sorted by start time next to a running maximum of their end times. The notes starting before the
+ * end of the window are a prefix, found by binary search on the starts. The running maximum only grows, so the first
+ * position whose running maximum reaches into the window is found by binary search too, and nothing before it can
+ * overlap the window. A query scans from there to the end of the prefix: O(log n + k).
+ *
+ * The index is the searches over arrays owned by the caller, which fills them in start order with extend. Nothing
+ * here writes to an entry once it is set, so the arrays can be built once for a song or shared with readers in an
+ * immutable snapshot.
+ */
+public final class NoteIntervalIndex {
+    private NoteIntervalIndex() {
+    }
+
+    /**
+     * Set the running maximum at a position, from the one before it.
+     * @param end the note's end time, Long.MIN_VALUE to leave a note out of the running maximum.
+     * @return the running maximum at i.
+     */
+    public static long extend(long[] maxEnd, int i, long end) {
+        long max = i > 0 ? Math.max(maxEnd[i - 1], end) : end;
+        maxEnd[i] = max;
+        return max;
+    }
+
+    /**
+     * @return the first position in [from, to) whose start is at or after time, or to.
+     */
+    public static int firstStartingAt(long[] start, int from, int to, long time) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (start[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the first position in [from, to) whose running maximum end is after time, or to.
+     */
+    public static int firstEndingAfter(long[] maxEnd, int from, int to, long time) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (maxEnd[mid] > time) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+}
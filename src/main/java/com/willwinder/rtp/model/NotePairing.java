@@ -0,0 +1,180 @@
+package com.willwinder.rtp.model;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Matches releases to the notes they end. Open notes are kept on a stack per source, channel and key, so the same
+ * pitch held on two channels or from two devices ends correctly, and opening or closing a note is O(1).
+ *
+ * A NOTE_ON with velocity 0 is already an inactive Key, callers close a note for it like for a NOTE_OFF. If a key
+ * is struck again before it is released the newest note is ended first.
+ *
+ * The stacks are in Ints, which pairs notes identified by an int index without boxing them. The generic pairing keeps
+ * its notes in an array and pairs their indexes in it with an Ints.
+ *
+ * @param <T> whatever identifies an open note.
+ */
+public class NotePairing<T> {
+    private static final int SLOTS = 16 * 128;
+
+    private final Ints handles = new Ints();
+    // Open notes by handle, and the handles free for reuse.
+    private Object[] notes = new Object[16];
+    private int[] free = new int[16];
+    private int freeCount = 0;
+    private int used = 0;
+
+    /**
+     * @param source device or track the note came from, 0 or more.
+     * @param channel MIDI channel 0-15.
+     */
+    public void open(int source, int channel, int key, T note) {
+        int handle;
+        if (freeCount > 0) {
+            handle = free[--freeCount];
+        } else {
+            if (used == notes.length) {
+                notes = Arrays.copyOf(notes, used * 2);
+            }
+            handle = used++;
+        }
+        notes[handle] = note;
+        handles.open(source, channel, key, handle);
+    }
+
+    /**
+     * @return the newest open note for the source, channel and key, or null if there isn't one.
+     */
+    public T close(int source, int channel, int key) {
+        int handle = handles.close(source, channel, key);
+        return handle == Ints.NONE ? null : release(handle);
+    }
+
+    /**
+     * Close every note still open for a source, at the end of a track.
+     * @param closer called with each note.
+     */
+    public void closeAll(int source, Consumer<T> closer) {
+        handles.closeAll(source, handle -> closer.accept(release(handle)));
+    }
+
+    /**
+     * @return the number of notes which haven't been closed.
+     */
+    public int getOpenCount() {
+        return handles.getOpenCount();
+    }
+
+    public void clear() {
+        handles.clear();
+        notes = new Object[16];
+        free = new int[16];
+        freeCount = 0;
+        used = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T release(int handle) {
+        T note = (T) notes[handle];
+        notes[handle] = null;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = handle;
+        return note;
+    }
+
+    private static int slot(int channel, int key) {
+        return (channel & 0x0F) << 7 | (key & 0x7F);
+    }
+
+    /**
+     * A NotePairing of int indexes, 0 or more, kept on int stacks.
+     */
+    public static class Ints {
+        // Returned by close when there is no open note.
+        public static final int NONE = -1;
+
+        private int[][][] stacks = new int[0][][];
+        private int[][] counts = new int[0][];
+        private int openCount = 0;
+
+        /**
+         * @param source device or track the note came from, 0 or more.
+         * @param channel MIDI channel 0-15.
+         */
+        public void open(int source, int channel, int key, int note) {
+            if (source >= stacks.length) {
+                stacks = Arrays.copyOf(stacks, source + 1);
+                counts = Arrays.copyOf(counts, source + 1);
+            }
+            if (stacks[source] == null) {
+                stacks[source] = new int[SLOTS][];
+                counts[source] = new int[SLOTS];
+            }
+
+            int slot = slot(channel, key);
+            int[] stack = stacks[source][slot];
+            int depth = counts[source][slot];
+            if (stack == null) {
+                stack = stacks[source][slot] = new int[2];
+            } else if (depth == stack.length) {
+                stack = stacks[source][slot] = Arrays.copyOf(stack, depth * 2);
+            }
+            stack[depth] = note;
+            counts[source][slot] = depth + 1;
+            openCount++;
+        }
+
+        /**
+         * @return the newest open note for the source, channel and key, or NONE if there isn't one.
+         */
+        public int close(int source, int channel, int key) {
+            if (source >= stacks.length || stacks[source] == null) {
+                return NONE;
+            }
+            int slot = slot(channel, key);
+            int depth = counts[source][slot];
+            if (depth == 0) {
+                return NONE;
+            }
+            counts[source][slot] = depth - 1;
+            openCount--;
+            return stacks[source][slot][depth - 1];
+        }
+
+        /**
+         * Close every note still open for a source, at the end of a track.
+         * @param closer called with each note.
+         */
+        public void closeAll(int source, IntConsumer closer) {
+            if (source >= stacks.length || stacks[source] == null) {
+                return;
+            }
+            for (int slot = 0; slot < SLOTS; slot++) {
+                int[] stack = stacks[source][slot];
+                int depth = counts[source][slot];
+                for (int i = depth - 1; i >= 0; i--) {
+                    closer.accept(stack[i]);
+                }
+                counts[source][slot] = 0;
+                openCount -= depth;
+            }
+        }
+
+        /**
+         * @return the number of notes which haven't been closed.
+         */
+        public int getOpenCount() {
+            return openCount;
+        }
+
+        public void clear() {
+            stacks = new int[0][][];
+            counts = new int[0][];
+            openCount = 0;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.willwinder.rtp.model;
+
+import java.util.Arrays;
+
+/**
+ * The notes of a song stored as parallel primitive arrays sorted by start time, so a large song is a handful of
+ * arrays instead of an object per note.
+ *
+ * Times are stored in song ticks and converted to milliseconds through the TempoMap on every read, so a tempo change
+ * applies to the next query without rebuilding the store. Queries take milliseconds and convert them to ticks once.
+ *
+ * A store is immutable once built. Notes are read by index or with a Cursor, which walks a range of indexes and can
+ * be reused between frames. Overlap queries go through NoteIntervalIndex over the start ticks and a running maximum
+ * of the end ticks, O(log n + k), a note without an end counts as ending at infinity. One note which never ends, or a
+ * drone lasting minutes, would push the running maximum past every window, so those are kept out of it in a short
+ * list of long notes which every overlap query checks.
+ */
+public class NoteStore {
+    public static final NoteStore EMPTY = new Builder(new TempoMap(120)).build();
+    // Notes longer than this many quarter notes, or without an end, are long notes.
+    private static final int LONG_NOTE_QUARTERS = 20;
+
+    private final TempoMap tempo;
+    private final int size;
+    private final long[] startTick;
+    private final long[] endTick;
+    private final long[] maxEndTick;
+    private final long longNoteTicks;
+    private final int[] longNotes;
+    private final byte[] key;
+    private final byte[] velocity;
+    private final byte[] channel;
+    private final int[] track;
+
+    private NoteStore(TempoMap tempo, int size, long[] startTick, long[] endTick, byte[] key, byte[] velocity, byte[] channel, int[] track) {
+        this.tempo = tempo;
+        this.size = size;
+        this.startTick = startTick;
+        this.endTick = endTick;
+        this.key = key;
+        this.velocity = velocity;
+        this.channel = channel;
+        this.track = track;
+
+        this.longNoteTicks = (long) (tempo.getResolution() * LONG_NOTE_QUARTERS);
+        this.maxEndTick = new long[size];
+        int[] longs = new int[0];
+        int longCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (end(i) - startTick[i] > longNoteTicks) {
+                if (longCount == longs.length) {
+                    longs = Arrays.copyOf(longs, Math.max(8, longCount * 2));
+                }
+                longs[longCount++] = i;
+                NoteIntervalIndex.extend(maxEndTick, i, Long.MIN_VALUE);
+            } else {
+                NoteIntervalIndex.extend(maxEndTick, i, end(i));
+            }
+        }
+        this.longNotes = Arrays.copyOf(longs, longCount);
+    }
+
+    /**
+     * Collects notes in any order, build sorts them by start time.
+     */
+    public static class Builder {
+        private final TempoMap tempo;
+        private int size = 0;
+        private long[] startTick = new long[64];
+        private long[] endTick = new long[64];
+        private byte[] key = new byte[64];
+        private byte[] velocity = new byte[64];
+        private byte[] channel = new byte[64];
+        private int[] track = new int[64];
+
+        /**
+         * @param tempo converts the ticks of the song being added.
+         */
+        public Builder(TempoMap tempo) {
+            this.tempo = tempo;
+        }
+
+        /**
+         * @param endTick -1 if the end isn't known yet.
+         * @return index of the note, for setEnd.
+         */
+        public int add(long startTick, long endTick, int key, int velocity, int track, int channel) {
+            if (size == this.startTick.length) {
+                int capacity = size * 2;
+                this.startTick = Arrays.copyOf(this.startTick, capacity);
+                this.endTick = Arrays.copyOf(this.endTick, capacity);
+                this.key = Arrays.copyOf(this.key, capacity);
+                this.velocity = Arrays.copyOf(this.velocity, capacity);
+                this.channel = Arrays.copyOf(this.channel, capacity);
+                this.track = Arrays.copyOf(this.track, capacity);
+            }
+            this.startTick[size] = startTick;
+            this.endTick[size] = endTick;
+            this.key[size] = (byte) key;
+            this.velocity[size] = (byte) velocity;
+            this.channel[size] = (byte) channel;
+            this.track[size] = track;
+            return size++;
+        }
+
+        public void setEnd(int index, long endTick) {
+            this.endTick[index] = endTick;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Sort the notes by start time, notes starting together keep the order they were added in.
+         */
+        public NoteStore build() {
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            mergeSort(order, new int[size], 0, size);
+
+            long[] s = new long[size];
+            long[] e = new long[size];
+            byte[] k = new byte[size];
+            byte[] v = new byte[size];
+            byte[] c = new byte[size];
+            int[] t = new int[size];
+            for (int i = 0; i < size; i++) {
+                int from = order[i];
+                s[i] = startTick[from];
+                e[i] = endTick[from];
+                k[i] = key[from];
+                v[i] = velocity[from];
+                c[i] = channel[from];
+                t[i] = track[from];
+            }
+            return new NoteStore(tempo, size, s, e, k, v, c, t);
+        }
+
+        /**
+         * Stable sort of note indexes by start time. Tracks are each already sorted, so runs merge quickly.
+         */
+        private void mergeSort(int[] order, int[] scratch, int from, int to) {
+            if (to - from < 2) return;
+            int mid = (from + to) >>> 1;
+            mergeSort(order, scratch, from, mid);
+            mergeSort(order, scratch, mid, to);
+            if (startTick[order[mid - 1]] <= startTick[order[mid]]) return;
+
+            System.arraycopy(order, from, scratch, from, to - from);
+            int a = from;
+            int b = mid;
+            for (int i = from; i < to; i++) {
+                if (b >= to || (a < mid && startTick[scratch[a]] <= startTick[scratch[b]])) {
+                    order[i] = scratch[a++];
+                } else {
+                    order[i] = scratch[b++];
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks a range of a store. Reset it to reuse it without allocating.
+     */
+    public static class Cursor {
+        private NoteStore store = EMPTY;
+        private int from;
+        private int index;
+        private int to;
+        // Bounds in ticks, fractional because they were converted from milliseconds.
+        private double toStartTick;
+        private double afterEndTick;
+        // Position in the store's long notes. Their count means the main range is next, past it the main range is
+        // being walked.
+        private int longNote;
+        private boolean skipLongNotes;
+
+        /**
+         * @return true if there is another note, which becomes the current one.
+         */
+        public boolean next() {
+            int[] longNotes = store.longNotes;
+            while (longNote < longNotes.length) {
+                index = longNotes[longNote++];
+                if (store.startTick[index] >= toStartTick) {
+                    longNote = longNotes.length;
+                    break;
+                }
+                if (store.end(index) > afterEndTick) {
+                    return true;
+                }
+            }
+            if (longNote == longNotes.length) {
+                // Start the main range.
+                index = from - 1;
+                longNote++;
+            }
+
+            while (++index < to) {
+                if (store.startTick[index] >= toStartTick) {
+                    // Sorted, nothing later starts in time either.
+                    to = index;
+                    return false;
+                }
+                if (skipLongNotes && store.end(index) - store.startTick[index] > store.longNoteTicks) {
+                    continue;
+                }
+                if (store.end(index) > afterEndTick) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        public long startMs() {
+            return store.getStartMs(index);
+        }
+
+        /**
+         * @return end time, or -1 if the note never ended.
+         */
+        public long endMs() {
+            return store.getEndMs(index);
+        }
+
+        public long startTick() {
+            return store.startTick[index];
+        }
+
+        public long endTick() {
+            return store.endTick[index];
+        }
+
+        public int key() {
+            return store.key[index];
+        }
+
+        public int velocity() {
+            return store.velocity[index];
+        }
+
+        public int channel() {
+            return store.channel[index];
+        }
+
+        public int track() {
+            return store.track[index];
+        }
+
+        private Cursor reset(NoteStore store, int from, int to, double toStartTick, double afterEndTick, boolean longNotesFirst) {
+            this.store = store;
+            this.from = from;
+            this.index = from - 1;
+            this.to = to;
+            this.toStartTick = toStartTick;
+            this.afterEndTick = afterEndTick;
+            this.longNote = longNotesFirst ? 0 : store.longNotes.length;
+            this.skipLongNotes = longNotesFirst;
+            return this;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the tempo the notes are converted with.
+     */
+    public TempoMap getTempoMap() {
+        return tempo;
+    }
+
+    public long getStartTick(int i) {
+        return startTick[i];
+    }
+
+    /**
+     * @return end tick, or -1 if the note never ended.
+     */
+    public long getEndTick(int i) {
+        return endTick[i];
+    }
+
+    public long getStartMs(int i) {
+        return (long) tempo.toMs(startTick[i]);
+    }
+
+    /**
+     * @return end time, or -1 if the note never ended.
+     */
+    public long getEndMs(int i) {
+        return endTick[i] < 0 ? -1 : (long) tempo.toMs(endTick[i]);
+    }
+
+    public int getKey(int i) {
+        return key[i];
+    }
+
+    public int getVelocity(int i) {
+        return velocity[i];
+    }
+
+    public int getChannel(int i) {
+        return channel[i];
+    }
+
+    public int getTrack(int i) {
+        return track[i];
+    }
+
+    /**
+     * @return index of the first note starting at or after a time, or size.
+     */
+    public int firstStartingAt(long ms) {
+        // Ticks are whole, so starting before a fractional tick is starting before the next whole one.
+        return NoteIntervalIndex.firstStartingAt(startTick, 0, size, (long) Math.ceil(tempo.toTicks(ms)));
+    }
+
+    /**
+     * Point a cursor at the notes with indexes in [from, to).
+     */
+    public Cursor range(int from, int to, Cursor cursor) {
+        return cursor.reset(this, from, to, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, false);
+    }
+
+    /**
+     * Point a cursor at the notes which start before toMs and end after fromMs, or never end. Long notes come first,
+     * then the rest in start order.
+     */
+    public Cursor overlapping(long fromMs, long toMs, Cursor cursor) {
+        double fromTick = tempo.toTicks(fromMs);
+        double toTick = tempo.toTicks(toMs);
+        int first = NoteIntervalIndex.firstEndingAfter(maxEndTick, 0, size, (long) Math.floor(fromTick));
+        return cursor.reset(this, first, size, toTick, fromTick, true);
+    }
+
+    private long end(int i) {
+        return endTick[i] < 0 ? Long.MAX_VALUE : endTick[i];
+    }
+}
@@ -0,0 +1,65 @@
+package com.willwinder.rtp.model;
+
+/**
+ * Converts between song ticks and timeline milliseconds. Songs are stored in ticks and converted with the current
+ * tempo on every query, so changing the BPM takes effect on the next frame without reloading the song.
+ *
+ * The timeline plays songs at the BPM setting rather than their own tempo events, so this is one linear function.
+ * Conversions are O(1) and safe from any thread, the tempo and resolution are published together.
+ */
+public class TempoMap {
+    private static final int DEFAULT_RESOLUTION = 480;
+
+    private static class Scale {
+        final int bpm;
+        final double ticksPerQuarter;
+        final double msPerTick;
+
+        Scale(int bpm, double ticksPerQuarter) {
+            this.bpm = bpm;
+            this.ticksPerQuarter = ticksPerQuarter;
+            this.msPerTick = 60000.0 / bpm / ticksPerQuarter;
+        }
+    }
+
+    private volatile Scale scale;
+
+    public TempoMap(int bpm) {
+        this.scale = new Scale(bpm, DEFAULT_RESOLUTION);
+    }
+
+    public void setBpm(int bpm) {
+        this.scale = new Scale(bpm, scale.ticksPerQuarter);
+    }
+
+    /**
+     * @param ticksPerQuarter resolution of the loaded song.
+     */
+    public void setResolution(double ticksPerQuarter) {
+        this.scale = new Scale(scale.bpm, ticksPerQuarter);
+    }
+
+    public int getBpm() {
+        return scale.bpm;
+    }
+
+    public double getResolution() {
+        return scale.ticksPerQuarter;
+    }
+
+    public double getMsPerTick() {
+        return scale.msPerTick;
+    }
+
+    public double getMsPerQuarter() {
+        return 60000.0 / scale.bpm;
+    }
+
+    public double toMs(double ticks) {
+        return ticks * scale.msPerTick;
+    }
+
+    public double toTicks(double ms) {
+        return ms / scale.msPerTick;
+    }
+}
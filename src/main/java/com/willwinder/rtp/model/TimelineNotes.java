@@ -1,93 +1,326 @@
 package com.willwinder.rtp.model;
 
-import com.google.common.eventbus.Subscribe;
 import com.willwinder.rtp.util.NoteEvent;
 
 import java.util.*;
+import java.util.function.Consumer;
 
-public class TimelineNotes implements Iterable<List<TimelineNotes.TimelineNote>> {
-    // Using a hashmap to make updates more efficient.
-    // Consumers just know that it is a collection of lists of timeline notes.
-    private final HashMap<Integer, List<TimelineNotes.TimelineNote>> notes;
-
-    private final List<TimelineNotes.TimelineNote> activeNotes;
-
-    @Override
-    public Iterator<List<TimelineNote>> iterator() {
-        return notes.values().iterator();
-    }
+/**
+ * Notes played live, published to the renderers as immutable snapshots.
+ *
+ * One thread writes with noteEvent. Notes are appended to an array and every change publishes a Snapshot, the
+ * range of the array holding the current notes, through a volatile field. Published slots are never written again:
+ * new notes go after them and evicting only moves the start of the next range. So readers take a snapshot once per
+ * frame without locking, and the writer never waits for a reader. When the array fills up the current notes are
+ * copied into a new one, readers still holding the old array keep a consistent view.
+ *
+ * Live notes can be given a retention policy: once a note has ended more than retentionMs before the newest note,
+ * or there are more than maxNotes, the oldest notes are evicted. Notes arrive in time order and stay in it, so
+ * eviction only looks at the front and each note is evicted once, amortized O(1) per note. Notes which are still
+ * held are never evicted and never moved: the front stops at the oldest held note, and ended notes stuck behind it
+ * are dropped when the array is next copied.
+ *
+ * Queries go through a NoteIntervalIndex over the start times and the running maximum of the end times. The writer
+ * extends the running maximum up to the oldest held note, whose end is still unknown, and every note from there on
+ * is a candidate. Notes only end once, so each entry is written once and never changes after it is published.
+ *
+ * Ended notes are also kept in a DensityPyramid, for drawing a zoomed out timeline without visiting every note.
+ */
+public class TimelineNotes {
+    private static final int INITIAL_CAPACITY = 64;
+    // Density bins start at 32ms and double up to about two minutes, each level keeping the newest 512.
+    private static final long DENSITY_BIN_MS = 32;
+    private static final int DENSITY_LEVELS = 13;
+    private static final int DENSITY_BINS = 512;
 
     public static class TimelineNote {
         public final long startTimeMs;
-        // Not final because the end time is updated later.
-        public long endTimeMs;
+        // Not final because the end time is updated later, while readers may be looking at the note.
+        public volatile long endTimeMs;
         public final boolean sustain;
         public final int track;
         public final Key key;
+        public final int velocity;
+        // System.nanoTime when a live note was received, cleared once the note has been drawn.
+        public long receiveNanos = 0;
 
-        public TimelineNote(long startTime, long endTime, boolean sustain, int track, Key key) {
+        public TimelineNote(long startTime, long endTime, boolean sustain, int track, Key key, int velocity) {
             this.startTimeMs = startTime;
             this.endTimeMs = endTime;
             this.sustain = sustain;
             this.track = track;
             this.key = key;
+            this.velocity = velocity;
         }
     }
 
+    /**
+     * The notes at one moment, in the order they started.
+     */
+    public static class Snapshot implements Iterable<TimelineNote> {
+        private static final Snapshot EMPTY = new Snapshot(new TimelineNote[0], new long[0], new long[0], 0, 0, 0, 0);
+
+        // Increases with every change.
+        public final long version;
+        private final TimelineNote[] notes;
+        private final long[] start;
+        // Greatest end time of notes[0..i], for i before settled.
+        private final long[] maxEnd;
+        private final int from;
+        private final int to;
+        // The oldest held note, every note before it has ended.
+        private final int settled;
+
+        private Snapshot(TimelineNote[] notes, long[] start, long[] maxEnd, int from, int to, int settled, long version) {
+            this.notes = notes;
+            this.start = start;
+            this.maxEnd = maxEnd;
+            this.from = from;
+            this.to = to;
+            this.settled = settled;
+            this.version = version;
+        }
+
+        public int size() {
+            return to - from;
+        }
+
+        public TimelineNote get(int i) {
+            return notes[from + i];
+        }
+
+        /**
+         * Collect the notes which start before toMs and end after fromMs, or haven't ended yet.
+         * @param out cleared and filled with the notes, in the order they started.
+         */
+        public void query(long fromMs, long toMs, List<TimelineNote> out) {
+            out.clear();
+            int end = NoteIntervalIndex.firstStartingAt(start, from, to, toMs);
+            // Every note from the oldest held note on could end after fromMs.
+            int first = NoteIntervalIndex.firstEndingAfter(maxEnd, from, Math.min(settled, end), fromMs);
+            for (int i = first; i < end; i++) {
+                long noteEnd = notes[i].endTimeMs;
+                if (noteEnd < 0 || noteEnd > fromMs) {
+                    out.add(notes[i]);
+                }
+            }
+        }
+
+        @Override
+        public Iterator<TimelineNote> iterator() {
+            return new Iterator<>() {
+                private int i = from;
+
+                @Override
+                public boolean hasNext() {
+                    return i < to;
+                }
+
+                @Override
+                public TimelineNote next() {
+                    if (i >= to) throw new NoSuchElementException();
+                    return notes[i++];
+                }
+            };
+        }
+    }
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    // Writer only.
+    private TimelineNote[] log = new TimelineNote[INITIAL_CAPACITY];
+    private long[] start = new long[INITIAL_CAPACITY];
+    private long[] maxEnd = new long[INITIAL_CAPACITY];
+    private int head = 0;
+    private int tail = 0;
+    private int settled = 0;
+    private long version = 0;
+    // Held notes by source, channel and key, a release ends the matching one.
+    private final NotePairing<TimelineNote> held = new NotePairing<>();
+    private final DensityPyramid density = new DensityPyramid(DENSITY_BIN_MS, DENSITY_LEVELS, DENSITY_BINS);
+
+    private final int maxNotes;
+    private volatile long retentionMs = 0;
+    private volatile Consumer<TimelineNote> evictionSink = null;
+    private volatile long evictedCount = 0;
+
+    /**
+     * Notes are kept until cleanup.
+     */
     public TimelineNotes() {
-        notes = new HashMap<>();
-        activeNotes = new ArrayList<>();
+        this(0);
     }
 
-    public ArrayList<TimelineNote> getSortedNotesArray() {
-        var arr = new ArrayList<TimelineNote>();
-        for (var noteList : this) {
-            arr.addAll(noteList);
-        }
-        arr.sort(Comparator.comparingLong(o -> o.startTimeMs));
-        return arr;
+    /**
+     * @param maxNotes most notes to keep, 0 for no limit.
+     */
+    public TimelineNotes(int maxNotes) {
+        this.maxNotes = maxNotes;
     }
 
-    public List<TimelineNote> getActiveNotes() {
-        return activeNotes;
+    /**
+     * @param retentionMs how long to keep notes after they end, relative to the newest note. 0 keeps them.
+     */
+    public void setRetentionMs(long retentionMs) {
+        this.retentionMs = retentionMs;
+    }
+
+    /**
+     * Receives every evicted note, for recording. Called on the writer thread, so it should be quick.
+     */
+    public void setEvictionSink(Consumer<TimelineNote> evictionSink) {
+        this.evictionSink = evictionSink;
+    }
+
+    public long getEvictedCount() {
+        return evictedCount;
     }
 
     /**
-     * Used to notify the timeline of note begin and end events.
+     * The latest notes, wait-free. Take one per frame and use it for everything drawn in that frame.
      */
-    @Subscribe
-    synchronized public void noteEvent(NoteEvent event) {
-        long now = System.currentTimeMillis();
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    public int size() {
+        return snapshot.size();
+    }
+
+    /**
+     * Ended notes by key and time, in milliseconds. Held notes are only in the snapshots.
+     */
+    public DensityPyramid getDensity() {
+        return density;
+    }
+
+    /**
+     * Used to notify the timeline of note begin and end events. Only call from one thread at a time.
+     */
+    public void noteEvent(NoteEvent event) {
         // Add a new spark on press.
         if (event.key.isActive()) {
-            TimelineNote note = new TimelineNote(event.timestampMs, -1, false, event.track, event.key);
-            notes.computeIfAbsent(event.key.key, k -> new ArrayList<>())
-                    .add(note);
-            this.activeNotes.add(note);
+            TimelineNote note = new TimelineNote(event.timestampMs, -1, false, event.track, event.key, event.velocity);
+            note.receiveNanos = event.receiveNanos;
+            append(note);
+            held.open(event.source, event.key.status & 0x0F, event.key.key, note);
+            evict(event.timestampMs - retentionMs);
         }
-        // Set end time on release.
+        // Set end time on release, a NOTE_ON with velocity 0 is an inactive key too.
         else {
-            // Note: Adding this to the LAST note location.
-            //       When queuing a MIDI song, the notes should all be
-            //       added quickly, and one key at a time. Hopefully it
-            //       doesn't try to play the same key multiple times. If
-            //       if it does, hopefully it's done on different tracks.
-            notes.computeIfPresent(event.key.key, (k, v) -> {
-                v.get(v.size() - 1).endTimeMs = event.timestampMs;
-                return v;
-            });
-            Iterator<TimelineNote> iter = this.activeNotes.iterator();
-            while (iter.hasNext()) {
-                var activeNote = iter.next();
-                if (activeNote.key.key == event.key.key) {
-                    iter.remove();
-                }
+            TimelineNote note = held.close(event.source, event.key.status & 0x0F, event.key.key);
+            if (note != null) {
+                // Into the density first, so a reader which sees the end finds it there.
+                density.add(note.key.key, note.startTimeMs, event.timestampMs);
+                note.endTimeMs = event.timestampMs;
+                settle();
             }
         }
+        publish();
+    }
+
+    private void append(TimelineNote note) {
+        if (tail == log.length) {
+            compact(note.startTimeMs - retentionMs);
+        }
+        start[tail] = note.startTimeMs;
+        log[tail++] = note;
+    }
+
+    /**
+     * Copy the notes into a new array with room to grow, rather than moving them in place, readers may still be using
+     * this one. Notes which would have been evicted if a held note wasn't in front of them are dropped on the way.
+     */
+    private void compact(long cutoffMs) {
+        // One more note is about to be appended.
+        int excess = tail - head + 1 - maxNotes;
+        int kept = 0;
+        for (int i = head, e = excess; i < tail; i++) {
+            if (isStale(log[i], cutoffMs, e > 0)) {
+                e--;
+            } else {
+                kept++;
+            }
+        }
+
+        TimelineNote[] next = new TimelineNote[Math.max(INITIAL_CAPACITY, (kept + 1) * 2)];
+        long[] start = new long[next.length];
+        int n = 0;
+        for (int i = head; i < tail; i++) {
+            if (isStale(log[i], cutoffMs, excess > 0)) {
+                excess--;
+                drop(log[i]);
+            } else {
+                start[n] = log[i].startTimeMs;
+                next[n++] = log[i];
+            }
+        }
+        log = next;
+        this.start = start;
+        maxEnd = new long[next.length];
+        head = 0;
+        tail = n;
+        settled = 0;
+        settle();
+    }
+
+    /**
+     * Extend the running maximum end time over the notes which have ended since the oldest held note.
+     */
+    private void settle() {
+        while (settled < tail && log[settled].endTimeMs >= 0) {
+            NoteIntervalIndex.extend(maxEnd, settled, log[settled].endTimeMs);
+            settled++;
+        }
+    }
+
+    private void publish() {
+        snapshot = new Snapshot(log, start, maxEnd, head, tail, settled, ++version);
+    }
+
+    /**
+     * Evict notes from the front which ended before the cutoff, or while there are too many, up to the oldest held
+     * note.
+     */
+    private void evict(long cutoffMs) {
+        while (tail > head && isStale(log[head], cutoffMs, tail - head > maxNotes)) {
+            drop(log[head++]);
+        }
     }
 
-    // From time to time it may be useful to clear things out.
+    /**
+     * @param overflow there are more notes than maxNotes.
+     * @return the note has ended, and ended before the cutoff or isn't needed to stay under maxNotes.
+     */
+    private boolean isStale(TimelineNote note, long cutoffMs, boolean overflow) {
+        long end = note.endTimeMs;
+        if (end < 0) {
+            return false;
+        }
+        return (retentionMs > 0 && end < cutoffMs) || (maxNotes > 0 && overflow);
+    }
+
+    private void drop(TimelineNote note) {
+        density.remove(note.key.key, note.startTimeMs, note.endTimeMs);
+        evictedCount++;
+        Consumer<TimelineNote> sink = this.evictionSink;
+        if (sink != null) {
+            sink.accept(note);
+        }
+    }
+
+    /**
+     * Forget every note. Only call from the writer thread.
+     */
     public void cleanup() {
-        notes.clear();
+        log = new TimelineNote[INITIAL_CAPACITY];
+        start = new long[INITIAL_CAPACITY];
+        maxEnd = new long[INITIAL_CAPACITY];
+        head = 0;
+        tail = 0;
+        settled = 0;
+        held.clear();
+        density.clear();
+        publish();
     }
 }
@@ -1,9 +1,12 @@
 package com.willwinder.rtp.model.params;
 
-import com.google.common.eventbus.EventBus;
 import com.willwinder.rtp.graphics.KeyPointCache;
 import com.willwinder.rtp.model.KeyboardState;
-import com.willwinder.rtp.util.KeyboardReceiver;
+import com.willwinder.rtp.util.MidiClockPll;
+import com.willwinder.rtp.util.MidiInputManager;
+import com.willwinder.rtp.util.MonotonicClock;
+import com.willwinder.rtp.util.NoteEventDispatcher;
+import com.willwinder.rtp.util.PipelineLatency;
 
 // TODO: Need to save the parameters somehow.
 public class AllParams {
@@ -12,31 +15,58 @@ public class AllParams {
     public final TimelineParams timelineParams;
     public final BPMParams bpmParams;
     public final GrandStaffParams grandStaffParams;
-    public final EventBus eventBus;
+    public final NoteEventDispatcher noteEventDispatcher;
     public final KeyboardState keyboardState;
-    public final KeyboardReceiver keyboardReceiver;
+    public final MidiInputManager midiInputs;
+    public final MidiClockPll midiClock;
+    public final RoutingParams routingParams;
+    public final MidiOutParams midiOutParams;
+    public final AudioParams audioParams;
+    public final CalibrationParams calibrationParams;
+    public final MetronomeParams metronomeParams;
     public final ControllerParams controllerParams;
     public final AnimationParams animationParams;
+    public final StressParams stressParams;
+    public final PipelineLatency pipelineLatency;
+    public final MonotonicClock clock;
 
     public AllParams(KeyPointCacheParams keyPointCacheParams,
                      KeyPointCache keyPointCache,
                      TimelineParams timelineParams,
                      BPMParams bpmParams,
                      GrandStaffParams grandStaffParams,
-                     EventBus eventBus,
+                     NoteEventDispatcher noteEventDispatcher,
                      KeyboardState keyboardState,
-                     KeyboardReceiver keyboardReceiver,
+                     MidiInputManager midiInputs,
+                     MidiClockPll midiClock,
+                     RoutingParams routingParams,
+                     MidiOutParams midiOutParams,
+                     AudioParams audioParams,
+                     CalibrationParams calibrationParams,
+                     MetronomeParams metronomeParams,
                      ControllerParams controllerParams,
-                     AnimationParams animationParams) {
+                     AnimationParams animationParams,
+                     StressParams stressParams,
+                     PipelineLatency pipelineLatency,
+                     MonotonicClock clock) {
         this.keyPointCacheParams = keyPointCacheParams;
         this.keyPointCache = keyPointCache;
         this.timelineParams = timelineParams;
         this.bpmParams = bpmParams;
         this.grandStaffParams = grandStaffParams;
-        this.eventBus = eventBus;
+        this.noteEventDispatcher = noteEventDispatcher;
         this.keyboardState = keyboardState;
-        this.keyboardReceiver = keyboardReceiver;
+        this.midiInputs = midiInputs;
+        this.midiClock = midiClock;
+        this.routingParams = routingParams;
+        this.midiOutParams = midiOutParams;
+        this.audioParams = audioParams;
+        this.calibrationParams = calibrationParams;
+        this.metronomeParams = metronomeParams;
         this.controllerParams = controllerParams;
         this.animationParams = animationParams;
+        this.stressParams = stressParams;
+        this.pipelineLatency = pipelineLatency;
+        this.clock = clock;
     }
 }
@@ -9,10 +9,14 @@ public class AnimationParams {
     public final BooleanProperty showKeyboard;
     public final BooleanProperty showTimeline;
     public final BooleanProperty showStaff;
+    public final BooleanProperty showLatency;
+    public final BooleanProperty showMinimap;
 
-    public AnimationParams(boolean showKeyboard, boolean showTimeline, boolean showStaff) {
+    public AnimationParams(boolean showKeyboard, boolean showTimeline, boolean showStaff, boolean showLatency, boolean showMinimap) {
         this.showKeyboard = new SimpleBooleanProperty(showKeyboard);
         this.showTimeline = new SimpleBooleanProperty(showTimeline);
         this.showStaff = new SimpleBooleanProperty(showStaff);
+        this.showLatency = new SimpleBooleanProperty(showLatency);
+        this.showMinimap = new SimpleBooleanProperty(showMinimap);
     }
 }
@@ -0,0 +1,71 @@
+package com.willwinder.rtp.model.params;
+
+import com.willwinder.rtp.view.NoiseMaker;
+import com.willwinder.rtp.view.SoundFontBackend;
+import com.willwinder.rtp.view.VoicePoolBackend;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+import javafx.beans.property.SimpleListProperty;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.beans.value.ChangeListener;
+import javafx.collections.FXCollections;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Audio settings, the backend can be switched while notes are playing.
+ */
+public class AudioParams {
+    public static SimpleListProperty<NoiseMaker.Mode> modeOptionsListProperty = new SimpleListProperty<>(FXCollections.observableList(Arrays.asList(NoiseMaker.Mode.values())));
+
+    public final ObjectProperty<NoiseMaker.Mode> mode;
+    public final IntegerProperty sampleRate;
+    public final IntegerProperty bufferFrames;
+    public final IntegerProperty voices;
+    public final StringProperty soundFont;
+    public final IntegerProperty soundFontCacheMb;
+
+    public final NoiseMaker noiseMaker;
+
+    /**
+     * @param sampleRate   VOICE_POOL sample rate.
+     * @param bufferFrames VOICE_POOL block size in frames, the audio line holds two blocks.
+     * @param voices       VOICE_POOL and SOUNDFONT polyphony.
+     * @param soundFont    SF2 file for SOUNDFONT, empty for none.
+     * @param soundFontCacheMb most decoded SoundFont sample data to keep in memory.
+     */
+    public AudioParams(NoiseMaker noiseMaker, int sampleRate, int bufferFrames, int voices, String soundFont, int soundFontCacheMb) {
+        this.noiseMaker = noiseMaker;
+        this.mode = new SimpleObjectProperty<>(noiseMaker.getMode());
+        this.sampleRate = new SimpleIntegerProperty(sampleRate);
+        this.bufferFrames = new SimpleIntegerProperty(bufferFrames);
+        this.voices = new SimpleIntegerProperty(voices);
+        this.soundFont = new SimpleStringProperty(soundFont);
+        this.soundFontCacheMb = new SimpleIntegerProperty(soundFontCacheMb);
+
+        noiseMaker.setVoicePoolConfig(voicePoolConfig());
+        noiseMaker.setSoundFontConfig(soundFontConfig());
+        this.mode.addListener((observable, oldValue, newValue) -> noiseMaker.setMode(newValue));
+        ChangeListener<Number> listener = (observable, oldValue, newValue) -> noiseMaker.setVoicePoolConfig(voicePoolConfig());
+        this.sampleRate.addListener(listener);
+        this.bufferFrames.addListener(listener);
+        this.voices.addListener(listener);
+        this.soundFont.addListener((observable, oldValue, newValue) -> noiseMaker.setSoundFontConfig(soundFontConfig()));
+        this.soundFontCacheMb.addListener((observable, oldValue, newValue) -> noiseMaker.setSoundFontConfig(soundFontConfig()));
+    }
+
+    private SoundFontBackend.Config soundFontConfig() {
+        if (soundFont.get() == null || soundFont.get().isEmpty()) {
+            return null;
+        }
+        return new SoundFontBackend.Config(Paths.get(soundFont.get()), soundFontCacheMb.get() * 1024L * 1024L);
+    }
+
+    private VoicePoolBackend.Config voicePoolConfig() {
+        return new VoicePoolBackend.Config(sampleRate.get(), bufferFrames.get(), voices.get());
+    }
+}
@@ -1,14 +1,24 @@
 package com.willwinder.rtp.model.params;
 
+import com.willwinder.rtp.model.TempoMap;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.SimpleIntegerProperty;
 
 public class BPMParams {
     public IntegerProperty bpm;
     public TimelineParams timelineParams;
+    // Song ticks to timeline milliseconds at the current BPM.
+    public final TempoMap tempoMap;
 
     public BPMParams(int bpm, TimelineParams timelineParams) {
         this.bpm = new SimpleIntegerProperty(bpm);
         this.timelineParams = timelineParams;
+        this.tempoMap = new TempoMap(bpm);
+        timelineParams.quarterNoteDurationMs.setValue(tempoMap.getMsPerQuarter());
+
+        this.bpm.addListener((observable, oldValue, newValue) -> {
+            tempoMap.setBpm(newValue.intValue());
+            timelineParams.quarterNoteDurationMs.setValue(tempoMap.getMsPerQuarter());
+        });
     }
-}
\ No newline at end of file
+}
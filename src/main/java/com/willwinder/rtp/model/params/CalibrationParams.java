@@ -0,0 +1,68 @@
+package com.willwinder.rtp.model.params;
+
+import com.willwinder.rtp.util.MidiOutScheduler;
+import com.willwinder.rtp.view.LatencyCalibration;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+
+import java.util.prefs.Preferences;
+
+/**
+ * Audio and video latency compensation. The offsets are saved in the user's preferences whenever they change, so a
+ * calibration only has to be done once per machine.
+ *
+ * The timeline is drawn videoLatencyMs ahead so each frame shows the moment it appears on screen. Song notes sent to
+ * a MIDI output and metronome clicks are scheduled audioLatencyMs early so they are heard on time. The internal synth
+ * is never sent anything early: live notes can't be, and in listen mode the sequencer plays the song as it goes. In
+ * both cases the timeline is held back by the audio latency instead, so the internal synth's notes are drawn when
+ * they are heard but are still heard late.
+ */
+public class CalibrationParams {
+    private static final String AUDIO_KEY = "audioLatencyMs";
+    private static final String VIDEO_KEY = "videoLatencyMs";
+    private static final String LOOPBACK_KEY = "loopbackFile";
+
+    public final IntegerProperty audioLatencyMs;
+    public final IntegerProperty videoLatencyMs;
+    // Recording used in place of a live loopback capture, empty to use the synthesizer's own measurement.
+    public final StringProperty loopbackFile;
+
+    public final LatencyCalibration calibration;
+
+    /**
+     * Saved values take precedence over the defaults.
+     * @param audioLatencyMs default audio output latency.
+     * @param videoLatencyMs default frame presentation delay.
+     */
+    public CalibrationParams(LatencyCalibration calibration, MidiOutScheduler scheduler, int audioLatencyMs, int videoLatencyMs) {
+        Preferences prefs = Preferences.userNodeForPackage(CalibrationParams.class);
+        this.calibration = calibration;
+        this.audioLatencyMs = new SimpleIntegerProperty(prefs.getInt(AUDIO_KEY, audioLatencyMs));
+        this.videoLatencyMs = new SimpleIntegerProperty(prefs.getInt(VIDEO_KEY, videoLatencyMs));
+        this.loopbackFile = new SimpleStringProperty(prefs.get(LOOPBACK_KEY, ""));
+
+        scheduler.setOutputLatencyMs(this.audioLatencyMs.get());
+        this.audioLatencyMs.addListener((observable, oldValue, newValue) -> {
+            scheduler.setOutputLatencyMs(newValue.longValue());
+            prefs.putInt(AUDIO_KEY, newValue.intValue());
+        });
+        this.videoLatencyMs.addListener((observable, oldValue, newValue) -> prefs.putInt(VIDEO_KEY, newValue.intValue()));
+        this.loopbackFile.addListener((observable, oldValue, newValue) -> prefs.put(LOOPBACK_KEY, newValue));
+    }
+
+    /**
+     * Timeline position to draw for a song position, so the frame matches what is heard when it is shown.
+     */
+    public double displayMs(double songMs) {
+        return songMs + videoLatencyMs.get();
+    }
+
+    /**
+     * Timeline position to draw in realtime mode, where notes are heard audioLatencyMs after they are played.
+     */
+    public double realtimeDisplayMs(double nowMs) {
+        return nowMs + videoLatencyMs.get() - audioLatencyMs.get();
+    }
+}
@@ -1,6 +1,9 @@
 package com.willwinder.rtp.model.params;
 
+import com.willwinder.rtp.view.SequencePlayer;
+import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleListProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.collections.FXCollections;
@@ -26,9 +29,18 @@ public class ControllerParams {
 
     public ObjectProperty<Mode> mode;
     public ObjectProperty<Hands> hands;
+    // Follow an external MIDI clock instead of the play/pause buttons.
+    public BooleanProperty clockSlave;
 
-    public ControllerParams(Mode mode, Hands hands) {
+    // Plays the song in listen mode, it follows BPM changes.
+    public final SequencePlayer sequencePlayer;
+
+    public ControllerParams(Mode mode, Hands hands, boolean clockSlave, SequencePlayer sequencePlayer, BPMParams bpmParams) {
         this.mode = new SimpleObjectProperty<>(mode);
         this.hands = new SimpleObjectProperty<>(hands);
+        this.clockSlave = new SimpleBooleanProperty(clockSlave);
+        this.sequencePlayer = sequencePlayer;
+
+        bpmParams.bpm.addListener((observable, oldValue, newValue) -> sequencePlayer.setBpm(newValue.intValue()));
     }
 }
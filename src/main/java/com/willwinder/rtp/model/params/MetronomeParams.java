@@ -0,0 +1,50 @@
+package com.willwinder.rtp.model.params;
+
+import com.willwinder.rtp.view.Metronome;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+
+/**
+ * Metronome settings, changes are applied to the metronome immediately. The tempo follows BPMParams and the click
+ * timing the calibrated audio latency.
+ */
+public class MetronomeParams {
+    public final BooleanProperty enabled;
+    public final IntegerProperty subdivision;
+    public final StringProperty accents;
+    public final IntegerProperty volume;
+
+    public final Metronome metronome;
+
+    /**
+     * @param enabled     click along with the timeline.
+     * @param subdivision clicks per beat.
+     * @param accents     one character per beat of the bar, X accented, x normal and . silent. Empty accents the
+     *                    first beat of each bar.
+     * @param volume      percent.
+     */
+    public MetronomeParams(Metronome metronome, BPMParams bpmParams, CalibrationParams calibrationParams, boolean enabled, int subdivision, String accents, int volume) {
+        this.metronome = metronome;
+        this.enabled = new SimpleBooleanProperty(enabled);
+        this.subdivision = new SimpleIntegerProperty(subdivision);
+        this.accents = new SimpleStringProperty(accents);
+        this.volume = new SimpleIntegerProperty(volume);
+
+        metronome.setBpm(bpmParams.bpm.get());
+        metronome.setSubdivision(subdivision);
+        metronome.setAccents(accents);
+        metronome.setVolume(volume / 100f);
+        metronome.setOutputLatencyMs(calibrationParams.audioLatencyMs.get());
+        metronome.setEnabled(enabled);
+        bpmParams.bpm.addListener((observable, oldValue, newValue) -> metronome.setBpm(newValue.intValue()));
+        calibrationParams.audioLatencyMs.addListener((observable, oldValue, newValue) -> metronome.setOutputLatencyMs(newValue.longValue()));
+        this.enabled.addListener((observable, oldValue, newValue) -> metronome.setEnabled(newValue));
+        this.subdivision.addListener((observable, oldValue, newValue) -> metronome.setSubdivision(newValue.intValue()));
+        this.accents.addListener((observable, oldValue, newValue) -> metronome.setAccents(newValue));
+        this.volume.addListener((observable, oldValue, newValue) -> metronome.setVolume(newValue.intValue() / 100f));
+    }
+}
@@ -0,0 +1,38 @@
+package com.willwinder.rtp.model.params;
+
+import com.willwinder.rtp.util.MidiOutScheduler;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.SimpleListProperty;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.collections.FXCollections;
+
+/**
+ * Song playback to an external MIDI device. Changes are applied to the scheduler immediately.
+ */
+public class MidiOutParams {
+    public final SimpleListProperty<String> deviceOptionsListProperty;
+
+    public final ObjectProperty<String> device;
+    public final IntegerProperty lookaheadMs;
+
+    public final MidiOutScheduler scheduler;
+
+    /**
+     * @param scheduler   plays the song.
+     * @param device      output device id, or MidiOutScheduler.NO_DEVICE.
+     * @param lookaheadMs how early messages are given to the device, 0 to send each one when it is due.
+     */
+    public MidiOutParams(MidiOutScheduler scheduler, String device, int lookaheadMs) {
+        this.scheduler = scheduler;
+        this.deviceOptionsListProperty = new SimpleListProperty<>(FXCollections.observableList(MidiOutScheduler.getDeviceIds()));
+        this.device = new SimpleObjectProperty<>(device);
+        this.lookaheadMs = new SimpleIntegerProperty(lookaheadMs);
+
+        scheduler.setDevice(device);
+        scheduler.setLookaheadMs(lookaheadMs);
+        this.device.addListener((observable, oldValue, newValue) -> scheduler.setDevice(newValue));
+        this.lookaheadMs.addListener((observable, oldValue, newValue) -> scheduler.setLookaheadMs(newValue.longValue()));
+    }
+}
@@ -0,0 +1,87 @@
+package com.willwinder.rtp.model.params;
+
+import com.willwinder.rtp.util.MidiRouter;
+import com.willwinder.rtp.util.RoutingGraph;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.value.ChangeListener;
+
+import javax.sound.midi.ShortMessage;
+
+/**
+ * MIDI input routing. Whenever one of these changes the routing graph is rebuilt and the router swaps in the
+ * newly compiled table.
+ */
+public class RoutingParams {
+    public final IntegerProperty transpose;
+    public final IntegerProperty splitKey;
+    public final IntegerProperty lowerTranspose;
+    public final IntegerProperty lowerTrack;
+    public final IntegerProperty layerInterval;
+    public final BooleanProperty dropActiveSensing;
+    public final BooleanProperty dropPolyPressure;
+
+    public final MidiRouter router;
+
+    /**
+     * @param transpose         semitones added to every key, or the upper zone when split.
+     * @param splitKey          first key of the upper zone in MIDI key code, 0 to disable the split.
+     * @param lowerTranspose    semitones added to keys below the split.
+     * @param lowerTrack        track for keys below the split, 0 to keep the device track.
+     * @param layerInterval     semitones for a layered copy of every note, 0 to disable.
+     * @param dropActiveSensing ignore ACTIVE_SENSING messages.
+     * @param dropPolyPressure  ignore POLY_PRESSURE messages.
+     */
+    public RoutingParams(int transpose,
+                         int splitKey,
+                         int lowerTranspose,
+                         int lowerTrack,
+                         int layerInterval,
+                         boolean dropActiveSensing,
+                         boolean dropPolyPressure) {
+        this.transpose = new SimpleIntegerProperty(transpose);
+        this.splitKey = new SimpleIntegerProperty(splitKey);
+        this.lowerTranspose = new SimpleIntegerProperty(lowerTranspose);
+        this.lowerTrack = new SimpleIntegerProperty(lowerTrack);
+        this.layerInterval = new SimpleIntegerProperty(layerInterval);
+        this.dropActiveSensing = new SimpleBooleanProperty(dropActiveSensing);
+        this.dropPolyPressure = new SimpleBooleanProperty(dropPolyPressure);
+        this.router = new MidiRouter(buildGraph());
+
+        ChangeListener<Object> listener = (observable, oldValue, newValue) -> router.setGraph(buildGraph());
+        this.transpose.addListener(listener);
+        this.splitKey.addListener(listener);
+        this.lowerTranspose.addListener(listener);
+        this.lowerTrack.addListener(listener);
+        this.layerInterval.addListener(listener);
+        this.dropActiveSensing.addListener(listener);
+        this.dropPolyPressure.addListener(listener);
+    }
+
+    public RoutingGraph buildGraph() {
+        RoutingGraph graph = new RoutingGraph();
+        int split = splitKey.get();
+
+        if (split > 0) {
+            addZone(graph, 0, split - 1, lowerTranspose.get(), lowerTrack.get());
+        }
+        addZone(graph, Math.max(split, 0), 127, transpose.get(), 0);
+
+        if (dropActiveSensing.get()) {
+            graph.dropStatus(ShortMessage.ACTIVE_SENSING);
+        }
+        if (dropPolyPressure.get()) {
+            graph.dropCommand(ShortMessage.POLY_PRESSURE);
+        }
+        return graph;
+    }
+
+    private void addZone(RoutingGraph graph, int lowKey, int highKey, int transpose, int track) {
+        graph.route(new RoutingGraph.Route(-1, lowKey, highKey, transpose, track));
+        if (layerInterval.get() != 0) {
+            graph.route(new RoutingGraph.Route(-1, lowKey, highKey, transpose + layerInterval.get(), track));
+        }
+    }
+}
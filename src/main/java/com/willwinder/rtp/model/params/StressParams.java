@@ -0,0 +1,30 @@
+package com.willwinder.rtp.model.params;
+
+import com.willwinder.rtp.util.StressPattern;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.SimpleListProperty;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.collections.FXCollections;
+
+import java.util.Arrays;
+
+public class StressParams {
+    public static SimpleListProperty<StressPattern> patternOptionsListProperty = new SimpleListProperty<>(FXCollections.observableList(Arrays.asList(StressPattern.values())));
+
+    public final ObjectProperty<StressPattern> pattern;
+    public final IntegerProperty rate;
+    public final IntegerProperty durationSeconds;
+
+    /**
+     * @param pattern         which stress pattern to send.
+     * @param rate            messages per second.
+     * @param durationSeconds length of the test.
+     */
+    public StressParams(StressPattern pattern, int rate, int durationSeconds) {
+        this.pattern = new SimpleObjectProperty<>(pattern);
+        this.rate = new SimpleIntegerProperty(rate);
+        this.durationSeconds = new SimpleIntegerProperty(durationSeconds);
+    }
+}
@@ -1,14 +1,21 @@
 package com.willwinder.rtp.model.params;
 
 import com.willwinder.rtp.graphics.KeyPointCache;
+import com.willwinder.rtp.model.DensityPyramid;
+import com.willwinder.rtp.model.NoteStore;
 import com.willwinder.rtp.model.TimelineNotes;
 import javafx.beans.property.*;
 
 import java.time.Duration;
-import java.util.ArrayList;
 
 public class TimelineParams {
-    public final ArrayList<TimelineNotes.TimelineNote> midiNotes;
+    // Player notes are kept this much longer than the timeline shows them, so they scroll off before being evicted.
+    private static final long RETENTION_MARGIN_MS = 1000;
+
+    // Every note of the loaded song.
+    public final ObjectProperty<NoteStore> midiNotes;
+    // The song's notes by key and time, for drawing it zoomed out. Set before midiNotes.
+    public final ObjectProperty<DensityPyramid> songDensity;
     public final TimelineNotes playerNotes;
     public final IntegerProperty timelineDurationMs;
     public final KeyPointCache keyPointCache;
@@ -26,10 +33,14 @@ public class TimelineParams {
      * @param keyPointCache
      */
     public TimelineParams(TimelineNotes playerNotes, boolean out, Duration timelineDuration, KeyPointCache keyPointCache) {
-        this.midiNotes = new ArrayList<>();
+        this.midiNotes = new SimpleObjectProperty<>(NoteStore.EMPTY);
+        this.songDensity = new SimpleObjectProperty<>(DensityPyramid.of(NoteStore.EMPTY));
         this.playerNotes = playerNotes;
         this.out = new SimpleBooleanProperty(out);
         this.timelineDurationMs = new SimpleIntegerProperty((int)timelineDuration.toMillis());
+        playerNotes.setRetentionMs(timelineDuration.toMillis() + RETENTION_MARGIN_MS);
+        this.timelineDurationMs.addListener((observable, oldValue, newValue) ->
+                playerNotes.setRetentionMs(newValue.longValue() + RETENTION_MARGIN_MS));
         this.keyPointCache = keyPointCache;
         this.nowMs = new SimpleLongProperty(0);
         this.quarterNoteDurationMs = new SimpleDoubleProperty(0);
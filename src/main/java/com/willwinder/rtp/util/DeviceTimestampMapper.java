@@ -0,0 +1,73 @@
+package com.willwinder.rtp.util;
+
+/**
+ * Maps the microsecond timestamps a MIDI device passes to Receiver.send onto the application clock.
+ *
+ * The device clock is modelled as local = anchorLocal + (device - anchorDevice) * rate + offset. Transport delay
+ * only ever makes messages late, so the offset follows the lower envelope of the observed delays: it drops
+ * immediately when a message arrives earlier than predicted and creeps up slowly otherwise. The rate is the
+ * drift between the two clocks, estimated over the whole session once there is enough of a baseline.
+ */
+public class DeviceTimestampMapper {
+    private static final long MIN_BASELINE_NANOS = 1_000_000_000L;
+    private static final double OFFSET_CREEP = 0.01;
+    private static final double RATE_SMOOTHING = 0.05;
+
+    private boolean initialized = false;
+    private long anchorDevice;
+    private long anchorLocal;
+    private double rate = 1.0;
+    private double offset = 0.0;
+
+    /**
+     * @param deviceMicros timestamp given to Receiver.send, -1 if the device doesn't provide one.
+     * @param receiveNanos application clock time when the message was received.
+     * @return the application clock time the message was sent by the device, never later than receiveNanos.
+     */
+    public synchronized long toLocalNanos(long deviceMicros, long receiveNanos) {
+        if (deviceMicros < 0) {
+            return receiveNanos;
+        }
+
+        long device = deviceMicros * 1000L;
+        if (!initialized || device < anchorDevice) {
+            // First message, or the device clock was reset.
+            anchorDevice = device;
+            anchorLocal = receiveNanos;
+            rate = 1.0;
+            offset = 0.0;
+            initialized = true;
+            return receiveNanos;
+        }
+
+        long deviceElapsed = device - anchorDevice;
+        if (deviceElapsed > MIN_BASELINE_NANOS) {
+            double observedRate = (receiveNanos - anchorLocal - offset) / (double) deviceElapsed;
+            rate += (observedRate - rate) * RATE_SMOOTHING;
+        }
+
+        double predicted = anchorLocal + deviceElapsed * rate + offset;
+        double residual = receiveNanos - predicted;
+        if (residual < 0) {
+            offset += residual;
+        } else {
+            offset += residual * OFFSET_CREEP;
+        }
+
+        return Math.min(receiveNanos, (long) (anchorLocal + deviceElapsed * rate + offset));
+    }
+
+    /**
+     * @return estimated ratio between the local clock and the device clock, 1.0 means no drift.
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return current offset correction in nanoseconds.
+     */
+    public synchronized double getOffsetNanos() {
+        return offset;
+    }
+}
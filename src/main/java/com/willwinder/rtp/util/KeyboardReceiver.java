@@ -1,67 +1,129 @@
 package com.willwinder.rtp.util;
 
-import com.google.common.eventbus.EventBus;
 import com.willwinder.rtp.model.Key;
-import com.willwinder.rtp.model.KeyboardState;
-import com.willwinder.rtp.util.NoteEvent;
-import com.willwinder.rtp.view.NoiseMaker;
 
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.Receiver;
-
-import java.util.*;
-
-import static com.willwinder.rtp.util.Util.midiMessageToKey;
+import javax.sound.midi.ShortMessage;
+import java.util.Arrays;
 
 /**
- * A simple MIDI receiver which maintains a cache of the active keyboard state.
+ * A simple MIDI receiver for one input device which feeds that device's lane.
+ *
+ * The receiver runs on the MIDI device thread, so all it does is route the note through the current RoutingTable
+ * and copy the results into the lane. The MidiInputManager merges the lanes of all devices into the note event
+ * dispatcher.
+ *
+ * send and releaseAll are synchronized, so the lane keeps a single producer when a device is detached while it is
+ * still sending. The lock is only ever contended then.
  */
-public class KeyboardReceiver implements Receiver, KeyboardState {
-    private final EventBus eventBus;
-    private final NoiseMaker noise;
+public class KeyboardReceiver implements Receiver {
+    private final NoteEventRing lane;
+    private final int source;
+    private final int track;
+    private final MonotonicClock clock;
+    private final MidiRouter router;
+    private final MidiClockPll midiClock;
+    private final DeviceTimestampMapper deviceTimestamps = new DeviceTimestampMapper();
+    private final NoteEvent event = new NoteEvent();
+    // Outputs each held key was routed to, so the note off follows its note on even if the routing changed.
+    private final int[] held = new int[16 * 128 * RoutingTable.MAX_OUTPUTS];
 
-    public KeyboardReceiver(EventBus eventBus, NoiseMaker noise) {
-        this.eventBus = eventBus;
-        this.noise = noise;
+    /**
+     * @param lane ring this device publishes to, this receiver must be its only producer.
+     * @param source index of the device.
+     * @param track timeline track for notes played on the device.
+     * @param router transposes, splits, layers and filters the device's messages.
+     * @param midiClock receives clock and transport messages.
+     */
+    public KeyboardReceiver(NoteEventRing lane, int source, int track, MonotonicClock clock, MidiRouter router,
+                            MidiClockPll midiClock) {
+        this.lane = lane;
+        this.source = source;
+        this.track = track;
+        this.clock = clock;
+        this.router = router;
+        this.midiClock = midiClock;
+        Arrays.fill(held, RoutingTable.NONE);
     }
 
-    private final Map<Integer, Key> activeKeys = new HashMap<>();
-
+    /**
+     * @param timeStamp device timestamp in microseconds, or -1 if the device doesn't provide them.
+     */
     @Override
-    public void send(MidiMessage message, long timeStamp) {
+    public synchronized void send(MidiMessage message, long timeStamp) {
+        long receiveNanos = System.nanoTime();
         //System.out.println(midiMessageToString(message));
 
-        midiMessageToKey(message).ifPresent(k -> {
-            var event = new NoteEvent(k, 99, System.currentTimeMillis());
-            noise.noteEvent(event);
+        int status = message.getStatus();
+        RoutingTable table = router.getTable();
+        if (table.isDropped(status)) return;
 
-            synchronized (activeKeys) {
-                if (k.isActive()) {
-                    activeKeys.put(k.key, k);
-                } else {
-                    activeKeys.remove(k.key);
-                }
+        // Clock and transport.
+        if (status >= 0xF0 && message instanceof ShortMessage) {
+            ShortMessage sm = (ShortMessage) message;
+            long eventNanos = deviceTimestamps.toLocalNanos(timeStamp, clock.fromSystemNanos(receiveNanos));
+            midiClock.message(source, status, sm.getData1(), sm.getData2(), eventNanos);
+            return;
+        }
+
+        int note = Util.decodeNote(message);
+        if (note == Util.NOT_A_NOTE) return;
+
+        Key key = Util.decodedKey(note);
+        int velocity = Util.decodedVelocity(note);
+        int idx = RoutingTable.index(key.status & 0x0F, key.key);
+
+        // A note off normally uses the outputs saved by its note on, unless the key was pressed before this
+        // receiver was attached.
+        if (key.isActive() || held[idx] == RoutingTable.NONE) {
+            for (int i = 0; i < RoutingTable.MAX_OUTPUTS; i++) {
+                held[idx + i] = table.getOutput(idx + i);
             }
-            eventBus.post(event);
-        });
-    }
+        }
 
-    @Override
-    public void close() {
+        long eventNanos = deviceTimestamps.toLocalNanos(timeStamp, clock.fromSystemNanos(receiveNanos));
+        for (int i = 0; i < RoutingTable.MAX_OUTPUTS; i++) {
+            int output = held[idx + i];
+            if (output == RoutingTable.NONE) break;
+            int outputTrack = RoutingTable.outputTrack(output);
+            event.setLive(Key.of(key.status, RoutingTable.outputKey(output), velocity), velocity,
+                    outputTrack == 0 ? track : outputTrack, source, eventNanos, receiveNanos);
+            lane.publish(event);
+        }
 
+        if (!key.isActive()) {
+            for (int i = 0; i < RoutingTable.MAX_OUTPUTS; i++) {
+                held[idx + i] = RoutingTable.NONE;
+            }
+        }
     }
 
-    @Override
-    public HashMap<Integer, Key> getActiveKeys() {
-        synchronized (activeKeys) {
-            return new HashMap<>(activeKeys);
+    /**
+     * Publish a note off for every key which is still held, when the device goes away in the middle of playing.
+     */
+    public synchronized void releaseAll() {
+        long receiveNanos = System.nanoTime();
+        long eventNanos = clock.fromSystemNanos(receiveNanos);
+        for (int channel = 0; channel < 16; channel++) {
+            for (int k = 0; k < 128; k++) {
+                int idx = RoutingTable.index(channel, k);
+                if (held[idx] == RoutingTable.NONE) continue;
+                for (int i = 0; i < RoutingTable.MAX_OUTPUTS; i++) {
+                    int output = held[idx + i];
+                    if (output == RoutingTable.NONE) break;
+                    int outputTrack = RoutingTable.outputTrack(output);
+                    event.setLive(Key.of(ShortMessage.NOTE_OFF | channel, RoutingTable.outputKey(output), 0), 0,
+                            outputTrack == 0 ? track : outputTrack, source, eventNanos, receiveNanos);
+                    lane.publish(event);
+                    held[idx + i] = RoutingTable.NONE;
+                }
+            }
         }
     }
 
     @Override
-    public Set<Integer> getActiveKeyCodes() {
-        synchronized (activeKeys) {
-            return new HashSet<>(activeKeys.keySet());
-        }
+    public void close() {
+
     }
 }
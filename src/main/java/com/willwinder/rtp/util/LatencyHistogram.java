@@ -0,0 +1,126 @@
+package com.willwinder.rtp.util;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in nanoseconds, bucketed the same way as HdrHistogram: every power of two range is
+ * split into 32 linear sub-buckets, so any recorded value is accurate to about 3%. Recording never allocates and
+ * can be done from any thread.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Values up to 2^40ns (~18 minutes), anything larger is clamped into the last bucket.
+    private static final int BUCKETS = 40 - SUB_BITS + 2;
+
+    public final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS * SUB_COUNT);
+    private final AtomicLong totalCount = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    private static int indexFor(long value) {
+        if (value < SUB_COUNT) {
+            return (int) Math.max(value, 0);
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int bucket = magnitude - SUB_BITS + 1;
+        if (bucket >= BUCKETS) {
+            return BUCKETS * SUB_COUNT - 1;
+        }
+        int sub = (int) (value >>> (magnitude - SUB_BITS)) & (SUB_COUNT - 1);
+        return bucket * SUB_COUNT + sub;
+    }
+
+    /**
+     * @return the largest value which maps to the given index.
+     */
+    private static long highestValueAt(int index) {
+        int bucket = index / SUB_COUNT;
+        int sub = index % SUB_COUNT;
+        if (bucket == 0) {
+            return sub;
+        }
+        long lowest = (long) (SUB_COUNT + sub) << (bucket - 1);
+        return lowest + (1L << (bucket - 1)) - 1;
+    }
+
+    public void record(long valueNanos) {
+        counts.incrementAndGet(indexFor(valueNanos));
+        totalCount.incrementAndGet();
+
+        long m;
+        while (valueNanos > (m = max.get())) {
+            if (max.compareAndSet(m, valueNanos)) break;
+        }
+    }
+
+    /**
+     * Record the time between a System.nanoTime timestamp and now. Events without a timestamp (0) are ignored.
+     */
+    public void recordSince(long startNanos) {
+        if (startNanos != 0) {
+            record(System.nanoTime() - startNanos);
+        }
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the value at the given percentile, or 0 if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Write the percentile distribution, one line per non-empty bucket.
+     */
+    public void dump(PrintWriter out) {
+        long total = totalCount.get();
+        out.printf("# %s: count=%d p50=%dus p99=%dus max=%dus%n",
+                name, total, getValueAtPercentile(50) / 1000, getValueAtPercentile(99) / 1000, getMax() / 1000);
+        out.println("# value(us) percentile count");
+
+        long seen = 0;
+        for (int i = 0; i < counts.length() && total > 0; i++) {
+            long c = counts.get(i);
+            if (c == 0) continue;
+            seen += c;
+            out.printf("%.3f %.5f %d%n", highestValueAt(i) / 1000.0, seen / (double) total, c);
+        }
+        out.println();
+    }
+}
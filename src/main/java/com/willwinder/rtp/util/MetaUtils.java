@@ -134,7 +134,8 @@ public class MetaUtils {
 
         public TimeSignatureData(byte[] data) {
             this.numerator = data[0];
-            this.denominator = data[1] * data[1];
+            // Stored as a power of two.
+            this.denominator = 1 << data[1];
             this.clocksPerTick = data[2];
             this.notated32ndNotesPerBeat = data[3];
         }
@@ -0,0 +1,208 @@
+package com.willwinder.rtp.util;
+
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Follows an external MIDI clock. TIMING_CLOCK messages arrive 24 times per quarter note with whatever jitter the
+ * sender and the transport add, a second order software PLL turns them into a smooth tempo and phase so the song
+ * position can be read at any moment, not only when a tick arrives. START, STOP, CONTINUE and
+ * SONG_POSITION_POINTER control the transport.
+ *
+ * The first ticks after the clock appears only measure the period. After that each tick's error against the
+ * predicted tick time nudges the phase, and a smaller fraction of it the period. A tick far from the prediction
+ * means the clock was restarted or changed tempo abruptly, so the loop reacquires.
+ *
+ * Every input sends its clock messages here, but only one drives the loop: two senders would pull it between their
+ * tempos and phases. The first input to send a clock or transport message is followed, and messages from any other
+ * are ignored until it has been quiet for a second. Then the next input to send takes over and the loop reacquires.
+ */
+public class MidiClockPll {
+    public static final int PPQN = 24;
+    private static final int ACQUIRE_TICKS = PPQN;
+    private static final double PHASE_GAIN = 0.1;
+    private static final double PERIOD_GAIN = 0.005;
+    private static final double JITTER_SMOOTHING = 0.01;
+    // Errors larger than this many periods reacquire the clock.
+    private static final double MAX_ERROR_PERIODS = 4.0;
+    // 20 to 400 BPM.
+    private static final double MIN_PERIOD_NANOS = 60e9 / (400 * PPQN);
+    private static final double MAX_PERIOD_NANOS = 60e9 / (20 * PPQN);
+    // Longer than the slowest tick, so the followed input only times out once it has stopped sending.
+    private static final long SOURCE_TIMEOUT_NANOS = 1_000_000_000L;
+    private static final int NO_SOURCE = -1;
+
+    // The input being followed, and when it last sent a message.
+    private int source = NO_SOURCE;
+    private long sourceNanos = 0;
+
+    // Loop state.
+    private long lastRawNanos = 0;
+    private int acquired = 0;
+    private double phaseNanos = 0;
+    private double periodNanos = 0;
+    private double jitterNanos = 0;
+
+    // Transport state, lastTick is the song position of the tick at phaseNanos.
+    private boolean running = false;
+    private boolean awaitingTick = true;
+    private long lastTick = -1;
+    private long transportCount = 0;
+
+    /**
+     * Handle a system realtime or song position message.
+     * @param source index of the input which sent it.
+     * @param nanos application clock time of the message.
+     * @return true if the message was a clock or transport message, even if it was ignored.
+     */
+    public synchronized boolean message(int source, int status, int data1, int data2, long nanos) {
+        if (!isClockMessage(status)) {
+            return false;
+        }
+        if (source != this.source) {
+            if (this.source != NO_SOURCE && nanos - sourceNanos < SOURCE_TIMEOUT_NANOS) {
+                return true;
+            }
+            // A new input takes over, its ticks have nothing to do with the last one's.
+            this.source = source;
+            lastRawNanos = 0;
+            acquired = 0;
+            periodNanos = 0;
+        }
+        sourceNanos = nanos;
+
+        switch (status) {
+            case ShortMessage.TIMING_CLOCK:
+                tick(nanos);
+                return true;
+            case ShortMessage.START:
+                lastTick = -1;
+                running = true;
+                awaitingTick = true;
+                transportCount++;
+                return true;
+            case ShortMessage.CONTINUE:
+                running = true;
+                awaitingTick = true;
+                transportCount++;
+                return true;
+            case ShortMessage.STOP:
+                running = false;
+                transportCount++;
+                return true;
+            case ShortMessage.SONG_POSITION_POINTER:
+                // Sixteenth notes, 6 ticks each.
+                lastTick = ((data2 & 0x7F) << 7 | (data1 & 0x7F)) * (PPQN / 4L) - 1;
+                awaitingTick = true;
+                transportCount++;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isClockMessage(int status) {
+        switch (status) {
+            case ShortMessage.TIMING_CLOCK:
+            case ShortMessage.START:
+            case ShortMessage.CONTINUE:
+            case ShortMessage.STOP:
+            case ShortMessage.SONG_POSITION_POINTER:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void tick(long nanos) {
+        if (running) {
+            lastTick++;
+            awaitingTick = false;
+        }
+
+        if (lastRawNanos == 0) {
+            lastRawNanos = nanos;
+            phaseNanos = nanos;
+            return;
+        }
+
+        long raw = nanos - lastRawNanos;
+        lastRawNanos = nanos;
+
+        if (acquired < ACQUIRE_TICKS) {
+            // Plain average of the intervals while acquiring.
+            acquired++;
+            periodNanos += (raw - periodNanos) / acquired;
+            phaseNanos = nanos;
+            return;
+        }
+
+        double predicted = phaseNanos + periodNanos;
+        double error = nanos - predicted;
+        if (Math.abs(error) > periodNanos * MAX_ERROR_PERIODS) {
+            acquired = 0;
+            periodNanos = 0;
+            phaseNanos = nanos;
+            return;
+        }
+
+        phaseNanos = predicted + error * PHASE_GAIN;
+        periodNanos = Math.max(MIN_PERIOD_NANOS, Math.min(MAX_PERIOD_NANOS, periodNanos + error * PERIOD_GAIN));
+        jitterNanos += (Math.abs(error) - jitterNanos) * JITTER_SMOOTHING;
+    }
+
+    /**
+     * @param nanos application clock time.
+     * @return song position in (fractional) ticks. While running it never moves past the next expected tick, so
+     *         a clock that stops doesn't run away. After STOP it stays at the last tick.
+     */
+    public synchronized double getPositionTicks(long nanos) {
+        if (awaitingTick) {
+            // Started or moved, the next tick is at the new position.
+            return lastTick + 1;
+        }
+        if (!running || !isLocked()) {
+            return lastTick;
+        }
+        double fraction = (nanos - phaseNanos) / periodNanos;
+        return lastTick + Math.max(0.0, Math.min(1.0, fraction));
+    }
+
+    /**
+     * @return song position in quarter notes.
+     */
+    public double getPositionQuarterNotes(long nanos) {
+        return getPositionTicks(nanos) / PPQN;
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return true once the period has been measured.
+     */
+    public synchronized boolean isLocked() {
+        return acquired >= ACQUIRE_TICKS;
+    }
+
+    /**
+     * @return the smoothed tempo, or 0 until the clock is locked.
+     */
+    public synchronized double getBpm() {
+        return isLocked() ? 60e9 / (periodNanos * PPQN) : 0;
+    }
+
+    /**
+     * @return smoothed absolute difference between each tick and its predicted time.
+     */
+    public synchronized double getJitterNanos() {
+        return jitterNanos;
+    }
+
+    /**
+     * @return number of transport messages received, changes whenever playback starts, stops or seeks.
+     */
+    public synchronized long getTransportCount() {
+        return transportCount;
+    }
+}
@@ -0,0 +1,242 @@
+package com.willwinder.rtp.util;
+
+import com.willwinder.rtp.Constants;
+
+import javax.sound.midi.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Connects every MIDI input device and merges their notes into the note event dispatcher. All devices share the
+ * same MidiRouter, and send their clock messages to the same MidiClockPll, which follows one of them.
+ *
+ * Each device gets its own lane, a single producer NoteEventRing written by that device's KeyboardReceiver, so
+ * devices never contend with each other. A merge thread repeatedly forwards the earliest event at the head of
+ * any lane to the dispatcher, which keeps the merged stream in timestamp order without holding anything back.
+ *
+ * The device list is polled so that keyboards can be plugged in and out while the app is running.
+ */
+public class MidiInputManager {
+    private static final int LANE_CAPACITY = 256;
+    private static final long REFRESH_SECONDS = 2;
+
+    public class Lane {
+        // For display, two keyboards of the same model share it.
+        public final String name;
+        // Unique among the attached inputs.
+        public final String id;
+        public final int source;
+        public final NoteEventRing ring;
+        private final NoteEventRing.Cursor cursor;
+        private final MidiDevice device;
+        private final Transmitter transmitter;
+        private final KeyboardReceiver receiver;
+        private volatile boolean detached = false;
+
+        private Lane(String id, String name, int source, MidiDevice device, Transmitter transmitter) {
+            this.id = id;
+            this.name = name;
+            this.source = source;
+            this.device = device;
+            this.transmitter = transmitter;
+            this.ring = new NoteEventRing(LANE_CAPACITY);
+            this.cursor = ring.newCursor(id);
+            this.receiver = new KeyboardReceiver(ring, source, Constants.PLAYER_TRACK + source - 1, clock, router, midiClock);
+        }
+
+        public boolean isDetached() {
+            return detached;
+        }
+
+        /**
+         * Events waiting in the lane for the merge thread.
+         */
+        public long getLag() {
+            return cursor.getLag();
+        }
+
+        /**
+         * Events which were dropped because the merge thread fell a full lane behind.
+         */
+        public long getLostCount() {
+            return cursor.getLostCount();
+        }
+    }
+
+    private final NoteEventDispatcher dispatcher;
+    private final MidiRouter router;
+    private final MidiClockPll midiClock;
+    private final PipelineLatency latency;
+    private final MonotonicClock clock;
+    private final Thread mergeThread;
+    private ScheduledExecutorService refresher = null;
+
+    // Sources are kept by id for the whole session so a keyboard keeps its track when it is reconnected.
+    private final Map<String, Integer> sourceIds = new HashMap<>();
+    // By id.
+    private final Map<String, Lane> attached = new HashMap<>();
+    // Replaced on attach/detach so the merge thread can iterate without locking.
+    private volatile Lane[] lanes = new Lane[0];
+
+    public MidiInputManager(NoteEventDispatcher dispatcher, MidiRouter router, MidiClockPll midiClock,
+                            PipelineLatency latency, MonotonicClock clock) {
+        this.dispatcher = dispatcher;
+        this.router = router;
+        this.midiClock = midiClock;
+        this.latency = latency;
+        this.clock = clock;
+        this.mergeThread = new Thread(this::mergeLoop, "MidiInputManager-merge");
+        this.mergeThread.setDaemon(true);
+        this.mergeThread.setPriority(Thread.MAX_PRIORITY);
+    }
+
+    /**
+     * Attach all current devices, and keep checking for new or removed ones.
+     */
+    public synchronized void start() {
+        if (refresher != null) return;
+        mergeThread.start();
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "MidiInputManager-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        refresher.scheduleWithFixedDelay(this::refresh, 0, REFRESH_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public Lane[] getLanes() {
+        return lanes;
+    }
+
+    private static boolean isInputDevice(MidiDevice device) {
+        return !(device instanceof Sequencer)
+                && !(device instanceof Synthesizer)
+                && device.getMaxTransmitters() != 0;
+    }
+
+    /**
+     * Attach new devices and detach devices which have gone away. Devices with the same name are told apart by the
+     * order MidiSystem lists them in, the second is "name #2" and so on.
+     */
+    public synchronized void refresh() {
+        Set<String> present = new HashSet<>();
+        Map<String, Integer> nameCounts = new HashMap<>();
+        for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+            try {
+                MidiDevice device = MidiSystem.getMidiDevice(info);
+                if (!isInputDevice(device)) continue;
+
+                String name = Util.deviceName(info);
+                int count = nameCounts.merge(name, 1, Integer::sum);
+                String id = count == 1 ? name : name + " #" + count;
+                present.add(id);
+                if (attached.containsKey(id)) continue;
+
+                device.open();
+                attach(id, name, device, device.getTransmitter());
+                System.out.println("Attached MIDI input: " + id);
+            } catch (MidiUnavailableException e) {
+                // Busy or unplugged, try again on the next refresh.
+            }
+        }
+
+        for (String id : new HashSet<>(attached.keySet())) {
+            Lane lane = attached.get(id);
+            // Virtual transmitters have no device and are only removed explicitly.
+            if (lane.device != null && !present.contains(id)) {
+                detach(id);
+                System.out.println("Detached MIDI input: " + id);
+            }
+        }
+    }
+
+    /**
+     * Attach a transmitter which isn't a MidiSystem device, for example a virtual keyboard.
+     * @param name also its id, replacing any input attached with it.
+     */
+    public synchronized Lane attach(String name, Transmitter transmitter) {
+        return attach(name, name, null, transmitter);
+    }
+
+    private synchronized Lane attach(String id, String name, MidiDevice device, Transmitter transmitter) {
+        detach(id);
+
+        int source = sourceIds.computeIfAbsent(id, n -> sourceIds.size() + 1);
+        Lane lane = new Lane(id, name, source, device, transmitter);
+        lane.cursor.setWaiter(mergeThread);
+        transmitter.setReceiver(lane.receiver);
+
+        attached.put(id, lane);
+        Lane[] next = new Lane[lanes.length + 1];
+        System.arraycopy(lanes, 0, next, 0, lanes.length);
+        next[lanes.length] = lane;
+        lanes = next;
+        return lane;
+    }
+
+    /**
+     * Disconnect an input. Keys still held on it are released, notes already in its lane are still delivered, then
+     * the lane is dropped.
+     */
+    public synchronized void detach(String id) {
+        Lane lane = attached.remove(id);
+        if (lane == null) return;
+
+        lane.transmitter.close();
+        if (lane.device != null) {
+            lane.device.close();
+        }
+        // Through the lane, so every subscriber sees the keys come up after the notes already queued.
+        lane.receiver.releaseAll();
+        lane.detached = true;
+        LockSupport.unpark(mergeThread);
+    }
+
+    private synchronized void removeLane(Lane lane) {
+        int idx = -1;
+        for (int i = 0; i < lanes.length; i++) {
+            if (lanes[i] == lane) idx = i;
+        }
+        if (idx < 0) return;
+
+        Lane[] next = new Lane[lanes.length - 1];
+        System.arraycopy(lanes, 0, next, 0, idx);
+        System.arraycopy(lanes, idx + 1, next, idx, lanes.length - idx - 1);
+        lanes = next;
+    }
+
+    private void mergeLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Lane[] ls = this.lanes;
+
+            Lane earliest = null;
+            long earliestNanos = Long.MAX_VALUE;
+            for (Lane lane : ls) {
+                NoteEvent head = lane.cursor.peek();
+                if (head == null) {
+                    if (lane.detached) {
+                        removeLane(lane);
+                    }
+                } else if (earliest == null || head.timestampNanos < earliestNanos) {
+                    earliest = lane;
+                    earliestNanos = head.timestampNanos;
+                }
+            }
+
+            if (earliest == null) {
+                LockSupport.parkNanos(this, 10_000_000L);
+                continue;
+            }
+
+            NoteEvent event = earliest.cursor.poll();
+            dispatcher.publish(event);
+            latency.record(PipelineLatency.Stage.DISPATCH, event.receiveNanos);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package com.willwinder.rtp.util;
+
+import com.willwinder.rtp.model.NoteStore;
+import com.willwinder.rtp.model.TempoMap;
+
+import javax.sound.midi.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays the loaded song to a MIDI output device, for an external sound module or a player piano.
+ *
+ * The controller reports the song position every frame. A scheduler thread extrapolates it and hands each message
+ * to the device up to the lookahead ahead of time, with the future timestamp in the device's clock, so the device
+ * does the precise timing. Devices which don't keep a clock, or a lookahead of 0, get each message when it is due.
+ * The song is kept in ticks and the position anchored in ticks, so a tempo change retimes what hasn't been sent yet
+ * instead of looking like a seek.
+ *
+ * Messages given to a device can't be taken back, so when the song holds or stops every note scheduled in the
+ * future is cancelled by a note off right behind it. A hold (the follow mode stall) lets sounding notes ring and
+ * resumes with the cancelled notes, a stop releases everything.
+ */
+public class MidiOutScheduler {
+    public static final String NO_DEVICE = "None";
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+    // A song position further than this from the extrapolated position is a seek.
+    private static final double SEEK_TOLERANCE_MS = 20.0;
+    // Messages sent later than this after they were due count as late.
+    private static final long LATE_NANOS = 1_000_000L;
+
+    private enum State {
+        STOPPED,
+        HELD,
+        RUNNING
+    }
+
+    // Every note on and off of the song as parallel arrays, sorted by tick.
+    private static class Song {
+        final TempoMap tempo;
+        final long[] tick;
+        final ShortMessage[] messages;
+
+        Song(TempoMap tempo, long[] tick, ShortMessage[] messages) {
+            this.tempo = tempo;
+            this.tick = tick;
+            this.messages = messages;
+        }
+    }
+
+    private final MonotonicClock clock;
+    public final LatencyHistogram jitter = new LatencyHistogram("midi out scheduling jitter");
+    private final AtomicLong sentCount = new AtomicLong(0);
+    private final AtomicLong lateCount = new AtomicLong(0);
+    private Thread thread = null;
+
+    private volatile Song song = new Song(NoteStore.EMPTY.getTempoMap(), new long[0], new ShortMessage[0]);
+    private volatile MidiDevice device = null;
+    private volatile Receiver receiver = null;
+    private volatile long lookaheadNanos = 0;
+    // Messages are sent this much early so they are heard on time.
+    private volatile long outputLatencyNanos = 0;
+
+    private static final int RELEASE_NONE = 0;
+    private static final int RELEASE_FUTURE = 1;
+    private static final int RELEASE_ALL = 2;
+
+    // Song position from the controller and requests for the scheduler thread, guarded by this.
+    private State state = State.STOPPED;
+    private double anchorTick = 0;
+    private long anchorNanos = 0;
+    private double rate = 1.0;
+    private int pendingRelease = RELEASE_NONE;
+    private boolean reindex = false;
+    // Resuming from a hold, events at exactly the song position already played.
+    private boolean reindexExclusive = false;
+
+    // Scheduler thread only.
+    private int idx = 0;
+    // Events due to be sent before this were already late when playback started or seeked, not jitter.
+    private long reindexNanos = 0;
+    // Clock time of the last note on sent for each channel and key, 0 once it has been released.
+    private final long[] onDueNanos = new long[16 * 128];
+    private final ShortMessage off = new ShortMessage();
+
+    public MidiOutScheduler(MonotonicClock clock) {
+        this.clock = clock;
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(this::scheduleLoop, "MidiOutScheduler");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * @return ids of the output devices, starting with NO_DEVICE.
+     */
+    public static List<String> getDeviceIds() {
+        List<String> ids = new ArrayList<>();
+        ids.add(NO_DEVICE);
+        ids.addAll(getOutputs().keySet());
+        return ids;
+    }
+
+    /**
+     * Output devices by id. Like MidiInputManager's inputs an id is the name, vendor and description, and devices
+     * which share those are told apart by the order MidiSystem lists them in, the second is "name #2" and so on.
+     */
+    private static Map<String, MidiDevice.Info> getOutputs() {
+        Map<String, MidiDevice.Info> outputs = new LinkedHashMap<>();
+        Map<String, Integer> nameCounts = new HashMap<>();
+        for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+            try {
+                MidiDevice d = MidiSystem.getMidiDevice(info);
+                if (!(d instanceof Sequencer) && d.getMaxReceivers() != 0) {
+                    String name = Util.deviceName(info);
+                    int count = nameCounts.merge(name, 1, Integer::sum);
+                    outputs.put(count == 1 ? name : name + " #" + count, info);
+                }
+            } catch (MidiUnavailableException e) {
+                // Not available, leave it out.
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Switch to another output device, notes on the current device are released first.
+     * @param id one of getDeviceIds.
+     */
+    public synchronized void setDevice(String id) {
+        Receiver previous = this.receiver;
+        MidiDevice previousDevice = this.device;
+        this.receiver = null;
+        this.device = null;
+        if (previous != null) {
+            // Release everything on the old device, the scheduler forgets about those notes.
+            for (int channel = 0; channel < 16; channel++) {
+                try {
+                    previous.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 123, 0), -1);
+                } catch (InvalidMidiDataException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            previous.close();
+            previousDevice.close();
+        }
+
+        MidiDevice.Info info = getOutputs().get(id);
+        if (info != null) {
+            try {
+                MidiDevice d = MidiSystem.getMidiDevice(info);
+                d.open();
+                // Device first, the scheduler reads them in the opposite order.
+                this.device = d;
+                this.receiver = d.getReceiver();
+            } catch (MidiUnavailableException e) {
+                System.out.println("Unable to open MIDI output " + id + ": " + e.getMessage());
+            }
+        }
+
+        pendingRelease = RELEASE_ALL;
+        reindex = true;
+        reindexExclusive = false;
+    }
+
+    public void setLookaheadMs(long lookaheadMs) {
+        this.lookaheadNanos = lookaheadMs * 1_000_000L;
+    }
+
+    /**
+     * @param outputLatencyMs time from a message reaching the synthesizer until it is heard.
+     */
+    public void setOutputLatencyMs(long outputLatencyMs) {
+        this.outputLatencyNanos = outputLatencyMs * 1_000_000L;
+    }
+
+    /**
+     * Replace the song, playback stops.
+     */
+    public void load(NoteStore notes) {
+        List<long[]> events = new ArrayList<>(notes.size() * 2);
+        for (int i = 0; i < notes.size(); i++) {
+            int channel = notes.getChannel(i);
+            int key = notes.getKey(i);
+            events.add(new long[]{notes.getStartTick(i), 1, channel, key, notes.getVelocity(i)});
+            if (notes.getEndTick(i) >= 0) {
+                events.add(new long[]{notes.getEndTick(i), 0, channel, key, 0});
+            }
+        }
+        // Releases first, so a key played again at the same time is retriggered.
+        events.sort(Comparator.<long[]>comparingLong(e -> e[0]).thenComparingLong(e -> e[1]));
+
+        long[] tick = new long[events.size()];
+        ShortMessage[] messages = new ShortMessage[events.size()];
+        for (int i = 0; i < events.size(); i++) {
+            long[] e = events.get(i);
+            tick[i] = e[0];
+            try {
+                int command = e[1] == 1 ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF;
+                messages[i] = new ShortMessage(command, (int) e[2], (int) e[3], (int) e[4]);
+            } catch (InvalidMidiDataException ex) {
+                throw new IllegalArgumentException(ex);
+            }
+        }
+
+        synchronized (this) {
+            this.song = new Song(notes.getTempoMap(), tick, messages);
+            this.state = State.STOPPED;
+            pendingRelease = RELEASE_ALL;
+        }
+    }
+
+    /**
+     * The song is playing, call this every frame.
+     * @param songMs current song position.
+     * @param nowNanos application clock time of the position.
+     * @param rate song milliseconds per real millisecond.
+     */
+    public synchronized void play(double songMs, long nowNanos, double rate) {
+        TempoMap tempo = song.tempo;
+        double songTick = tempo.toTicks(songMs);
+        if (state != State.RUNNING) {
+            reindex = true;
+            reindexExclusive = state == State.HELD && songTick == anchorTick;
+        } else {
+            double predictedMs = tempo.toMs(anchorTick) + (nowNanos - anchorNanos) / 1e6 * this.rate;
+            if (Math.abs(songMs - predictedMs) > SEEK_TOLERANCE_MS) {
+                pendingRelease = RELEASE_ALL;
+                reindex = true;
+                reindexExclusive = false;
+            }
+        }
+        state = State.RUNNING;
+        anchorTick = songTick;
+        anchorNanos = nowNanos;
+        this.rate = rate;
+    }
+
+    /**
+     * The song is waiting, for example on the player in follow mode. Sounding notes ring on.
+     */
+    public synchronized void hold() {
+        if (state == State.RUNNING) {
+            state = State.HELD;
+            pendingRelease = Math.max(pendingRelease, RELEASE_FUTURE);
+        }
+    }
+
+    /**
+     * The song is paused or stopped. Everything is released.
+     */
+    public synchronized void stop() {
+        if (state != State.STOPPED) {
+            state = State.STOPPED;
+            pendingRelease = RELEASE_ALL;
+        }
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * Messages which were handed to the device more than a millisecond after the time they should have played.
+     */
+    public long getLateCount() {
+        return lateCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MIDI out: sent=" + getSentCount() + ", late=" + getLateCount()
+                + ", jitter p50=" + jitter.getValueAtPercentile(50) / 1000 + "us"
+                + ", p99=" + jitter.getValueAtPercentile(99) / 1000 + "us"
+                + ", max=" + jitter.getMax() / 1000 + "us";
+    }
+
+    private void scheduleLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            State s;
+            double songTick;
+            long anchor;
+            double r;
+            int release;
+            boolean seek;
+            boolean exclusive;
+            synchronized (this) {
+                s = state;
+                songTick = anchorTick;
+                anchor = anchorNanos;
+                r = rate;
+                release = pendingRelease;
+                pendingRelease = RELEASE_NONE;
+                // A reindex waits until the song is running again.
+                seek = reindex && s == State.RUNNING;
+                exclusive = reindexExclusive;
+                reindex &= !seek;
+            }
+
+            Receiver out = this.receiver;
+            MidiDevice d = this.device;
+            Song current = this.song;
+            long now = clock.nowNanos();
+            long deviceMicros = (out == null || d == null) ? -1 : d.getMicrosecondPosition();
+            boolean timestamped = lookaheadNanos > 0 && deviceMicros >= 0;
+
+            if (release != RELEASE_NONE) {
+                release(out, release == RELEASE_FUTURE, now, deviceMicros, timestamped);
+            }
+            if (seek) {
+                idx = firstEventAfter(current, songTick, exclusive);
+                reindexNanos = now;
+            }
+
+            if (out == null || s != State.RUNNING || r <= 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            long horizon = now + (timestamped ? lookaheadNanos : 0);
+            long early = outputLatencyNanos;
+            long wait = IDLE_PARK_NANOS;
+            double msPerTick = current.tempo.getMsPerTick();
+            while (idx < current.tick.length) {
+                long due = anchor + (long) ((current.tick[idx] - songTick) * msPerTick / r * 1e6) - early;
+                if (due > horizon) {
+                    wait = Math.min(wait, due - horizon);
+                    break;
+                }
+
+                ShortMessage m = current.messages[idx];
+                long sendNanos = clock.nowNanos();
+                send(out, m, timestamped ? deviceMicros + (due - now) / 1000 : -1);
+
+                // Timestamped messages should leave a lookahead early, the others exactly on time.
+                long target = timestamped ? due - lookaheadNanos : due;
+                if (target >= reindexNanos) {
+                    jitter.record(Math.abs(sendNanos - target));
+                }
+                if (sendNanos - due > LATE_NANOS) {
+                    lateCount.incrementAndGet();
+                }
+
+                int slot = (m.getChannel() << 7) | m.getData1();
+                onDueNanos[slot] = m.getCommand() == ShortMessage.NOTE_ON ? due : 0;
+                idx++;
+            }
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    /**
+     * Cancel every note which was scheduled for the future, and unless holding every sounding note.
+     * @param out current device, or null to only forget the notes.
+     */
+    private void release(Receiver out, boolean hold, long now, long deviceMicros, boolean timestamped) {
+        for (int slot = 0; slot < onDueNanos.length; slot++) {
+            long due = onDueNanos[slot];
+            if (due == 0 || (hold && due <= now)) continue;
+            onDueNanos[slot] = 0;
+            if (out == null) continue;
+
+            long timestamp = -1;
+            if (timestamped && due > now) {
+                // Just after the note on, which the device already has.
+                timestamp = deviceMicros + (due - now) / 1000 + 1;
+            }
+            try {
+                off.setMessage(ShortMessage.NOTE_OFF, slot >>> 7, slot & 0x7F, 0);
+            } catch (InvalidMidiDataException e) {
+                throw new IllegalStateException(e);
+            }
+            send(out, off, timestamp);
+        }
+    }
+
+    private void send(Receiver out, MidiMessage message, long timestamp) {
+        try {
+            out.send(message, timestamp);
+            sentCount.incrementAndGet();
+        } catch (IllegalStateException e) {
+            // Device was closed under us, setDevice will replace it.
+        }
+    }
+
+    /**
+     * @param exclusive skip events at exactly songTick, they were already played before a hold.
+     */
+    private static int firstEventAfter(Song song, double songTick, boolean exclusive) {
+        long[] ticks = song.tick;
+        int lo = 0;
+        int hi = ticks.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ticks[mid] < songTick || (exclusive && ticks[mid] == songTick)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
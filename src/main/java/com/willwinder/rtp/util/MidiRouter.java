@@ -0,0 +1,20 @@
+package com.willwinder.rtp.util;
+
+/**
+ * Holds the active RoutingTable. Receivers read it once per message, edits compile a new table and swap it in.
+ */
+public class MidiRouter {
+    private volatile RoutingTable table;
+
+    public MidiRouter(RoutingGraph graph) {
+        this.table = graph.compile();
+    }
+
+    public RoutingTable getTable() {
+        return table;
+    }
+
+    public void setGraph(RoutingGraph graph) {
+        this.table = graph.compile();
+    }
+}
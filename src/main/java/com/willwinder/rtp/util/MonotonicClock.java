@@ -0,0 +1,32 @@
+package com.willwinder.rtp.util;
+
+/**
+ * The application clock. Monotonic nanoseconds since the clock was created, unaffected by wall clock jumps.
+ * All note timestamps and the realtime timeline use this clock.
+ */
+public class MonotonicClock {
+    private final long originNanos;
+
+    public MonotonicClock() {
+        this.originNanos = System.nanoTime();
+    }
+
+    public long nowNanos() {
+        return System.nanoTime() - originNanos;
+    }
+
+    public long nowMs() {
+        return toMs(nowNanos());
+    }
+
+    /**
+     * Convert a raw System.nanoTime value, like the JavaFX pulse timestamp, to this clock.
+     */
+    public long fromSystemNanos(long systemNanos) {
+        return systemNanos - originNanos;
+    }
+
+    public static long toMs(long nanos) {
+        return Math.floorDiv(nanos, 1_000_000L);
+    }
+}
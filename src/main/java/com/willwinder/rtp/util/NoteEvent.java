@@ -2,14 +2,71 @@ package com.willwinder.rtp.util;
 
 import com.willwinder.rtp.model.Key;
 
+/**
+ * A note on/off event. The fields are mutable so that the ingest ring can reuse event objects, consumers
+ * must copy anything they want to keep.
+ */
 public class NoteEvent {
-    public final int track;
-    public final Key key;
-    public final long timestampMs;
+    public int track;
+    // Index of the MIDI input device the event came from, 0 for events which didn't come from a device.
+    public int source;
+    public Key key;
+    public int velocity;
+    // Event time on the MonotonicClock, timestampMs is the same time truncated to milliseconds.
+    public long timestampNanos;
+    public long timestampMs;
+    // System.nanoTime when the MIDI message was received and when the event entered the ingest ring, used for
+    // latency measurements. Zero for events which didn't come from a MIDI device.
+    public long receiveNanos;
+    public long publishNanos;
 
-    public NoteEvent(Key key, int track, long timestampMs) {
+    public NoteEvent() {
+        this(null, 0, 0, 0);
+    }
+
+    public NoteEvent(Key key, int velocity, int track, long timestampMs) {
+        set(key, velocity, track, timestampMs);
+    }
+
+    /**
+     * Set a song note, timed in milliseconds.
+     */
+    public NoteEvent set(Key key, int velocity, int track, long timestampMs) {
         this.key = key;
+        this.velocity = velocity;
         this.track = track;
+        this.source = 0;
         this.timestampMs = timestampMs;
+        this.timestampNanos = timestampMs * 1_000_000L;
+        this.receiveNanos = 0;
+        this.publishNanos = 0;
+        return this;
+    }
+
+    /**
+     * Set a live note from a MIDI device.
+     */
+    public NoteEvent setLive(Key key, int velocity, int track, int source, long timestampNanos, long receiveNanos) {
+        this.key = key;
+        this.velocity = velocity;
+        this.track = track;
+        this.source = source;
+        this.timestampNanos = timestampNanos;
+        this.timestampMs = MonotonicClock.toMs(timestampNanos);
+        this.receiveNanos = receiveNanos;
+        this.publishNanos = 0;
+        return this;
+    }
+
+    public NoteEvent copyFrom(NoteEvent other) {
+        this.key = other.key;
+        this.velocity = other.velocity;
+        this.track = other.track;
+        this.source = other.source;
+        this.timestampNanos = other.timestampNanos;
+        this.timestampMs = other.timestampMs;
+        this.receiveNanos = other.receiveNanos;
+        this.publishNanos = other.publishNanos;
+        return this;
     }
 }
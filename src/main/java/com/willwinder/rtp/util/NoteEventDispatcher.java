@@ -0,0 +1,164 @@
+package com.willwinder.rtp.util;
+
+import javafx.application.Platform;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Typed note event dispatcher. Events are published into a NoteEventRing and every subscriber reads them with
+ * its own cursor, the subscriber decides which thread it is called on.
+ */
+public class NoteEventDispatcher {
+    public enum Delivery {
+        // Called on the publishing thread (the MIDI thread) as part of publish. Only for very cheap listeners.
+        SYNCHRONOUS,
+        // Called on the JavaFX application thread.
+        FX_THREAD,
+        // Called on a dedicated worker thread owned by the subscription.
+        WORKER
+    }
+
+    private final NoteEventRing ring;
+    private final AtomicBoolean fxDrainScheduled = new AtomicBoolean(false);
+    private final Runnable fxDrain = this::drainFx;
+
+    // Replaced on subscription so publish can iterate without allocating.
+    private volatile Subscription[] synchronous = new Subscription[0];
+    private volatile Subscription[] fx = new Subscription[0];
+    private volatile Subscription[] all = new Subscription[0];
+
+    public NoteEventDispatcher(NoteEventRing ring) {
+        this.ring = ring;
+    }
+
+    public NoteEventRing getRing() {
+        return ring;
+    }
+
+    /**
+     * @return every subscription, for diagnostics.
+     */
+    public Subscription[] getSubscriptions() {
+        return all;
+    }
+
+    /**
+     * Publish a note to all subscribers. Only call this from the producer thread.
+     * @param event copied into the ring, the caller keeps ownership.
+     */
+    public void publish(NoteEvent event) {
+        ring.publish(event);
+
+        for (Subscription s : synchronous) {
+            s.drain();
+        }
+
+        if (fx.length > 0 && fxDrainScheduled.compareAndSet(false, true)) {
+            Platform.runLater(fxDrain);
+        }
+    }
+
+    /**
+     * Register a listener.
+     * @param name used for thread names and diagnostics.
+     * @param delivery which thread the listener is called on.
+     * @param listener receives each event.
+     * @return the subscription, which holds the latency histogram for the listener.
+     */
+    public synchronized Subscription subscribe(String name, Delivery delivery, NoteListener listener) {
+        Subscription s = new Subscription(name, delivery, ring.newCursor(name), listener);
+        all = append(all, s);
+        switch (delivery) {
+            case SYNCHRONOUS:
+                synchronous = append(synchronous, s);
+                break;
+            case FX_THREAD:
+                fx = append(fx, s);
+                break;
+            case WORKER:
+                Thread t = new Thread(s::workerLoop, "NoteEventDispatcher-" + name);
+                t.setDaemon(true);
+                // Above the UI, but below the audio render threads which must never be preempted by a subscriber.
+                t.setPriority(Thread.NORM_PRIORITY + 1);
+                t.start();
+                break;
+        }
+        return s;
+    }
+
+    private static Subscription[] append(Subscription[] arr, Subscription s) {
+        Subscription[] next = new Subscription[arr.length + 1];
+        System.arraycopy(arr, 0, next, 0, arr.length);
+        next[arr.length] = s;
+        return next;
+    }
+
+    private void drainFx() {
+        fxDrainScheduled.set(false);
+        for (Subscription s : fx) {
+            s.drain();
+        }
+    }
+
+    /**
+     * A listener's cursor into the ring along with its latency histogram. Latency is measured from the moment an
+     * event was published until the listener returns, so it includes queueing and the listener's own work.
+     */
+    public static class Subscription implements NoteListener {
+        public final String name;
+        public final Delivery delivery;
+        private final NoteEventRing.Cursor cursor;
+        private final NoteListener listener;
+        public final LatencyHistogram latency;
+
+        private Subscription(String name, Delivery delivery, NoteEventRing.Cursor cursor, NoteListener listener) {
+            this.name = name;
+            this.delivery = delivery;
+            this.cursor = cursor;
+            this.listener = listener;
+            this.latency = new LatencyHistogram("subscriber " + name + " (" + delivery + ")");
+        }
+
+        private void drain() {
+            cursor.drain(this);
+        }
+
+        private void workerLoop() {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (cursor.drain(this) == 0) {
+                    cursor.await();
+                }
+            }
+        }
+
+        @Override
+        public void noteEvent(NoteEvent event) {
+            listener.noteEvent(event);
+            latency.recordSince(event.publishNanos);
+        }
+
+        /**
+         * Number of events this listener has not received yet.
+         */
+        public long getLag() {
+            return cursor.getLag();
+        }
+
+        /**
+         * Number of events this listener missed because it fell a full ring behind.
+         */
+        public long getLostCount() {
+            return cursor.getLostCount();
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + delivery + "): count=" + latency.getCount()
+                    + ", p50=" + latency.getValueAtPercentile(50) / 1000 + "us"
+                    + ", p99=" + latency.getValueAtPercentile(99) / 1000 + "us"
+                    + ", max=" + latency.getMax() / 1000 + "us"
+                    + ", lag=" + getLag()
+                    + ", lost=" + getLostCount();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.willwinder.rtp.util;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer / multi-consumer ring buffer of preallocated note event slots.
+ *
+ * The MIDI thread is the only producer, it copies each event into the next slot and never blocks. Each
+ * consumer drains the ring with its own Cursor at its own pace. A consumer which falls more than a full
+ * ring behind is lapped: the producer overwrites the slots, the cursor skips forward and counts the events
+ * it lost.
+ */
+public class NoteEventRing {
+    private static class Slot {
+        // Sequence number of the event held in this slot, -1 while the producer is writing it.
+        volatile long sequence = -1;
+        final NoteEvent event = new NoteEvent();
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+
+    // Sequence number of the next event to publish. Only written by the producer.
+    private final AtomicLong published = new AtomicLong(0);
+    private final AtomicLong overflowCount = new AtomicLong(0);
+
+    // Replaced on registration so the producer can iterate without allocating.
+    private volatile Cursor[] cursors = new Cursor[0];
+
+    /**
+     * @param capacity number of slots, rounded up to the next power of two.
+     */
+    public NoteEventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Number of events which overwrote a slot the slowest consumer had not read yet.
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * Total number of events published so far.
+     */
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * Copy an event into the next slot and stamp its publish time. Only call this from the producer thread.
+     */
+    public void publish(NoteEvent event) {
+        long seq = published.get();
+        Cursor[] cs = this.cursors;
+
+        for (Cursor c : cs) {
+            if (seq - c.next >= slots.length) {
+                overflowCount.incrementAndGet();
+                break;
+            }
+        }
+
+        Slot s = slots[(int) seq & mask];
+        s.sequence = -1;
+        VarHandle.storeStoreFence();
+        s.event.copyFrom(event);
+        s.event.publishNanos = System.nanoTime();
+        s.sequence = seq;
+        published.set(seq + 1);
+
+        for (Cursor c : cs) {
+            Thread waiter = c.waiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    /**
+     * Register a new consumer. The cursor starts at the current end of the ring, it will not see older events.
+     * @param name used for thread names and diagnostics.
+     */
+    public synchronized Cursor newCursor(String name) {
+        Cursor c = new Cursor(name, published.get());
+        Cursor[] next = new Cursor[cursors.length + 1];
+        System.arraycopy(cursors, 0, next, 0, cursors.length);
+        next[cursors.length] = c;
+        cursors = next;
+        return c;
+    }
+
+    /**
+     * A single consumer's position in the ring. A cursor must only be drained by one thread.
+     */
+    public class Cursor {
+        public final String name;
+        private final NoteEvent scratch = new NoteEvent();
+        // scratch holds an event which was peeked but not consumed yet.
+        private boolean peeked = false;
+        private final AtomicLong lostCount = new AtomicLong(0);
+        // Read by the producer to detect overflow.
+        private volatile long next;
+        private volatile Thread waiter = null;
+
+        private Cursor(String name, long start) {
+            this.name = name;
+            this.next = start;
+        }
+
+        /**
+         * Deliver every available event to the handler.
+         * @param handler receives each event, the event object is reused and must not be retained.
+         * @return number of events delivered.
+         */
+        public int drain(NoteListener handler) {
+            int delivered = 0;
+            while (read()) {
+                handler.noteEvent(scratch);
+                delivered++;
+            }
+            return delivered;
+        }
+
+        /**
+         * Read the next event without consuming it, it stays available until poll is called.
+         * @return the next event, reused and must not be retained, or null if there isn't one.
+         */
+        public NoteEvent peek() {
+            if (read()) {
+                peeked = true;
+                return scratch;
+            }
+            return null;
+        }
+
+        /**
+         * Consume the next event.
+         * @return the event, reused and must not be retained, or null if there isn't one.
+         */
+        public NoteEvent poll() {
+            return read() ? scratch : null;
+        }
+
+        /**
+         * Copy the next intact event into scratch and advance past it, skipping anything the producer overwrote.
+         */
+        private boolean read() {
+            if (peeked) {
+                peeked = false;
+                return true;
+            }
+
+            long available = published.get();
+            long n = this.next;
+
+            while (n < available) {
+                // Lapped by the producer, skip to the oldest slot which may still be intact.
+                if (available - n > slots.length) {
+                    lostCount.addAndGet(available - n - slots.length);
+                    n = available - slots.length;
+                }
+
+                Slot s = slots[(int) n & mask];
+                long before = s.sequence;
+                scratch.copyFrom(s.event);
+                VarHandle.loadLoadFence();
+                long after = s.sequence;
+                n++;
+
+                // The producer wrapped around and overwrote this slot while it was being read.
+                if (before != n - 1 || after != before) {
+                    lostCount.incrementAndGet();
+                    continue;
+                }
+
+                this.next = n;
+                return true;
+            }
+
+            this.next = n;
+            return false;
+        }
+
+        /**
+         * Park the calling thread until the producer publishes something, or a short timeout. Only the thread
+         * which drains this cursor may call this.
+         */
+        void await() {
+            waiter = Thread.currentThread();
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, 10_000_000L);
+            }
+        }
+
+        /**
+         * Thread to unpark when something is published, for consumers which wait on several cursors.
+         */
+        void setWaiter(Thread thread) {
+            waiter = thread;
+        }
+
+        public boolean isEmpty() {
+            return !peeked && published.get() == this.next;
+        }
+
+        /**
+         * Number of published events this cursor has not consumed yet.
+         */
+        public long getLag() {
+            return published.get() - next;
+        }
+
+        /**
+         * Number of events this cursor missed because it was lapped by the producer.
+         */
+        public long getLostCount() {
+            return lostCount.get();
+        }
+    }
+}
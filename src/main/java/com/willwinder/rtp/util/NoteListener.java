@@ -0,0 +1,12 @@
+package com.willwinder.rtp.util;
+
+/**
+ * Receives note events from the NoteEventDispatcher.
+ */
+@FunctionalInterface
+public interface NoteListener {
+    /**
+     * @param event the event, it is reused by the caller and must not be retained.
+     */
+    void noteEvent(NoteEvent event);
+}
@@ -0,0 +1,95 @@
+package com.willwinder.rtp.util;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Latency histograms for each stage of the note pipeline. Every stage is measured from the moment
+ * KeyboardReceiver.send received the MIDI message.
+ */
+public class PipelineLatency {
+    public enum Stage {
+        // Message decoded and published to the dispatcher.
+        DISPATCH("receive -> dispatch"),
+        // Keyboard state and timeline updated.
+        MODEL_UPDATE("receive -> model"),
+        // Key drawn by the keyboard view, or spark drawn on the timeline.
+        FRAME_DRAWN("receive -> frame"),
+        // Note handed to the synthesizer.
+        SYNTH("receive -> synth");
+
+        public final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    // Not a stage, time taken to draw each frame.
+    public final LatencyHistogram frameTime = new LatencyHistogram("frame time");
+    // Histograms owned by other components which should be included in dumps.
+    private final List<LatencyHistogram> extras = new CopyOnWriteArrayList<>();
+
+    public PipelineLatency() {
+        for (Stage s : Stage.values()) {
+            histograms[s.ordinal()] = new LatencyHistogram(s.label);
+        }
+    }
+
+    public LatencyHistogram get(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Record a stage for an event received at the given System.nanoTime, events without a timestamp are ignored.
+     */
+    public void record(Stage stage, long receiveNanos) {
+        histograms[stage.ordinal()].recordSince(receiveNanos);
+    }
+
+    /**
+     * Include another component's histogram in dumps.
+     */
+    public void register(LatencyHistogram histogram) {
+        extras.add(histogram);
+    }
+
+    public void reset() {
+        for (LatencyHistogram h : histograms) {
+            h.reset();
+        }
+        frameTime.reset();
+        for (LatencyHistogram h : extras) {
+            h.reset();
+        }
+    }
+
+    /**
+     * Write every stage histogram, the frame time and registered histograms, followed by the per-subscriber
+     * histograms of the dispatcher, to a file.
+     * @param status written first as comment lines, for the state the histograms were recorded in.
+     */
+    public void dump(Path file, NoteEventDispatcher dispatcher, String status) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            for (String line : status.split("\n")) {
+                out.println("# " + line);
+            }
+            out.println();
+            for (LatencyHistogram h : histograms) {
+                h.dump(out);
+            }
+            frameTime.dump(out);
+            for (LatencyHistogram h : extras) {
+                h.dump(out);
+            }
+            for (NoteEventDispatcher.Subscription s : dispatcher.getSubscriptions()) {
+                s.latency.dump(out);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.willwinder.rtp.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Description of how MIDI input is transformed before it reaches the app: which messages are filtered out and
+ * which routes each key is sent through. Every route matching a key produces an output, so overlapping routes
+ * layer, disjoint key ranges split the keyboard and a non-zero transpose shifts the key.
+ *
+ * The graph is only a description, compile it into a RoutingTable to use it.
+ */
+public class RoutingGraph {
+    public static class Route {
+        // MIDI channel 0-15, or -1 for any channel.
+        public final int channel;
+        public final int lowKey;
+        public final int highKey;
+        public final int transpose;
+        // Timeline track for the output, or 0 to keep the input device's track.
+        public final int track;
+
+        public Route(int channel, int lowKey, int highKey, int transpose, int track) {
+            this.channel = channel;
+            this.lowKey = lowKey;
+            this.highKey = highKey;
+            this.transpose = transpose;
+            this.track = track;
+        }
+
+        boolean matches(int channel, int key) {
+            return (this.channel < 0 || this.channel == channel) && key >= lowKey && key <= highKey;
+        }
+    }
+
+    private final List<Route> routes = new ArrayList<>();
+    private final boolean[] droppedStatus = new boolean[256];
+
+    /**
+     * A graph which passes every note through unchanged.
+     */
+    public static RoutingGraph identity() {
+        return new RoutingGraph().route(new Route(-1, 0, 127, 0, 0));
+    }
+
+    public RoutingGraph route(Route route) {
+        routes.add(route);
+        return this;
+    }
+
+    /**
+     * Drop a system message, like ShortMessage.ACTIVE_SENSING.
+     */
+    public RoutingGraph dropStatus(int status) {
+        droppedStatus[status & 0xFF] = true;
+        return this;
+    }
+
+    /**
+     * Drop a channel message on every channel, like ShortMessage.POLY_PRESSURE.
+     */
+    public RoutingGraph dropCommand(int command) {
+        for (int channel = 0; channel < 16; channel++) {
+            droppedStatus[(command & 0xF0) | channel] = true;
+        }
+        return this;
+    }
+
+    public List<Route> getRoutes() {
+        return Collections.unmodifiableList(routes);
+    }
+
+    public RoutingTable compile() {
+        int[] outputs = new int[16 * 128 * RoutingTable.MAX_OUTPUTS];
+        Arrays.fill(outputs, RoutingTable.NONE);
+
+        for (int channel = 0; channel < 16; channel++) {
+            for (int key = 0; key < 128; key++) {
+                int idx = RoutingTable.index(channel, key);
+                int count = 0;
+                for (Route r : routes) {
+                    int out = key + r.transpose;
+                    if (!r.matches(channel, key) || out < 0 || out > 127) continue;
+                    if (count == RoutingTable.MAX_OUTPUTS) break;
+                    outputs[idx + count++] = RoutingTable.encode(out, r.track);
+                }
+            }
+        }
+
+        return new RoutingTable(outputs, droppedStatus.clone());
+    }
+}
@@ -0,0 +1,49 @@
+package com.willwinder.rtp.util;
+
+/**
+ * A compiled RoutingGraph. Every (channel, key) has a fixed block of MAX_OUTPUTS entries in a flat array, so
+ * routing a note is a single index calculation. Tables are immutable, swap in a new one to change the routing.
+ */
+public class RoutingTable {
+    public static final int MAX_OUTPUTS = 4;
+    // Marks the end of an output block.
+    public static final int NONE = -1;
+
+    private final int[] outputs;
+    private final boolean[] droppedStatus;
+
+    RoutingTable(int[] outputs, boolean[] droppedStatus) {
+        this.outputs = outputs;
+        this.droppedStatus = droppedStatus;
+    }
+
+    static int encode(int key, int track) {
+        return (track & 0xFF) << 8 | (key & 0x7F);
+    }
+
+    public static int outputKey(int output) {
+        return output & 0x7F;
+    }
+
+    /**
+     * @return the output track, or 0 for the input device's track.
+     */
+    public static int outputTrack(int output) {
+        return (output >>> 8) & 0xFF;
+    }
+
+    /**
+     * @return index of the first output for a channel and key, the block continues until NONE or MAX_OUTPUTS.
+     */
+    public static int index(int channel, int key) {
+        return ((channel & 0x0F) << 7 | (key & 0x7F)) * MAX_OUTPUTS;
+    }
+
+    public boolean isDropped(int status) {
+        return droppedStatus[status & 0xFF];
+    }
+
+    public int getOutput(int index) {
+        return outputs[index];
+    }
+}
@@ -0,0 +1,517 @@
+package com.willwinder.rtp.util;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One preset of an SF2 SoundFont, memory-mapped so large sample banks neither slow down startup nor fill the heap.
+ *
+ * Only the preset data (the pdta chunk) is parsed when the bank is opened, the sample data is left in the mapping
+ * and the OS pages it in when it's first touched. Samples are copied out of the mapping by a loader thread, when
+ * prefetch asks for the zones of a note about to be played, and kept in a least recently used cache bounded in
+ * bytes. They stay 16 bit like the file, voices scale them as they play. Reading the mapping straight from the
+ * render thread would have it wait for the page faults a cold sample causes, which the loader takes instead. The
+ * render thread only looks decoded samples up with getDecoded, which never locks, decodes or allocates, prefetch marks
+ * them as used since every note goes through it first. Voices hold
+ * on to the decoded arrays, so evicting a sample never cuts off a note which is playing.
+ */
+public class SoundFontBank {
+    // Generator operators used here, from the SF2 2.04 specification.
+    private static final int GEN_START_OFFSET = 0;
+    private static final int GEN_END_OFFSET = 1;
+    private static final int GEN_START_LOOP_OFFSET = 2;
+    private static final int GEN_END_LOOP_OFFSET = 3;
+    private static final int GEN_START_COARSE_OFFSET = 4;
+    private static final int GEN_END_COARSE_OFFSET = 12;
+    private static final int GEN_RELEASE_VOL_ENV = 38;
+    private static final int GEN_INSTRUMENT = 41;
+    private static final int GEN_KEY_RANGE = 43;
+    private static final int GEN_VEL_RANGE = 44;
+    private static final int GEN_START_LOOP_COARSE_OFFSET = 45;
+    private static final int GEN_INITIAL_ATTENUATION = 48;
+    private static final int GEN_END_LOOP_COARSE_OFFSET = 50;
+    private static final int GEN_COARSE_TUNE = 51;
+    private static final int GEN_FINE_TUNE = 52;
+    private static final int GEN_SAMPLE_ID = 53;
+    private static final int GEN_SAMPLE_MODES = 54;
+    private static final int GEN_OVERRIDING_ROOT_KEY = 58;
+    private static final int GEN_COUNT = 61;
+
+    // Generators the specification defaults to something other than 0.
+    private static final int[] GEN_DEFAULTS = new int[GEN_COUNT];
+    static {
+        GEN_DEFAULTS[GEN_RELEASE_VOL_ENV] = -12000;
+        GEN_DEFAULTS[GEN_KEY_RANGE] = 127 << 8;
+        GEN_DEFAULTS[GEN_VEL_RANGE] = 127 << 8;
+        GEN_DEFAULTS[GEN_OVERRIDING_ROOT_KEY] = -1;
+    }
+
+    /**
+     * A key and velocity range of the preset and the sample it plays. Sample positions are relative to the start of
+     * the sample's data.
+     */
+    public static class Zone {
+        public final int keyLow;
+        public final int keyHigh;
+        public final int velocityLow;
+        public final int velocityHigh;
+        public final int sample;
+        public final int start;
+        public final int end;
+        public final int loopStart;
+        public final int loopEnd;
+        public final boolean loop;
+        public final int sampleRate;
+        // The key which plays the sample at its recorded pitch, in fractional semitones after tuning.
+        public final double rootKey;
+        public final double gain;
+        public final double releaseSeconds;
+
+        private Zone(int[] gens, SampleHeader header, int sample) {
+            keyLow = gens[GEN_KEY_RANGE] & 0xFF;
+            keyHigh = (gens[GEN_KEY_RANGE] >> 8) & 0xFF;
+            velocityLow = gens[GEN_VEL_RANGE] & 0xFF;
+            velocityHigh = (gens[GEN_VEL_RANGE] >> 8) & 0xFF;
+            this.sample = sample;
+
+            int length = header.end - header.start;
+            start = clamp(gens[GEN_START_OFFSET] + 32768 * gens[GEN_START_COARSE_OFFSET], 0, length);
+            end = clamp(length + gens[GEN_END_OFFSET] + 32768 * gens[GEN_END_COARSE_OFFSET], start, length);
+            loopStart = clamp(header.loopStart - header.start + gens[GEN_START_LOOP_OFFSET] + 32768 * gens[GEN_START_LOOP_COARSE_OFFSET], start, end);
+            loopEnd = clamp(header.loopEnd - header.start + gens[GEN_END_LOOP_OFFSET] + 32768 * gens[GEN_END_LOOP_COARSE_OFFSET], loopStart, end);
+            loop = (gens[GEN_SAMPLE_MODES] & 1) != 0 && loopEnd - loopStart > 1;
+            sampleRate = header.sampleRate;
+
+            int root = gens[GEN_OVERRIDING_ROOT_KEY] >= 0 ? gens[GEN_OVERRIDING_ROOT_KEY] : header.originalPitch;
+            rootKey = root - gens[GEN_COARSE_TUNE] - (gens[GEN_FINE_TUNE] + header.pitchCorrection) / 100.0;
+            gain = Math.pow(10, -gens[GEN_INITIAL_ATTENUATION] / 200.0);
+            releaseSeconds = Math.pow(2, gens[GEN_RELEASE_VOL_ENV] / 1200.0);
+        }
+
+        public boolean matches(int key, int velocity) {
+            return key >= keyLow && key <= keyHigh && velocity >= velocityLow && velocity <= velocityHigh;
+        }
+    }
+
+    private static class SampleHeader {
+        final String name;
+        final int start;
+        final int end;
+        final int loopStart;
+        final int loopEnd;
+        final int sampleRate;
+        final int originalPitch;
+        final int pitchCorrection;
+
+        SampleHeader(String name, int start, int end, int loopStart, int loopEnd, int sampleRate, int originalPitch, int pitchCorrection) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.loopStart = loopStart;
+            this.loopEnd = loopEnd;
+            this.sampleRate = sampleRate;
+            this.originalPitch = originalPitch;
+            this.pitchCorrection = pitchCorrection;
+        }
+    }
+
+    public final String presetName;
+    private final FileChannel channel;
+    private final long mappedBytes;
+    private final ShortBuffer smpl;
+    private final SampleHeader[] samples;
+    private final Zone[] zones;
+    // Indexes into zones for each key.
+    private final int[][] zonesByKey = new int[128][];
+
+    private final long cacheLimitBytes;
+    // Decoded data by sample, null until the loader has decoded it.
+    private final AtomicReferenceArray<short[]> decoded;
+    // 1 while a sample is waiting for the loader.
+    private final AtomicIntegerArray requested;
+    // Decoded samples in access order, eldest first. Guarded by itself, prefetch touches and the loader evicts.
+    private final LinkedHashMap<Integer, short[]> recent = new LinkedHashMap<>(16, 0.75f, true);
+    // Boxed sample indexes, so touching an entry doesn't allocate.
+    private final Integer[] sampleKeys;
+    // Loader only, read for statistics.
+    private volatile long cachedBytes = 0;
+    private final Thread loader;
+    private volatile boolean closed = false;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    private final long openNanos;
+    private volatile long firstDecodeNanos = -1;
+    public final LatencyHistogram sampleLoad;
+
+    private SoundFontBank(FileChannel channel, MappedByteBuffer map, String presetName, ShortBuffer smpl,
+                          SampleHeader[] samples, Zone[] zones, long cacheLimitBytes, long openNanos,
+                          LatencyHistogram sampleLoad) {
+        this.channel = channel;
+        this.mappedBytes = map.capacity();
+        this.presetName = presetName;
+        this.smpl = smpl;
+        this.samples = samples;
+        this.zones = zones;
+        this.cacheLimitBytes = cacheLimitBytes;
+        this.openNanos = openNanos;
+        this.sampleLoad = sampleLoad;
+        this.decoded = new AtomicReferenceArray<>(samples.length);
+        this.requested = new AtomicIntegerArray(samples.length);
+        this.sampleKeys = new Integer[samples.length];
+        for (int s = 0; s < samples.length; s++) {
+            sampleKeys[s] = s;
+        }
+        this.loader = new Thread(this::loadLoop, "SoundFontBank-loader");
+        this.loader.setDaemon(true);
+
+        for (int key = 0; key < 128; key++) {
+            int count = 0;
+            int[] matches = new int[zones.length];
+            for (int z = 0; z < zones.length; z++) {
+                if (key >= zones[z].keyLow && key <= zones[z].keyHigh) {
+                    matches[count++] = z;
+                }
+            }
+            int[] keyZones = new int[count];
+            System.arraycopy(matches, 0, keyZones, 0, count);
+            zonesByKey[key] = keyZones;
+        }
+    }
+
+    /**
+     * Map the file and parse the presets.
+     * @param bank       MIDI bank of the preset to use.
+     * @param program    MIDI program of the preset, if it doesn't exist the first preset is used.
+     * @param cacheBytes most decoded sample data to keep.
+     * @param sampleLoad records how long each sample takes to decode.
+     */
+    public static SoundFontBank open(Path file, int bank, int program, long cacheBytes, LatencyHistogram sampleLoad) throws IOException {
+        long start = System.nanoTime();
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (!fourcc(map, 0).equals("RIFF") || !fourcc(map, 8).equals("sfbk")) {
+                throw new IOException("Not a SoundFont: " + file);
+            }
+
+            ShortBuffer smpl = null;
+            Map<String, int[]> pdta = new LinkedHashMap<>();
+            int riffEnd = (int) Math.min(map.capacity(), 8L + (map.getInt(4) & 0xFFFFFFFFL));
+            for (int pos = 12; pos + 8 <= riffEnd; ) {
+                String id = fourcc(map, pos);
+                int size = map.getInt(pos + 4);
+                if (id.equals("LIST")) {
+                    String type = fourcc(map, pos + 8);
+                    for (int sub = pos + 12; sub + 8 <= pos + 8 + size; ) {
+                        String subId = fourcc(map, sub);
+                        int subSize = map.getInt(sub + 4);
+                        if (type.equals("sdta") && subId.equals("smpl")) {
+                            smpl = map.duplicate().position(sub + 8).limit(sub + 8 + subSize)
+                                    .slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+                        } else if (type.equals("pdta")) {
+                            pdta.put(subId, new int[]{sub + 8, subSize});
+                        }
+                        sub += 8 + subSize + (subSize & 1);
+                    }
+                }
+                pos += 8 + size + (size & 1);
+            }
+            if (smpl == null || !pdta.containsKey("phdr") || !pdta.containsKey("shdr")) {
+                throw new IOException("SoundFont is missing sample or preset data: " + file);
+            }
+
+            SampleHeader[] samples = readSampleHeaders(map, pdta.get("shdr"));
+            int[] phdr = pdta.get("phdr");
+            int presets = phdr[1] / 38 - 1;
+            int preset = 0;
+            for (int p = 0; p < presets; p++) {
+                int at = phdr[0] + p * 38;
+                if ((map.getShort(at + 22) & 0xFFFF) == bank && (map.getShort(at + 20) & 0xFFFF) == program) {
+                    preset = p;
+                    break;
+                }
+            }
+            String name = string(map, phdr[0] + preset * 38, 20);
+            Zone[] zones = readPresetZones(map, pdta, samples, preset);
+
+            SoundFontBank soundFont = new SoundFontBank(channel, map, name, smpl, samples, zones, cacheBytes, System.nanoTime() - start, sampleLoad);
+            soundFont.loader.start();
+            return soundFont;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Invalid SoundFont: " + file, e);
+        }
+    }
+
+    private static SampleHeader[] readSampleHeaders(MappedByteBuffer map, int[] shdr) {
+        int count = shdr[1] / 46 - 1;
+        SampleHeader[] headers = new SampleHeader[count];
+        for (int i = 0; i < count; i++) {
+            int at = shdr[0] + i * 46;
+            headers[i] = new SampleHeader(
+                    string(map, at, 20),
+                    map.getInt(at + 20),
+                    map.getInt(at + 24),
+                    map.getInt(at + 28),
+                    map.getInt(at + 32),
+                    map.getInt(at + 36),
+                    map.get(at + 40) & 0xFF,
+                    map.get(at + 41));
+        }
+        return headers;
+    }
+
+    /**
+     * Flatten the preset's zones and the zones of the instruments they use into one list, preset generators are
+     * added to the instrument's and the key and velocity ranges are intersected.
+     */
+    private static Zone[] readPresetZones(MappedByteBuffer map, Map<String, int[]> pdta, SampleHeader[] samples, int preset) {
+        int[] phdr = pdta.get("phdr");
+        int[] pbag = pdta.get("pbag");
+        int[] pgen = pdta.get("pgen");
+        int[] inst = pdta.get("inst");
+        int[] ibag = pdta.get("ibag");
+        int[] igen = pdta.get("igen");
+
+        List<Zone> zones = new ArrayList<>();
+        int bagStart = map.getShort(phdr[0] + preset * 38 + 24) & 0xFFFF;
+        int bagEnd = map.getShort(phdr[0] + (preset + 1) * 38 + 24) & 0xFFFF;
+        // Preset generators are offsets to the instrument's, only the ranges have defaults.
+        int[] presetGlobal = new int[GEN_COUNT];
+        presetGlobal[GEN_KEY_RANGE] = GEN_DEFAULTS[GEN_KEY_RANGE];
+        presetGlobal[GEN_VEL_RANGE] = GEN_DEFAULTS[GEN_VEL_RANGE];
+        for (int b = bagStart; b < bagEnd; b++) {
+            int[] presetGens = presetGlobal.clone();
+            boolean hasInstrument = readGenerators(map, pbag, pgen, b, presetGens, GEN_INSTRUMENT);
+            if (!hasInstrument) {
+                // A zone without an instrument is only allowed first, as the global zone.
+                if (b == bagStart) presetGlobal = presetGens;
+                continue;
+            }
+
+            int instrument = presetGens[GEN_INSTRUMENT];
+            int iBagStart = map.getShort(inst[0] + instrument * 22 + 20) & 0xFFFF;
+            int iBagEnd = map.getShort(inst[0] + (instrument + 1) * 22 + 20) & 0xFFFF;
+            int[] instrumentGlobal = GEN_DEFAULTS.clone();
+            for (int ib = iBagStart; ib < iBagEnd; ib++) {
+                int[] gens = instrumentGlobal.clone();
+                boolean hasSample = readGenerators(map, ibag, igen, ib, gens, GEN_SAMPLE_ID);
+                if (!hasSample) {
+                    if (ib == iBagStart) instrumentGlobal = gens;
+                    continue;
+                }
+
+                for (int g = 0; g < GEN_COUNT; g++) {
+                    if (g == GEN_KEY_RANGE || g == GEN_VEL_RANGE) {
+                        gens[g] = intersect(gens[g], presetGens[g]);
+                    } else if (g != GEN_SAMPLE_ID && g != GEN_SAMPLE_MODES && g != GEN_OVERRIDING_ROOT_KEY) {
+                        gens[g] += presetGens[g];
+                    }
+                }
+                int sample = gens[GEN_SAMPLE_ID];
+                if (sample >= 0 && sample < samples.length && (gens[GEN_KEY_RANGE] & 0xFF) <= (gens[GEN_KEY_RANGE] >> 8)) {
+                    zones.add(new Zone(gens, samples[sample], sample));
+                }
+            }
+        }
+        return zones.toArray(new Zone[0]);
+    }
+
+    /**
+     * Read the generators of one bag into gens.
+     * @return true if the bag ends with the terminal generator, an instrument or sample id.
+     */
+    private static boolean readGenerators(MappedByteBuffer map, int[] bags, int[] gens, int bag, int[] out, int terminal) {
+        int genStart = map.getShort(bags[0] + bag * 4) & 0xFFFF;
+        int genEnd = map.getShort(bags[0] + (bag + 1) * 4) & 0xFFFF;
+        boolean found = false;
+        for (int g = genStart; g < genEnd; g++) {
+            int at = gens[0] + g * 4;
+            int oper = map.getShort(at) & 0xFFFF;
+            if (oper >= GEN_COUNT) continue;
+            if (oper == GEN_KEY_RANGE || oper == GEN_VEL_RANGE) {
+                out[oper] = (map.get(at + 2) & 0xFF) | (map.get(at + 3) & 0xFF) << 8;
+            } else if (oper == GEN_INSTRUMENT || oper == GEN_SAMPLE_ID) {
+                out[oper] = map.getShort(at + 2) & 0xFFFF;
+            } else {
+                out[oper] = map.getShort(at + 2);
+            }
+            found |= oper == terminal;
+        }
+        return found;
+    }
+
+    private static int intersect(int a, int b) {
+        int low = Math.max(a & 0xFF, b & 0xFF);
+        int high = Math.min(a >> 8, b >> 8);
+        return low | high << 8;
+    }
+
+    private static int clamp(int value, int low, int high) {
+        return Math.max(low, Math.min(high, value));
+    }
+
+    private static String fourcc(MappedByteBuffer map, int at) {
+        return string(map, at, 4);
+    }
+
+    private static String string(MappedByteBuffer map, int at, int length) {
+        byte[] bytes = new byte[length];
+        int end = 0;
+        while (end < length && (bytes[end] = map.get(at + end)) != 0) end++;
+        return new String(bytes, 0, end, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return indexes of the zones covering a key, use getZone to look them up.
+     */
+    public int[] getZonesForKey(int key) {
+        return zonesByKey[key];
+    }
+
+    public Zone getZone(int index) {
+        return zones[index];
+    }
+
+    /**
+     * Ask the loader to decode the samples of every zone a note would play, call it before sending the note to the
+     * render thread. Never waits for a decode, only for the loader to finish updating the cache order.
+     */
+    public void prefetch(int key, int velocity) {
+        for (int z : zonesByKey[key]) {
+            if (!zones[z].matches(key, velocity)) continue;
+            if (decoded.get(zones[z].sample) != null) {
+                hits.incrementAndGet();
+                synchronized (recent) {
+                    recent.get(sampleKeys[zones[z].sample]);
+                }
+            } else {
+                misses.incrementAndGet();
+                request(zones[z]);
+            }
+        }
+    }
+
+    /**
+     * Ask the loader to decode a zone's sample if it isn't decoded or already asked for. Never blocks or allocates.
+     */
+    public void request(Zone zone) {
+        if (decoded.get(zone.sample) == null && requested.compareAndSet(zone.sample, 0, 1)) {
+            LockSupport.unpark(loader);
+        }
+    }
+
+    /**
+     * Decoded data of a zone's sample, for the render thread. Never blocks or allocates.
+     * @return null if the loader hasn't decoded it yet, request it and look again later.
+     */
+    public short[] getDecoded(Zone zone) {
+        return decoded.get(zone.sample);
+    }
+
+    private void loadLoop() {
+        while (!closed) {
+            boolean loaded = false;
+            for (int s = 0; s < samples.length && !closed; s++) {
+                if (requested.get(s) != 0) {
+                    if (decoded.get(s) == null) {
+                        load(s);
+                    }
+                    requested.set(s, 0);
+                    loaded = true;
+                }
+            }
+            if (!loaded) {
+                // A request in between unparks straight away.
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * Copy a sample out of the mapping, then evict the least recently used samples while over the limit.
+     */
+    private void load(int sample) {
+        long start = System.nanoTime();
+        SampleHeader header = samples[sample];
+        int length = Math.max(0, Math.min(header.end, smpl.limit()) - header.start);
+        short[] data = new short[length];
+        smpl.duplicate().position(header.start).get(data);
+
+        decoded.set(sample, data);
+        long bytes = cachedBytes + 2L * length;
+        synchronized (recent) {
+            recent.put(sampleKeys[sample], data);
+            // The sample just loaded is last, it stays even if it alone is over the limit.
+            Iterator<Map.Entry<Integer, short[]>> eldest = recent.entrySet().iterator();
+            while (bytes > cacheLimitBytes && recent.size() > 1) {
+                Map.Entry<Integer, short[]> entry = eldest.next();
+                decoded.set(entry.getKey(), null);
+                bytes -= 2L * entry.getValue().length;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+        cachedBytes = bytes;
+
+        long elapsed = System.nanoTime() - start;
+        sampleLoad.record(elapsed);
+        if (firstDecodeNanos < 0) {
+            firstDecodeNanos = elapsed;
+        }
+    }
+
+    /**
+     * @return bytes of decoded sample data on the heap.
+     */
+    public long getResidentBytes() {
+        return cachedBytes;
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(loader);
+        try {
+            loader.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (recent) {
+            recent.clear();
+        }
+        for (int s = 0; s < samples.length; s++) {
+            decoded.set(s, null);
+        }
+        cachedBytes = 0;
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "SoundFont preset '" + presetName + "': " + zones.length + " zones, "
+                + "opened in " + openNanos / 1_000_000 + "ms, "
+                + "mapped " + mappedBytes / (1024 * 1024) + "MB, "
+                + "resident " + getResidentBytes() / 1024 + "KB, "
+                + "first sample decode " + (firstDecodeNanos < 0 ? "-" : firstDecodeNanos / 1000 + "us") + ", "
+                + "hits=" + hits.get() + ", misses=" + misses.get() + ", evictions=" + evictions.get();
+    }
+}
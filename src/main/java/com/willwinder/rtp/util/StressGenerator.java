@@ -0,0 +1,151 @@
+package com.willwinder.rtp.util;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a stress pattern through a VirtualTransmitter attached to the MidiInputManager, so the whole pipeline
+ * from KeyboardReceiver to the renderers and synth is exercised exactly as it would be with a keyboard.
+ *
+ * Messages are sent on the calling thread at a fixed rate. If the sender falls behind it catches up by sending
+ * every overdue message at once, which is also what a busy USB keyboard does.
+ */
+public class StressGenerator {
+    public static final String SOURCE_NAME = "Stress Generator";
+
+    /**
+     * Produces the messages of a stress test.
+     */
+    @FunctionalInterface
+    public interface Pattern {
+        /**
+         * @param index number of the message, starting at 0.
+         * @param random seeded so that runs can be repeated.
+         * @return a short message packed as status << 16 | data1 << 8 | data2, or -1 to send nothing.
+         */
+        int message(long index, Random random);
+    }
+
+    public static class Report {
+        public final String pattern;
+        public final int rate;
+        public final long sent;
+        public final long elapsedNanos;
+        // Lost by the input lane or by any subscriber.
+        public final long dropped;
+        public final long maxQueueDepth;
+        public final long frameP50Nanos;
+        public final long frameP99Nanos;
+        public final long frameMaxNanos;
+        public final long frames;
+
+        private Report(String pattern, int rate, long sent, long elapsedNanos, long dropped, long maxQueueDepth,
+                       LatencyHistogram frameTime) {
+            this.pattern = pattern;
+            this.rate = rate;
+            this.sent = sent;
+            this.elapsedNanos = elapsedNanos;
+            this.dropped = dropped;
+            this.maxQueueDepth = maxQueueDepth;
+            this.frameP50Nanos = frameTime.getValueAtPercentile(50);
+            this.frameP99Nanos = frameTime.getValueAtPercentile(99);
+            this.frameMaxNanos = frameTime.getMax();
+            this.frames = frameTime.getCount();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s at %d/s: sent=%d (%.0f/s), dropped=%d, max queue depth=%d, "
+                            + "frames=%d, frame time p50=%.2fms p99=%.2fms max=%.2fms",
+                    pattern, rate, sent, sent / (elapsedNanos / 1e9), dropped, maxQueueDepth,
+                    frames, frameP50Nanos / 1e6, frameP99Nanos / 1e6, frameMaxNanos / 1e6);
+        }
+    }
+
+    private final MidiInputManager inputs;
+    private final NoteEventDispatcher dispatcher;
+    private final PipelineLatency latency;
+
+    public StressGenerator(MidiInputManager inputs, NoteEventDispatcher dispatcher, PipelineLatency latency) {
+        this.inputs = inputs;
+        this.dispatcher = dispatcher;
+        this.latency = latency;
+    }
+
+    /**
+     * Run a stress test on the calling thread. Frame times are reset when the test starts.
+     * @param rate messages per second.
+     * @param seed for repeatable randomized patterns.
+     */
+    public Report run(Pattern pattern, int rate, Duration duration, long seed) throws InvalidMidiDataException {
+        VirtualTransmitter transmitter = new VirtualTransmitter();
+        MidiInputManager.Lane lane = inputs.attach(SOURCE_NAME, transmitter);
+
+        long droppedBefore = dropped(lane);
+        latency.frameTime.reset();
+
+        Random random = new Random(seed);
+        ShortMessage message = new ShortMessage();
+        long periodNanos = 1_000_000_000L / Math.max(1, rate);
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        long sent = 0;
+        long maxQueueDepth = 0;
+
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            // Catch up on every message which is due.
+            long due = (now - start) / periodNanos + 1;
+            for (; sent < due; sent++) {
+                int packed = pattern.message(sent, random);
+                if (packed < 0) continue;
+                // Receivers in this app never keep the message, so it is reused.
+                message.setMessage(packed >>> 16, (packed >>> 8) & 0x7F, packed & 0x7F);
+                transmitter.send(message, (start + sent * periodNanos) / 1000);
+            }
+
+            maxQueueDepth = Math.max(maxQueueDepth, queueDepth(lane));
+            LockSupport.parkNanos(start + due * periodNanos - System.nanoTime());
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // Give the consumers a moment to catch up before counting what was lost.
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (queueDepth(lane) > 0 && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(1_000_000L);
+        }
+
+        Report report = new Report(pattern.toString(), rate, sent, elapsed, dropped(lane) - droppedBefore,
+                maxQueueDepth, latency.frameTime);
+
+        // Release anything the pattern left pressed.
+        for (int key = 0; key < 128; key++) {
+            message.setMessage(ShortMessage.NOTE_OFF, key, 0);
+            transmitter.send(message, -1);
+        }
+        inputs.detach(SOURCE_NAME);
+        return report;
+    }
+
+    private long dropped(MidiInputManager.Lane lane) {
+        long dropped = lane.getLostCount();
+        for (NoteEventDispatcher.Subscription s : dispatcher.getSubscriptions()) {
+            dropped += s.getLostCount();
+        }
+        return dropped;
+    }
+
+    /**
+     * The largest backlog of the input lane or any subscriber.
+     */
+    private long queueDepth(MidiInputManager.Lane lane) {
+        long depth = lane.getLag();
+        for (NoteEventDispatcher.Subscription s : dispatcher.getSubscriptions()) {
+            depth = Math.max(depth, s.getLag());
+        }
+        return depth;
+    }
+}
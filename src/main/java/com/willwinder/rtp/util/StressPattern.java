@@ -0,0 +1,82 @@
+package com.willwinder.rtp.util;
+
+import javax.sound.midi.ShortMessage;
+import java.util.Random;
+
+/**
+ * Stress patterns for the StressGenerator.
+ */
+public enum StressPattern implements StressGenerator.Pattern {
+    // Ten finger chords on random roots, pressed and released together.
+    CHORDS {
+        private final int[] shape = {0, 4, 7, 12, 16, 19, 24, 28, 31, 36};
+
+        @Override
+        public int message(long index, Random random) {
+            int step = (int) (index % (shape.length * 2));
+            // Roots are chosen from the chord number so the release matches the press.
+            int root = 21 + (int) ((index / (shape.length * 2)) * 7919 % 52);
+            if (step < shape.length) {
+                return pack(ShortMessage.NOTE_ON, root + shape[step], 40 + random.nextInt(80));
+            }
+            return pack(ShortMessage.NOTE_OFF, root + shape[step - shape.length], 0);
+        }
+    },
+    // Full range glissando, up and down the 88 keys.
+    GLISSANDO {
+        @Override
+        public int message(long index, Random random) {
+            int step = (int) (index / 2 % 174);
+            int key = step < 88 ? 21 + step : 21 + 174 - step - 1;
+            return index % 2 == 0
+                    ? pack(ShortMessage.NOTE_ON, key, 90)
+                    : pack(ShortMessage.NOTE_OFF, key, 0);
+        }
+    },
+    // Random notes where roughly one in ten is never released.
+    STUCK_NOTES {
+        @Override
+        public int message(long index, Random random) {
+            int key = 21 + random.nextInt(88);
+            if (random.nextInt(10) == 0) {
+                return pack(ShortMessage.NOTE_ON, key, 100);
+            }
+            return pack(random.nextBoolean() ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF, key, 64);
+        }
+    },
+    // Note offs for every key, whether or not it is pressed.
+    NOTE_OFF_STORM {
+        @Override
+        public int message(long index, Random random) {
+            return pack(ShortMessage.NOTE_OFF, (int) (index % 128), 0);
+        }
+    },
+    // The sustain pedal fluttering, with a note every so often.
+    SUSTAIN_FLOOD {
+        @Override
+        public int message(long index, Random random) {
+            if (index % 16 == 0) {
+                return pack(ShortMessage.NOTE_ON, 21 + random.nextInt(88), 80);
+            }
+            if (index % 16 == 8) {
+                return pack(ShortMessage.NOTE_OFF, 21 + random.nextInt(88), 0);
+            }
+            return pack(ShortMessage.CONTROL_CHANGE, 64, random.nextInt(128));
+        }
+    },
+    // Any of the above.
+    RANDOM {
+        @Override
+        public int message(long index, Random random) {
+            StressPattern p = values()[random.nextInt(RANDOM.ordinal())];
+            return p.message(index, random);
+        }
+    };
+
+    /**
+     * Pack a channel 0 short message the same way Util.decodeNote does.
+     */
+    public static int pack(int status, int data1, int data2) {
+        return (status & 0xFF) << 16 | (data1 & 0x7F) << 8 | (data2 & 0x7F);
+    }
+}
@@ -3,6 +3,7 @@ package com.willwinder.rtp.util;
 import com.willwinder.rtp.model.Key;
 
 import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.ShortMessage;
 import java.util.Arrays;
@@ -52,16 +53,61 @@ public class Util {
         }
     }
 
-    public static Optional<Key> midiMessageToKey(MidiMessage message) {
+    /**
+     * Returned by decodeNote for anything which isn't a NOTE_ON or NOTE_OFF.
+     */
+    public static final int NOT_A_NOTE = -1;
+
+    /**
+     * Allocation free note decoding. The status and data bytes are packed into an int, use decodedKey and
+     * decodedVelocity to unpack it.
+     * @return the packed note or NOT_A_NOTE.
+     */
+    public static int decodeNote(MidiMessage message) {
         if (message instanceof ShortMessage) {
             ShortMessage sm = (ShortMessage)message;
-            if (sm.getCommand() == ShortMessage.NOTE_ON || sm.getCommand() == ShortMessage.NOTE_OFF) {
-                Key k = new Key(dataToNote(sm.getData1()), dataToOctave(sm.getData1()), sm.getCommand(), sm.getStatus(), sm.getData1(), sm.getData2(), 0);
-                return Optional.of(k);
-            }
+            return decodeNote(sm.getStatus(), sm.getData1(), sm.getData2());
         }
+        return NOT_A_NOTE;
+    }
+
+    public static int decodeNote(int status, int data1, int data2) {
+        int command = status & 0xF0;
+        if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) {
+            return (status & 0xFF) << 16 | (data1 & 0x7F) << 8 | (data2 & 0x7F);
+        }
+        return NOT_A_NOTE;
+    }
+
+    /**
+     * @param decoded result of decodeNote, must not be NOT_A_NOTE.
+     * @return the interned Key for the note.
+     */
+    public static Key decodedKey(int decoded) {
+        return Key.of(decoded >>> 16, (decoded >>> 8) & 0x7F, decodedVelocity(decoded));
+    }
+
+    /**
+     * @param decoded result of decodeNote, must not be NOT_A_NOTE.
+     * @return the note velocity.
+     */
+    public static int decodedVelocity(int decoded) {
+        return decoded & 0x7F;
+    }
 
-        return Optional.empty();
+    /**
+     * @return a device's name with its vendor and description, which tells apart more devices than the name alone.
+     */
+    public static String deviceName(MidiDevice.Info info) {
+        return info.getName() + " (" + info.getVendor() + ", " + info.getDescription() + ")";
+    }
+
+    public static Optional<Key> midiMessageToKey(MidiMessage message) {
+        int decoded = decodeNote(message);
+        if (decoded == NOT_A_NOTE) {
+            return Optional.empty();
+        }
+        return Optional.of(decodedKey(decoded));
     }
 
     public static String midiMessageToString(MidiMessage message) {
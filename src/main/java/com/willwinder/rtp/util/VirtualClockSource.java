@@ -0,0 +1,131 @@
+package com.willwinder.rtp.util;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A MIDI clock master for testing clock slave mode without a sequencer. Sends 24 ppqn TIMING_CLOCK through a
+ * VirtualTransmitter on its own thread, with optional random jitter added to every tick, and sends transport
+ * messages on request.
+ */
+public class VirtualClockSource {
+    private final VirtualTransmitter transmitter;
+    private final ShortMessage tickMessage = new ShortMessage();
+    private final Random random = new Random(0);
+    private Thread thread = null;
+
+    private volatile double bpm;
+    private volatile long jitterNanos;
+    // START or CONTINUE to send just before the next tick, or 0.
+    private volatile int pendingTransport = 0;
+    private volatile long transportTickNanos = 0;
+
+    /**
+     * @param jitterNanos standard deviation of the random delay added to each tick.
+     */
+    public VirtualClockSource(VirtualTransmitter transmitter, double bpm, long jitterNanos) {
+        this.transmitter = transmitter;
+        this.bpm = bpm;
+        this.jitterNanos = jitterNanos;
+        try {
+            tickMessage.setMessage(ShortMessage.TIMING_CLOCK);
+        } catch (InvalidMidiDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void setBpm(double bpm) {
+        this.bpm = bpm;
+    }
+
+    public double getBpm() {
+        return bpm;
+    }
+
+    public void setJitterNanos(long jitterNanos) {
+        this.jitterNanos = jitterNanos;
+    }
+
+    /**
+     * Start sending clock ticks, the transport is unchanged.
+     */
+    public synchronized void startClock() {
+        if (thread != null) return;
+        thread = new Thread(this::clockLoop, "VirtualClockSource");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    public synchronized void stopClock() {
+        if (thread == null) return;
+        thread.interrupt();
+        thread = null;
+    }
+
+    /**
+     * START is sent by the clock thread immediately before a tick, like a hardware sequencer.
+     */
+    public void start() {
+        pendingTransport = ShortMessage.START;
+    }
+
+    public void stop() throws InvalidMidiDataException {
+        transport(ShortMessage.STOP, 0, 0);
+    }
+
+    /**
+     * CONTINUE is sent by the clock thread immediately before a tick.
+     */
+    public void resume() {
+        pendingTransport = ShortMessage.CONTINUE;
+    }
+
+    /**
+     * @return System.nanoTime of the tick which followed the last START or CONTINUE, the song position advances
+     *         from that tick.
+     */
+    public long getTransportTickNanos() {
+        return transportTickNanos;
+    }
+
+    /**
+     * @param sixteenths song position in sixteenth notes.
+     */
+    public void songPosition(int sixteenths) throws InvalidMidiDataException {
+        transport(ShortMessage.SONG_POSITION_POINTER, sixteenths & 0x7F, (sixteenths >>> 7) & 0x7F);
+    }
+
+    private void transport(int status, int data1, int data2) throws InvalidMidiDataException {
+        transmitter.send(new ShortMessage(status, data1, data2), -1);
+    }
+
+    private void clockLoop() {
+        long next = System.nanoTime();
+        while (!Thread.currentThread().isInterrupted()) {
+            next += (long) (60e9 / (bpm * MidiClockPll.PPQN));
+            long jitter = (long) Math.abs(random.nextGaussian() * jitterNanos);
+
+            long sendAt = next + jitter;
+            long wait;
+            while ((wait = sendAt - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+                if (Thread.currentThread().isInterrupted()) return;
+            }
+
+            int transport = pendingTransport;
+            if (transport != 0) {
+                pendingTransport = 0;
+                try {
+                    transport(transport, 0, 0);
+                } catch (InvalidMidiDataException e) {
+                    throw new IllegalStateException(e);
+                }
+                transportTickNanos = System.nanoTime();
+            }
+            transmitter.send(tickMessage, -1);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.willwinder.rtp.util;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Transmitter;
+
+/**
+ * A transmitter without a device behind it, messages are pushed in with send. Attach it with
+ * MidiInputManager.attach, or give it any Receiver, to drive the app without a physical keyboard.
+ */
+public class VirtualTransmitter implements Transmitter {
+    private volatile Receiver receiver = null;
+    private volatile boolean closed = false;
+
+    /**
+     * Forward a message to the receiver, messages sent before a receiver is set or after closing are ignored.
+     * @param timeStamp device timestamp in microseconds, or -1.
+     * @return true if the message was delivered.
+     */
+    public boolean send(MidiMessage message, long timeStamp) {
+        Receiver r = this.receiver;
+        if (r == null || closed) {
+            return false;
+        }
+        r.send(message, timeStamp);
+        return true;
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public Receiver getReceiver() {
+        return receiver;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
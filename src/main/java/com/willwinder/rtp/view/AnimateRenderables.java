@@ -52,15 +52,19 @@ public class AnimateRenderables extends AnimationTimer {
         this.gc = gc;
         this.allParams = params;
 
-        final KeyboardView keyboardView = new KeyboardView(params.keyboardState, params.keyPointCache);
+        final KeyboardView keyboardView = new KeyboardView(params.keyboardState, params.keyPointCache, params.noteEventDispatcher, params.pipelineLatency);
 
         final TimelineBackground timelineBackground = new TimelineBackground(params.timelineParams);
-        final TimelineSparks timelineSparks = new TimelineSparks(params.timelineParams, params.keyboardState);
+        final TimelineSparks timelineSparks = new TimelineSparks(params.timelineParams, params.keyboardState, params.pipelineLatency);
 
         final GrandStaff grandStaff = new GrandStaff(params.timelineParams, params.grandStaffParams);
 
         final BPMLines bpm = new BPMLines(params.bpmParams);
 
+        final LatencyOverlay latencyOverlay = new LatencyOverlay(params.pipelineLatency);
+
+        final SongMinimap songMinimap = new SongMinimap(params.timelineParams);
+
         final RenderableGroup timeline = new RenderableGroup(
                 timelineBackground,
                 bpm,
@@ -77,6 +81,12 @@ public class AnimateRenderables extends AnimationTimer {
         addRenderable(bpm);
         addRenderable(timelineSparks);
         addRenderable(grandStaff);
+        if (params.animationParams.showMinimap.get()) {
+            addRenderable(songMinimap);
+        }
+        if (params.animationParams.showLatency.get()) {
+            addRenderable(latencyOverlay);
+        }
 
         ////////////////////////
         // Limit Timeline FPS //
@@ -90,11 +100,11 @@ public class AnimateRenderables extends AnimationTimer {
         //ac.addRenderable(new NumKeysView(receiver));
 
         // Register listeners
-        params.eventBus.register(keyboardView);
-
         this.allParams.animationParams.showKeyboard.addListener(getRenderableListener(keyboardView));
         this.allParams.animationParams.showTimeline.addListener(getRenderableListener(timelineSparks, bpm));
         this.allParams.animationParams.showStaff.addListener(getRenderableListener(grandStaff));
+        this.allParams.animationParams.showLatency.addListener(getRenderableListener(latencyOverlay));
+        this.allParams.animationParams.showMinimap.addListener(getRenderableListener(songMinimap));
     }
 
     private ChangeListener<Boolean> getRenderableListener(Renderable ...renderables) {
@@ -113,6 +123,7 @@ public class AnimateRenderables extends AnimationTimer {
 
     @Override
     public void handle(long now) {
+        long frameStart = System.nanoTime();
         updateTimelineTime.handle(null);
 
         double height = gc.getCanvas().getHeight();
@@ -129,7 +140,7 @@ public class AnimateRenderables extends AnimationTimer {
             reset = true;
         }
 
-        Renderable.DrawParams drawParams = new Renderable.DrawParams(w, h, reset, this.allParams.timelineParams.nowMs.get());
+        Renderable.DrawParams drawParams = new Renderable.DrawParams(w, h, reset, this.allParams.timelineParams.nowMs.get(), this.allParams.clock.fromSystemNanos(now));
 
         for (Renderable r : renderableList) {
             try {
@@ -138,5 +149,9 @@ public class AnimateRenderables extends AnimationTimer {
                 e.printStackTrace();
             }
         }
+
+        long frameEnd = System.nanoTime();
+        this.allParams.pipelineLatency.frameTime.record(frameEnd - frameStart);
+        this.allParams.calibrationParams.calibration.frameDrawn(now, frameEnd);
     }
 }
@@ -0,0 +1,30 @@
+package com.willwinder.rtp.view;
+
+/**
+ * A synthesizer engine for the NoiseMaker. Only one backend is active at a time, and every method is called from
+ * the NoiseMaker's synth thread, so implementations don't need to be thread safe.
+ */
+public interface AudioBackend {
+    /**
+     * Acquire the audio device and load instruments.
+     */
+    void open() throws Exception;
+
+    void noteOn(int channel, int key, int velocity);
+
+    void noteOff(int channel, int key, int velocity);
+
+    void allNotesOff();
+
+    /**
+     * Release the audio device.
+     */
+    void close();
+
+    /**
+     * @return the engine's own output latency estimate in microseconds, or -1 if it doesn't know.
+     */
+    default long getLatencyMicros() {
+        return -1;
+    }
+}
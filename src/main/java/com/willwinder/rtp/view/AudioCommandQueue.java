@@ -0,0 +1,96 @@
+package com.willwinder.rtp.view;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wait-free single producer / single consumer queue of synth commands. Commands are stored in preallocated
+ * primitive arrays, a full queue drops the command instead of blocking the producer.
+ */
+class AudioCommandQueue {
+    static final int NOTE_ON = 1;
+    static final int NOTE_OFF = 2;
+    static final int ALL_NOTES_OFF = 3;
+
+    /**
+     * Reusable holder for a command read by the consumer.
+     */
+    static class Command {
+        int type;
+        int channel;
+        int key;
+        int velocity;
+        long receiveNanos;
+        long enqueueNanos;
+    }
+
+    final String name;
+    private final int[] commands;
+    private final long[] receiveNanos;
+    private final long[] enqueueNanos;
+    private final int mask;
+
+    // Next slot to read, only written by the consumer.
+    private final AtomicLong head = new AtomicLong(0);
+    // Next slot to write, only written by the producer.
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * @param capacity rounded up to the next power of two.
+     */
+    AudioCommandQueue(String name, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.name = name;
+        this.commands = new int[size];
+        this.receiveNanos = new long[size];
+        this.enqueueNanos = new long[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Producer only.
+     * @return false if the queue was full and the command was dropped.
+     */
+    boolean offer(int type, int channel, int key, int velocity, long receiveNanos) {
+        long t = tail.get();
+        if (t - head.get() > mask) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int i = (int) t & mask;
+        commands[i] = type << 24 | (channel & 0x0F) << 16 | (key & 0x7F) << 8 | (velocity & 0x7F);
+        this.receiveNanos[i] = receiveNanos;
+        this.enqueueNanos[i] = System.nanoTime();
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     * @return false if the queue is empty.
+     */
+    boolean poll(Command out) {
+        long h = head.get();
+        if (h == tail.get()) {
+            return false;
+        }
+        int i = (int) h & mask;
+        int c = commands[i];
+        out.type = c >>> 24;
+        out.channel = (c >>> 16) & 0x0F;
+        out.key = (c >>> 8) & 0x7F;
+        out.velocity = c & 0x7F;
+        out.receiveNanos = receiveNanos[i];
+        out.enqueueNanos = enqueueNanos[i];
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    long size() {
+        return tail.get() - head.get();
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+}
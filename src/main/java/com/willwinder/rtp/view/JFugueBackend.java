@@ -0,0 +1,57 @@
+package com.willwinder.rtp.view;
+
+import org.jfugue.realtime.RealtimePlayer;
+import org.jfugue.theory.Note;
+
+/**
+ * JFugue's RealtimePlayer. JFugue has no channels, everything is played on one instrument.
+ */
+public class JFugueBackend implements AudioBackend {
+    // Created up front so playing a note doesn't allocate.
+    private final Note[] notes = new Note[128];
+    private final boolean[] sounding = new boolean[128];
+    private RealtimePlayer player;
+
+    public JFugueBackend() {
+        for (int key = 0; key < notes.length; key++) {
+            notes[key] = new Note(key);
+        }
+    }
+
+    @Override
+    public void open() throws Exception {
+        player = new RealtimePlayer();
+        player.changeInstrument(0);
+    }
+
+    @Override
+    public void noteOn(int channel, int key, int velocity) {
+        if (player == null) return;
+        player.startNote(notes[key]);
+        sounding[key] = true;
+    }
+
+    @Override
+    public void noteOff(int channel, int key, int velocity) {
+        if (player == null) return;
+        player.stopNote(notes[key]);
+        sounding[key] = false;
+    }
+
+    @Override
+    public void allNotesOff() {
+        for (int key = 0; key < sounding.length; key++) {
+            if (sounding[key]) {
+                noteOff(0, key, 0);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (player != null) {
+            player.close();
+        }
+        player = null;
+    }
+}
@@ -0,0 +1,64 @@
+package com.willwinder.rtp.view;
+
+import javax.sound.midi.Instrument;
+import javax.sound.midi.MidiChannel;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Soundbank;
+import javax.sound.midi.Synthesizer;
+
+/**
+ * The default javax.sound Synthesizer, usually Gervill.
+ */
+public class JavaxSynthBackend implements AudioBackend {
+    private Synthesizer synth;
+    private MidiChannel[] channels;
+
+    @Override
+    public void open() throws Exception {
+        synth = MidiSystem.getSynthesizer();
+        synth.open();
+
+        Soundbank sb = synth.getDefaultSoundbank();
+        if (sb != null) {
+            Instrument[] instruments = sb.getInstruments();
+            synth.loadInstrument(instruments[0]);
+        }
+        channels = synth.getChannels();
+    }
+
+    @Override
+    public void noteOn(int channel, int key, int velocity) {
+        if (channels == null) return;
+        channels[channel].noteOn(key, velocity);
+    }
+
+    @Override
+    public void noteOff(int channel, int key, int velocity) {
+        if (channels == null) return;
+        channels[channel].noteOff(key, velocity);
+    }
+
+    @Override
+    public void allNotesOff() {
+        if (channels == null) return;
+        for (MidiChannel c : channels) {
+            if (c != null) {
+                c.allNotesOff();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (synth != null) {
+            synth.close();
+        }
+        synth = null;
+        channels = null;
+    }
+
+    @Override
+    public long getLatencyMicros() {
+        return synth == null ? -1 : synth.getLatency();
+    }
+}
@@ -0,0 +1,216 @@
+package com.willwinder.rtp.view;
+
+import com.willwinder.rtp.util.LatencyHistogram;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Measures how late sound and pictures reach the player, so the timeline can be shifted to line them up.
+ *
+ * Audio: a short click track is played through the NoiseMaker. The latency is whatever the active backend reports
+ * (Synthesizer.getLatency for the javax engine, the frame position of the line for the voice pool), or if a
+ * loopback recording is given, the delay between each click and its onset in the recording. The recording stands
+ * in for a microphone capture: its first frame is the moment the first click was sent.
+ *
+ * Video: AnimateRenderables reports every frame. A frame reaches the screen on the vsync after it is drawn, so the
+ * presentation delay is the time from the pulse until drawing finished plus one refresh interval.
+ */
+public class LatencyCalibration {
+    public static final int CLICKS = 8;
+    public static final long CLICK_INTERVAL_MS = 250;
+    private static final int CLICK_KEY = 84;
+    private static final int CLICK_VELOCITY = 127;
+    private static final long CLICK_LENGTH_MS = 50;
+    // Onsets are where the signal first exceeds this fraction of the recording's peak.
+    private static final double ONSET_THRESHOLD = 0.3;
+    // A click has ended once the signal stays under the threshold this long.
+    private static final long QUIET_MS = 20;
+
+    public static class Result {
+        public final long audioMs;
+        public final long videoMs;
+        // Which measurement audioMs came from.
+        public final String audioSource;
+
+        public Result(long audioMs, long videoMs, String audioSource) {
+            this.audioMs = audioMs;
+            this.videoMs = videoMs;
+            this.audioSource = audioSource;
+        }
+
+        @Override
+        public String toString() {
+            return "Audio latency: " + audioMs + "ms (" + audioSource + ")\nVideo latency: " + videoMs + "ms";
+        }
+    }
+
+    private final NoiseMaker noiseMaker;
+    private final NoiseMaker.Input clicks;
+    private final LatencyHistogram drawTime = new LatencyHistogram("frame pulse to drawn");
+    private final LatencyHistogram refreshInterval = new LatencyHistogram("frame interval");
+    private long lastPulseNanos = 0;
+
+    public LatencyCalibration(NoiseMaker noiseMaker) {
+        this.noiseMaker = noiseMaker;
+        this.clicks = noiseMaker.newInput("calibration");
+    }
+
+    /**
+     * Called by the animation timer at the end of each frame, on the FX thread.
+     * @param pulseNanos System.nanoTime of the pulse which started the frame.
+     * @param drawnNanos System.nanoTime drawing finished.
+     */
+    public void frameDrawn(long pulseNanos, long drawnNanos) {
+        drawTime.record(drawnNanos - pulseNanos);
+        if (lastPulseNanos != 0) {
+            refreshInterval.record(pulseNanos - lastPulseNanos);
+        }
+        lastPulseNanos = pulseNanos;
+    }
+
+    /**
+     * Play the click track and measure, blocks for a couple of seconds. Don't call it from the FX thread, frames
+     * have to keep coming while it runs.
+     * @param loopback recording of the click track, or null to trust the synthesizer.
+     */
+    public Result run(File loopback) throws InterruptedException, IOException, UnsupportedAudioFileException {
+        drawTime.reset();
+        refreshInterval.reset();
+        noiseMaker.outputLatency.reset();
+
+        // Absolute deadlines so the clicks don't drift away from the grid the loopback is analysed on.
+        long start = System.nanoTime();
+        for (int i = 0; i < CLICKS; i++) {
+            long on = start + i * CLICK_INTERVAL_MS * 1_000_000L;
+            sleepUntil(on);
+            clicks.noteOn(0, CLICK_KEY, CLICK_VELOCITY, System.nanoTime());
+            sleepUntil(on + CLICK_LENGTH_MS * 1_000_000L);
+            clicks.noteOff(0, CLICK_KEY, 0, System.nanoTime());
+        }
+        sleepUntil(start + CLICKS * CLICK_INTERVAL_MS * 1_000_000L);
+
+        long audioMicros;
+        String audioSource;
+        if (loopback != null) {
+            audioMicros = (long) (loopbackLatencyMs(loopback) * 1000);
+            audioSource = "loopback " + loopback.getName();
+        } else if (noiseMaker.outputLatency.getCount() > 0) {
+            audioMicros = noiseMaker.outputLatency.getValueAtPercentile(50) / 1000;
+            audioSource = "measured output latency";
+        } else {
+            audioMicros = Math.max(0, noiseMaker.getBackendLatencyMicros());
+            audioSource = "synthesizer reported latency";
+        }
+
+        long videoNanos = 0;
+        if (refreshInterval.getCount() > 0) {
+            videoNanos = drawTime.getValueAtPercentile(50) + refreshInterval.getValueAtPercentile(50);
+        }
+
+        return new Result(audioMicros / 1000, videoNanos / 1_000_000, audioSource);
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedException {
+        long remaining;
+        while ((remaining = nanos - System.nanoTime()) > 0) {
+            Thread.sleep(remaining / 1_000_000L, (int) (remaining % 1_000_000L));
+        }
+    }
+
+    /**
+     * The onsets are taken in order: each click's is the first one after it was sent and after the previous click's
+     * sound ended, however far away. So a latency longer than the click interval is still credited to the right
+     * click.
+     * @return the median delay from each click of the track until its onset in the recording.
+     */
+    public static double loopbackLatencyMs(File recording) throws IOException, UnsupportedAudioFileException {
+        try (AudioInputStream in = AudioSystem.getAudioInputStream(recording)) {
+            return loopbackLatencyMs(in);
+        }
+    }
+
+    public static double loopbackLatencyMs(AudioInputStream in) throws IOException {
+        float[] samples = readMono(in);
+        float sampleRate = in.getFormat().getSampleRate();
+
+        float peak = 0;
+        for (float s : samples) {
+            peak = Math.max(peak, Math.abs(s));
+        }
+        if (peak == 0) {
+            throw new IOException("Loopback recording is silent.");
+        }
+        float threshold = (float) (peak * ONSET_THRESHOLD);
+
+        int interval = (int) (CLICK_INTERVAL_MS * sampleRate / 1000);
+        int quiet = (int) (QUIET_MS * sampleRate / 1000);
+        double[] delays = new double[CLICKS];
+        int found = 0;
+        int pos = 0;
+        for (int i = 0; i < CLICKS; i++) {
+            int sent = i * interval;
+            int onset = Math.max(pos, sent);
+            while (onset < samples.length && Math.abs(samples[onset]) < threshold) {
+                onset++;
+            }
+            if (onset >= samples.length) break;
+            delays[found++] = (onset - sent) * 1000.0 / sampleRate;
+
+            // Skip the rest of this click.
+            int lastLoud = onset;
+            pos = onset;
+            while (pos < samples.length && pos - lastLoud < quiet) {
+                if (Math.abs(samples[pos]) >= threshold) {
+                    lastLoud = pos;
+                }
+                pos++;
+            }
+        }
+        if (found == 0) {
+            throw new IOException("No clicks found in the loopback recording.");
+        }
+
+        // Every click is delayed by the same latency, a jump means an onset was missed or credited to another click.
+        Arrays.sort(delays, 0, found);
+        if (delays[found - 1] - delays[0] > CLICK_INTERVAL_MS / 2.0) {
+            throw new IOException("Clicks in the loopback recording were not found in order.");
+        }
+        return delays[found / 2];
+    }
+
+    /**
+     * Decode signed or unsigned PCM of any width and channel count to mono floats in [-1, 1].
+     */
+    private static float[] readMono(AudioInputStream stream) throws IOException {
+        AudioFormat source = stream.getFormat();
+        AudioFormat pcm = new AudioFormat(source.getSampleRate(), 16, source.getChannels(), true, false);
+        AudioInputStream in;
+        if (source.matches(pcm)) {
+            in = stream;
+        } else if (AudioSystem.isConversionSupported(pcm, source)) {
+            in = AudioSystem.getAudioInputStream(pcm, stream);
+        } else {
+            throw new IOException("Unsupported loopback recording format: " + source);
+        }
+
+        byte[] bytes = in.readAllBytes();
+        int channels = pcm.getChannels();
+        int frames = bytes.length / (2 * channels);
+        float[] samples = new float[frames];
+        for (int f = 0; f < frames; f++) {
+            float sum = 0;
+            for (int c = 0; c < channels; c++) {
+                int i = 2 * (f * channels + c);
+                sum += (short) ((bytes[i] & 0xFF) | (bytes[i + 1] << 8)) / 32768f;
+            }
+            samples[f] = sum / channels;
+        }
+        return samples;
+    }
+}
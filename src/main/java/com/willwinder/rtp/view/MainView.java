@@ -24,6 +24,7 @@ public class MainView extends StackPane {
     public ObjectProperty<EventHandler<ActionEvent>> openMidiFileEvent;
     public ObjectProperty<EventHandler<ActionEvent>> playMidiFileEvent;
     public ObjectProperty<EventHandler<ActionEvent>> pauseMidiFileEvent;
+    public ObjectProperty<EventHandler<ActionEvent>> exportMidiFileEvent;
 
     private final SettingsView settingsView;
 
@@ -58,10 +59,16 @@ public class MainView extends StackPane {
         pauseMidiFile.disableProperty().bind(model.midiFileSequence.isNull());
         pauseMidiFileEvent = pauseMidiFile.onActionProperty();
 
+        FontIcon exportFile = FontIcon.of(FontAwesome.DOWNLOAD, 30, Color.WHITE);
+        Button exportMidiFile = new GraphicButton(exportFile, Color.DARKGRAY);
+        exportMidiFile.disableProperty().bind(model.midiFileSequence.isNull());
+        exportMidiFileEvent = exportMidiFile.onActionProperty();
+
         toolBar.addRight(settings);
         toolBar.addCenter(pauseMidiFile);
         toolBar.addCenter(playMidiFile);
         toolBar.addLeft(openMidiFile);
+        toolBar.addLeft(exportMidiFile);
 
         // Add UI to StackPane
         getChildren().addAll(canvasPane, toolBar);
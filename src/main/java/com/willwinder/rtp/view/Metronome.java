@@ -0,0 +1,433 @@
+package com.willwinder.rtp.view;
+
+import com.willwinder.rtp.model.BeatMap;
+import com.willwinder.rtp.util.LatencyHistogram;
+import com.willwinder.rtp.util.MonotonicClock;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.SourceDataLine;
+import java.util.Arrays;
+
+/**
+ * An audible beat which is rendered straight into an audio line, so each click starts on an exact sample instead of
+ * whenever a timer happens to fire.
+ *
+ * When the NoiseMaker plays through a VoicePoolBackend the clicks are mixed into its blocks as a MixSource, on the
+ * same frame counter as the notes. The MIDI synthesizer backends have no render loop to join, so with those the
+ * metronome opens a line of its own.
+ *
+ * Like MidiOutScheduler, the controller reports the song position every frame and the render thread extrapolates
+ * it. For each block the render thread works out when the block will be heard from the line's frame position,
+ * finds the beats of the BeatMap which fall inside it and mixes a click in at the right frame. Nothing is scheduled
+ * on the FX thread. The frame position only covers the latency Java Sound can see, so the rest of the calibrated
+ * audio latency, what the device adds behind the synthesizer's own estimate, is added on top.
+ *
+ * Drift is how far a click was heard from the moment the timeline says its beat happens, using the song position
+ * reported after the click was rendered. When it was heard comes from the raw line frame position and calibrated
+ * latency of the block it is measured in, not the smoothed ones the click was placed with, so their errors show.
+ */
+public class Metronome implements MixSource {
+    // Format of the metronome's own line.
+    private static final int SAMPLE_RATE = 48000;
+    private static final int BLOCK_FRAMES = 256;
+    private static final double CLICK_SECONDS = 0.03;
+    // Clicks waiting to be heard for the drift measurement.
+    private static final int PENDING = 64;
+    // Clicks still sounding from earlier blocks, more overlap only at very fast subdivisions.
+    private static final int TAILS = 8;
+    // Frame position to clock estimates are smoothed with this weight.
+    private static final double ANCHOR_GAIN = 1.0 / 32;
+    // A frame position estimate further off than this is a glitch, start over.
+    private static final long ANCHOR_RESET_NANOS = 20_000_000L;
+
+    public enum Click {
+        ACCENT(1760, 1.0f),
+        BEAT(1320, 0.6f),
+        SUBDIVISION(990, 0.3f);
+
+        final double frequency;
+        final float level;
+
+        Click(double frequency, float level) {
+            this.frequency = frequency;
+            this.level = level;
+        }
+    }
+
+    private final MonotonicClock clock;
+    private final NoiseMaker noiseMaker;
+    public final LatencyHistogram drift = new LatencyHistogram("metronome drift");
+    private volatile double meanDriftNanos = 0;
+
+    private volatile BeatMap beatMap = new BeatMap(4, 4);
+    private volatile double msPerQuarter = 600;
+    private volatile int subdivision = 1;
+    // One character per beat of the bar: X accented, x normal, . silent. Empty accents the first beat.
+    private volatile String accents = "";
+    private volatile float volume = 0.5f;
+    private volatile long outputLatencyNanos = 0;
+
+    // Song position from the controller, guarded by this.
+    private boolean running = false;
+    private double anchorSongMs = 0;
+    private long anchorNanos = 0;
+    private double rate = 1.0;
+
+    // The own line's thread, and whether a backend mixes the clicks instead, guarded by lineLock. Not this, the
+    // render thread takes this while a stopping line is waited for.
+    private final Object lineLock = new Object();
+    private Thread thread = null;
+    private boolean attached = false;
+    private volatile boolean enabled = false;
+
+    // Render thread only, the backend's or the own line's, one at a time.
+    private int sampleRate = SAMPLE_RATE;
+    private final float[][] clickSamples = new float[Click.values().length][];
+    // Clock time frame 0 of the line is heard, ignoring the device's latency.
+    private long lineStartNanos = 0;
+    private boolean anchored = false;
+    // Calibrated latency the line's frame position doesn't show.
+    private long hiddenNanos = 0;
+    private final long[] pendingFrame = new long[PENDING];
+    private final double[] pendingSongMs = new double[PENDING];
+    private int pendingHead = 0;
+    private int pendingTail = 0;
+    // Clicks still sounding from the previous block, and the sample each continues from.
+    private final Click[] tailClick = new Click[TAILS];
+    private final int[] tailOffset = new int[TAILS];
+    private int tails = 0;
+
+    /**
+     * @param noiseMaker estimates the synthesizer's latency, the part of the calibrated latency the clicks don't have.
+     */
+    public Metronome(MonotonicClock clock, NoiseMaker noiseMaker) {
+        this.clock = clock;
+        this.noiseMaker = noiseMaker;
+        prepare(SAMPLE_RATE);
+    }
+
+    /**
+     * Start clicking, or stop.
+     */
+    public void setEnabled(boolean enabled) {
+        synchronized (lineLock) {
+            this.enabled = enabled;
+            updateThread();
+        }
+    }
+
+    /**
+     * The own line plays while enabled and no backend mixes the clicks. Waits for a stopping line to finish its block,
+     * so two threads never render at once.
+     */
+    private void updateThread() {
+        boolean wanted = enabled && !attached;
+        if (wanted && thread == null) {
+            thread = new Thread(this::renderLoop, "Metronome-render");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            thread.start();
+        } else if (!wanted && thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    /**
+     * Render the clicks at a sample rate, starting over.
+     */
+    private void prepare(int sampleRate) {
+        this.sampleRate = sampleRate;
+        for (Click c : Click.values()) {
+            float[] samples = new float[(int) (CLICK_SECONDS * sampleRate)];
+            for (int i = 0; i < samples.length; i++) {
+                double t = (double) i / sampleRate;
+                samples[i] = (float) (Math.sin(2 * Math.PI * c.frequency * t) * Math.exp(-t / (CLICK_SECONDS / 5)) * c.level);
+            }
+            clickSamples[c.ordinal()] = samples;
+        }
+        anchored = false;
+        hiddenNanos = 0;
+        pendingHead = pendingTail;
+        tails = 0;
+    }
+
+    @Override
+    public void open(int sampleRate) {
+        synchronized (lineLock) {
+            attached = true;
+            updateThread();
+            prepare(sampleRate);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lineLock) {
+            attached = false;
+            updateThread();
+        }
+    }
+
+    public void setBeatMap(BeatMap beatMap) {
+        this.beatMap = beatMap;
+    }
+
+    public void setBpm(int bpm) {
+        this.msPerQuarter = 60000.0 / bpm;
+    }
+
+    /**
+     * @param subdivision clicks per beat.
+     */
+    public void setSubdivision(int subdivision) {
+        this.subdivision = Math.max(1, subdivision);
+    }
+
+    public void setAccents(String accents) {
+        this.accents = accents == null ? "" : accents;
+    }
+
+    public void setVolume(float volume) {
+        this.volume = volume;
+    }
+
+    /**
+     * @param outputLatencyMs calibrated audio output latency, see CalibrationParams.
+     */
+    public void setOutputLatencyMs(long outputLatencyMs) {
+        this.outputLatencyNanos = outputLatencyMs * 1_000_000L;
+    }
+
+    /**
+     * The timeline is moving, call this every frame.
+     * @param songMs   current song position.
+     * @param nowNanos application clock time of the position.
+     * @param rate     song milliseconds per real millisecond.
+     */
+    public synchronized void play(double songMs, long nowNanos, double rate) {
+        running = true;
+        anchorSongMs = songMs;
+        anchorNanos = nowNanos;
+        this.rate = rate;
+    }
+
+    /**
+     * The timeline stopped, the clicks stop too.
+     */
+    public synchronized void stop() {
+        running = false;
+    }
+
+    /**
+     * @return average signed drift, positive when clicks are heard after the visual beat.
+     */
+    public double getMeanDriftMs() {
+        return meanDriftNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return "Metronome drift: mean=" + String.format("%.2f", getMeanDriftMs()) + "ms"
+                + ", |p50|=" + drift.getValueAtPercentile(50) / 1000 + "us"
+                + ", |p99|=" + drift.getValueAtPercentile(99) / 1000 + "us"
+                + ", |max|=" + drift.getMax() / 1000 + "us";
+    }
+
+    private Click clickFor(long beat, int beatsPerBar) {
+        int inBar = (int) Math.floorMod(beat, (long) beatsPerBar);
+        String pattern = this.accents;
+        if (pattern.isEmpty()) {
+            return inBar == 0 ? Click.ACCENT : Click.BEAT;
+        }
+        switch (pattern.charAt(inBar % pattern.length())) {
+            case 'X':
+                return Click.ACCENT;
+            case 'x':
+                return Click.BEAT;
+            default:
+                return null;
+        }
+    }
+
+    private void renderLoop() {
+        prepare(SAMPLE_RATE);
+        SourceDataLine line;
+        try {
+            AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+            line = AudioSystem.getSourceDataLine(format);
+            line.open(format, BLOCK_FRAMES * format.getFrameSize() * 2);
+            line.start();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+
+        float[] mix = new float[BLOCK_FRAMES];
+        byte[] pcm = new byte[BLOCK_FRAMES * 2];
+        long framesWritten = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Arrays.fill(mix, 0f);
+                render(mix, BLOCK_FRAMES, framesWritten, line.getLongFramePosition());
+                VoicePool.toPcm16(mix, mix.length, pcm);
+
+                // Blocks until there is room, which paces the loop.
+                line.write(pcm, 0, pcm.length);
+                framesWritten += BLOCK_FRAMES;
+            }
+        } finally {
+            line.stop();
+            line.close();
+        }
+    }
+
+    @Override
+    public void render(float[] mix, int frames, long blockFrame, long lineFrame) {
+        if (!enabled) {
+            pendingHead = pendingTail;
+            tails = 0;
+            return;
+        }
+
+        long now = clock.nowNanos();
+        long estimate = now - framesToNanos(lineFrame);
+        // The synthesizer's estimate moves with its buffer, so it is smoothed like the anchor.
+        long synthNanos = Math.max(0, noiseMaker.getBackendLatencyMicros()) * 1000;
+        long hidden = Math.max(0, outputLatencyNanos - synthNanos);
+        if (!anchored || Math.abs(estimate - lineStartNanos) > ANCHOR_RESET_NANOS) {
+            lineStartNanos = estimate;
+            hiddenNanos = hidden;
+            anchored = true;
+        } else {
+            lineStartNanos += (long) ((estimate - lineStartNanos) * ANCHOR_GAIN);
+            hiddenNanos += (long) ((hidden - hiddenNanos) * ANCHOR_GAIN);
+        }
+
+        measureDrift(lineFrame, now, hidden);
+
+        float v = volume;
+        renderTail(mix, frames, v);
+        renderBlock(mix, frames, blockFrame, v);
+    }
+
+    /**
+     * Mix in clicks whose beat falls inside the block starting at blockFrame.
+     */
+    private void renderBlock(float[] mix, int frames, long blockFrame, float volume) {
+        boolean isRunning;
+        double songMs;
+        long anchor;
+        double r;
+        synchronized (this) {
+            isRunning = running;
+            songMs = anchorSongMs;
+            anchor = anchorNanos;
+            r = rate;
+        }
+        if (!isRunning || r <= 0) return;
+
+        double msPerQ = msPerQuarter;
+        long blockNanos = lineStartNanos + framesToNanos(blockFrame) + hiddenNanos;
+        double fromQ = (songMs + (blockNanos - anchor) / 1e6 * r) / msPerQ;
+        double toQ = fromQ + framesToNanos(frames) / 1e6 * r / msPerQ;
+
+        BeatMap map = this.beatMap;
+        int sub = this.subdivision;
+        int segment = map.segmentAt(fromQ);
+        double q = fromQ;
+        while (q < toQ) {
+            double start = map.getStartQuarters(segment);
+            double end = map.getEndQuarters(segment);
+            double step = map.getBeatQuarters(segment) / sub;
+            long k = (long) Math.ceil((q - start) / step - 1e-9);
+            double click = start + k * step;
+            if (click >= end) {
+                segment++;
+                q = end;
+                continue;
+            }
+            if (click >= toQ) break;
+
+            Click type = k % sub == 0
+                    ? clickFor(Math.floorDiv(k, sub), map.getBeatsPerBar(segment))
+                    : Click.SUBDIVISION;
+            if (type != null) {
+                int offset = Math.min((int) Math.round((click - fromQ) / (toQ - fromQ) * frames), frames - 1);
+                addClick(mix, frames, volume, type, offset, 0);
+                queueMeasurement(blockFrame + offset, click * msPerQ);
+            }
+            q = click + step / 2;
+        }
+    }
+
+    /**
+     * Mix a click in starting at a frame of the block, from its sample index, and remember any part which doesn't fit.
+     */
+    private void addClick(float[] mix, int frames, float volume, Click type, int frame, int from) {
+        float[] samples = clickSamples[type.ordinal()];
+        int n = Math.min(samples.length - from, frames - frame);
+        for (int i = 0; i < n; i++) {
+            mix[frame + i] += samples[from + i] * volume;
+        }
+        if (from + n < samples.length && tails < TAILS) {
+            tailClick[tails] = type;
+            tailOffset[tails] = from + n;
+            tails++;
+        }
+    }
+
+    private void renderTail(float[] mix, int frames, float volume) {
+        // Each tail adds back at most one, never past the one being read.
+        int count = tails;
+        tails = 0;
+        for (int i = 0; i < count; i++) {
+            addClick(mix, frames, volume, tailClick[i], 0, tailOffset[i]);
+        }
+    }
+
+    private void queueMeasurement(long frame, double songMs) {
+        if (pendingTail - pendingHead >= PENDING) return;
+        pendingFrame[pendingTail % PENDING] = frame;
+        pendingSongMs[pendingTail % PENDING] = songMs;
+        pendingTail++;
+    }
+
+    /**
+     * Compare the clicks which have been heard with the time the timeline reaches their beat.
+     * @param hidden calibrated latency the frame position doesn't show, unsmoothed.
+     */
+    private void measureDrift(long position, long now, long hidden) {
+        double songMs;
+        long anchor;
+        double r;
+        synchronized (this) {
+            if (!running || rate <= 0) {
+                pendingHead = pendingTail;
+                return;
+            }
+            songMs = anchorSongMs;
+            anchor = anchorNanos;
+            r = rate;
+        }
+
+        while (pendingHead < pendingTail && pendingFrame[pendingHead % PENDING] <= position) {
+            long heard = now - framesToNanos(position - pendingFrame[pendingHead % PENDING]) + hidden;
+            long due = anchor + (long) ((pendingSongMs[pendingHead % PENDING] - songMs) / r * 1e6);
+            long d = heard - due;
+            drift.record(Math.abs(d));
+            meanDriftNanos += (d - meanDriftNanos) / 64;
+            pendingHead++;
+        }
+    }
+
+    private long framesToNanos(long frames) {
+        return frames * 1_000_000_000L / sampleRate;
+    }
+}
@@ -0,0 +1,24 @@
+package com.willwinder.rtp.view;
+
+/**
+ * Sound mixed into the blocks of a VoicePoolBackend, placed on the backend's own frame counter so it is heard in step
+ * with the notes the backend plays. Like a VoiceEngine, render is called from the backend's render thread.
+ */
+public interface MixSource {
+    /**
+     * The backend opened its line, render calls follow at this sample rate until close.
+     */
+    void open(int sampleRate);
+
+    /**
+     * Add the source to the frames [0, frames) of a block.
+     * @param blockFrame frame of the line mix[0] will be written to.
+     * @param lineFrame  frame of the line being played right now.
+     */
+    void render(float[] mix, int frames, long blockFrame, long lineFrame);
+
+    /**
+     * The backend closed its line, no more render calls.
+     */
+    void close();
+}
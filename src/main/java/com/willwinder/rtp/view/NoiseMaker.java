@@ -1,76 +1,291 @@
 package com.willwinder.rtp.view;
 
+import com.willwinder.rtp.util.LatencyHistogram;
 import com.willwinder.rtp.util.NoteEvent;
+import com.willwinder.rtp.util.PipelineLatency;
 
-import javax.sound.midi.*;
-
-import org.jfugue.realtime.RealtimePlayer;
-import org.jfugue.theory.Note;
-
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Plays notes through exactly one AudioBackend at a time.
+ *
+ * Producers only enqueue commands, each one on its own wait-free Input, so nothing slow runs on the MIDI thread.
+ * A high priority synth thread drains every input into the active backend. Switching backends happens on the
+ * synth thread too: the old engine releases its notes and closes before the new one opens.
+ */
 public class NoiseMaker {
     public static enum Mode {
         JFUGUE,
-        JAVAX
+        JAVAX,
+        VOICE_POOL,
+        SOUNDFONT
     }
 
-    private final Mode mode;
+    private static final int QUEUE_CAPACITY = 1024;
 
-    // Javax.sound mode
-    private javax.sound.midi.Synthesizer synth;
-    private Instrument instruments[];
-    private MidiChannel channel;
+    /**
+     * A producer's queue into the synth. Each input must only be used from one thread.
+     */
+    public class Input {
+        private final AudioCommandQueue queue;
 
-    // JFugue mode
-    private RealtimePlayer player;
+        private Input(String name) {
+            this.queue = new AudioCommandQueue(name, QUEUE_CAPACITY);
+        }
+
+        /**
+         * A velocity of 0 is a note off, as MIDI files and running status send them, backends only see real ones.
+         * @param receiveNanos System.nanoTime the note was received, for latency tracking, or 0.
+         */
+        public void noteOn(int channel, int key, int velocity, long receiveNanos) {
+            int type = velocity == 0 ? AudioCommandQueue.NOTE_OFF : AudioCommandQueue.NOTE_ON;
+            enqueue(type, channel, key, velocity, receiveNanos);
+        }
+
+        public void noteOff(int channel, int key, int velocity, long receiveNanos) {
+            enqueue(AudioCommandQueue.NOTE_OFF, channel, key, velocity, receiveNanos);
+        }
+
+        private void enqueue(int type, int channel, int key, int velocity, long receiveNanos) {
+            if (queue.offer(type, channel, key, velocity, receiveNanos)) {
+                LockSupport.unpark(synthThread);
+            }
+        }
+    }
+
+    private final PipelineLatency latency;
+    private final Thread synthThread;
+    private final Input defaultInput;
+    // Replaced when an input is added so the synth thread can iterate without locking.
+    private volatile Input[] inputs = new Input[0];
+
+    private volatile Mode mode;
+    private volatile VoicePoolBackend.Config voicePoolConfig = new VoicePoolBackend.Config(48000, 128, 32);
+    private volatile SoundFontBackend.Config soundFontConfig = null;
+    private volatile MixSource mixSource = null;
+    // Changes whenever the backend has to be recreated.
+    private volatile int backendVersion = 0;
+    private volatile AudioBackend backend = null;
+    // Played in every mode instead of the mode's own backend, or null.
+    private final AudioBackend fixedBackend;
+
+    // Time spent in the backend for each command.
+    public final LatencyHistogram serviceTime = new LatencyHistogram("synth service time");
+    // From a backend accepting a note until it is heard, for backends which can measure it.
+    public final LatencyHistogram outputLatency = new LatencyHistogram("synth output latency");
+    // Decoding a SoundFont sample the first time it is played.
+    public final LatencyHistogram sampleLoad = new LatencyHistogram("soundfont sample load");
 
     public NoiseMaker() {
-        this(Mode.JAVAX);
+        this(Mode.JAVAX, new PipelineLatency());
+    }
+
+    public NoiseMaker(Mode mode, PipelineLatency latency) {
+        this(mode, null, latency);
     }
 
-    public NoiseMaker(Mode mode) {
+    /**
+     * Play through a backend of the caller's whatever the mode, for the headless tests.
+     */
+    public NoiseMaker(AudioBackend backend, PipelineLatency latency) {
+        this(Mode.JAVAX, backend, latency);
+    }
+
+    private NoiseMaker(Mode mode, AudioBackend fixedBackend, PipelineLatency latency) {
         this.mode = mode;
-        try {
-            switch(mode) {
-                case JFUGUE:
-                    player = new RealtimePlayer();
-                    player.changeInstrument(0);
-                case JAVAX:
-                    this.synth = MidiSystem.getSynthesizer();
-                    synth.open();
-
-                    Soundbank sb = synth.getDefaultSoundbank();
-                    if (sb != null) {
-                        instruments = sb.getInstruments();
-                        synth.loadInstrument(instruments[0]);
-                        channel = synth.getChannels()[0];
-                    }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        this.fixedBackend = fixedBackend;
+        this.latency = latency;
+        latency.register(serviceTime);
+        latency.register(outputLatency);
+        latency.register(sampleLoad);
+        this.defaultInput = newInput("notes");
+        this.synthThread = new Thread(this::synthLoop, "NoiseMaker-synth");
+        this.synthThread.setDaemon(true);
+        this.synthThread.setPriority(Thread.MAX_PRIORITY);
+        this.synthThread.start();
     }
 
-    //public void noteEvent(NoteEvent e) {
-    //@Subscribe
-    synchronized public void noteEvent(NoteEvent event) {
-        switch(mode) {
+    private AudioBackend createBackend(Mode mode) {
+        if (fixedBackend != null) {
+            return fixedBackend;
+        }
+        switch (mode) {
             case JFUGUE:
-                Note n = new Note(event.key.key);
-                if (event.key.isActive()) {
-                    //n.setOnVelocity(event.key.velocity);
-                    player.startNote(n);
-                } else {
-                    player.stopNote(n);
+                return new JFugueBackend();
+            case VOICE_POOL:
+                return new VoicePoolBackend(voicePoolConfig, outputLatency, mixSource);
+            case SOUNDFONT:
+                if (soundFontConfig != null) {
+                    return new SoundFontBackend(soundFontConfig, voicePoolConfig, outputLatency, sampleLoad, mixSource);
                 }
+                return new VoicePoolBackend(voicePoolConfig, outputLatency, mixSource);
             case JAVAX:
-                //System.out.println("Synth latency: " + this.synth.getLatency());
-                if (channel == null) return;
-                if (event.key.isActive()) {
-                    channel.noteOn(event.key.key, event.key.velocity);
-                } else {
-                    channel.noteOff(event.key.key, event.key.velocity);
+            default:
+                return new JavaxSynthBackend();
+        }
+    }
+
+    public synchronized Input newInput(String name) {
+        Input input = new Input(name);
+        Input[] next = new Input[inputs.length + 1];
+        System.arraycopy(inputs, 0, next, 0, inputs.length);
+        next[inputs.length] = input;
+        inputs = next;
+        return input;
+    }
+
+    /**
+     * Switch to another backend, takes effect on the synth thread.
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+        backendVersion++;
+        LockSupport.unpark(synthThread);
+    }
+
+    /**
+     * Buffer size, sample rate and polyphony of the VOICE_POOL backend, it is restarted if active.
+     */
+    public void setVoicePoolConfig(VoicePoolBackend.Config config) {
+        this.voicePoolConfig = config;
+        if (mode == Mode.VOICE_POOL || mode == Mode.SOUNDFONT) {
+            backendVersion++;
+            LockSupport.unpark(synthThread);
+        }
+    }
+
+    /**
+     * SF2 file and cache size of the SOUNDFONT backend, it is restarted if active.
+     * @param config or null if there is no file.
+     */
+    public void setSoundFontConfig(SoundFontBackend.Config config) {
+        this.soundFontConfig = config;
+        if (mode == Mode.SOUNDFONT) {
+            backendVersion++;
+            LockSupport.unpark(synthThread);
+        }
+    }
+
+    /**
+     * Sound mixed into the output of the VOICE_POOL and SOUNDFONT backends, it is restarted if active.
+     * @param mixSource or null for none.
+     */
+    public void setMixSource(MixSource mixSource) {
+        this.mixSource = mixSource;
+        if (mode == Mode.VOICE_POOL || mode == Mode.SOUNDFONT) {
+            backendVersion++;
+            LockSupport.unpark(synthThread);
+        }
+    }
+
+    /**
+     * @return a description of the active backend and its output latency, with the SoundFont's load and cache
+     *         statistics on the next line.
+     */
+    public String getBackendStatus() {
+        AudioBackend b = this.backend;
+        if (b == null) {
+            return "No audio backend";
+        }
+        long latencyMicros = b.getLatencyMicros();
+        String status = "Audio backend " + b.getClass().getSimpleName()
+                + (latencyMicros < 0 ? "" : ", output latency " + latencyMicros / 1000 + "ms");
+        if (b instanceof SoundFontBackend) {
+            return status + "\n" + b;
+        }
+        if (mode == Mode.SOUNDFONT) {
+            return status + ", no SoundFont file configured";
+        }
+        return status;
+    }
+
+    /**
+     * @return the active backend's own estimate of its output latency in microseconds, or -1.
+     */
+    public long getBackendLatencyMicros() {
+        AudioBackend b = this.backend;
+        return b == null ? -1 : b.getLatencyMicros();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Play or stop a note. Only enqueues, so it is cheap enough for the publishing thread, but it must only be
+     * called from one thread. Use newInput for other producers.
+     */
+    public void noteEvent(NoteEvent event) {
+        int channel = event.key.status & 0x0F;
+        if (event.key.isActive()) {
+            defaultInput.noteOn(channel, event.key.key, event.velocity, event.receiveNanos);
+        } else {
+            defaultInput.noteOff(channel, event.key.key, event.velocity, event.receiveNanos);
+        }
+    }
+
+    /**
+     * @return commands waiting for the synth thread.
+     */
+    public long getQueueDepth() {
+        long depth = 0;
+        for (Input i : inputs) {
+            depth += i.queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return commands dropped because an input was full.
+     */
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (Input i : inputs) {
+            dropped += i.queue.getDroppedCount();
+        }
+        return dropped;
+    }
+
+    private void synthLoop() {
+        AudioCommandQueue.Command command = new AudioCommandQueue.Command();
+        AudioBackend backend = null;
+        int activeVersion = -1;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            int requested = this.backendVersion;
+            if (requested != activeVersion) {
+                if (backend != null) {
+                    backend.allNotesOff();
+                    backend.close();
                 }
+                backend = createBackend(this.mode);
+                try {
+                    backend.open();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                this.backend = backend;
+                activeVersion = requested;
+            }
+
+            boolean idle = true;
+            for (Input input : inputs) {
+                while (input.queue.poll(command)) {
+                    idle = false;
+                    long start = System.nanoTime();
+                    if (command.type == AudioCommandQueue.NOTE_ON) {
+                        backend.noteOn(command.channel, command.key, command.velocity);
+                    } else {
+                        backend.noteOff(command.channel, command.key, command.velocity);
+                    }
+                    serviceTime.recordSince(start);
+                    latency.record(PipelineLatency.Stage.SYNTH, command.receiveNanos);
+                }
+            }
+
+            if (idle) {
+                LockSupport.parkNanos(this, 10_000_000L);
+            }
         }
     }
 }
@@ -0,0 +1,235 @@
+package com.willwinder.rtp.view;
+
+import com.willwinder.rtp.util.SoundFontBank;
+
+/**
+ * Plays the zones of a SoundFontBank with a fixed pool of sample voices. Each note starts a voice for every zone
+ * matching its key and velocity, usually one, or two for a stereo sample which is mixed to mono.
+ *
+ * Samples are decoded by the bank's loader thread, SoundFontBackend prefetches them before a note reaches the render
+ * thread. A voice whose sample isn't decoded yet waits, silent, and starts from the beginning of the sample in the
+ * first block it is ready, so a cold note is late rather than making the render thread wait for the decode. Voice
+ * state is preallocated as parallel arrays like VoicePool.
+ */
+public class SamplePool implements VoiceEngine {
+    private static final double ATTACK_SECONDS = 0.002;
+    // Releases shorter than this click.
+    private static final double MIN_RELEASE_SECONDS = 0.01;
+    private static final float SILENT = 1e-4f;
+    private static final float MASTER_GAIN = 0.5f;
+    // Samples are 16 bit.
+    private static final float SAMPLE_SCALE = 1f / 32768;
+
+    private final SoundFontBank bank;
+    private final int sampleRate;
+
+    private final int[] voiceKey;
+    private final int[] voiceChannel;
+    private final long[] voiceStarted;
+    private final boolean[] voiceReleased;
+    private final float[] voiceLevel;
+    private final float[] voiceGain;
+    private final boolean[] voiceAttacking;
+    private final float[] voiceRelease;
+    private final short[][] voiceData;
+    private final double[] voicePosition;
+    private final double[] voiceIncrement;
+    private final int[] voiceEnd;
+    private final int[] voiceLoopStart;
+    private final int[] voiceLoopEnd;
+    private final boolean[] voiceLoop;
+    // Voices waiting for their zone's sample to be decoded.
+    private final boolean[] voicePending;
+    private final SoundFontBank.Zone[] voiceZone;
+    private long noteCounter = 0;
+
+    private final float attackStep;
+
+    public SamplePool(SoundFontBank bank, int sampleRate, int voices) {
+        this.bank = bank;
+        this.sampleRate = sampleRate;
+
+        voiceKey = new int[voices];
+        voiceChannel = new int[voices];
+        voiceStarted = new long[voices];
+        voiceReleased = new boolean[voices];
+        voiceLevel = new float[voices];
+        voiceGain = new float[voices];
+        voiceAttacking = new boolean[voices];
+        voiceRelease = new float[voices];
+        voiceData = new short[voices][];
+        voicePosition = new double[voices];
+        voiceIncrement = new double[voices];
+        voiceEnd = new int[voices];
+        voiceLoopStart = new int[voices];
+        voiceLoopEnd = new int[voices];
+        voiceLoop = new boolean[voices];
+        voicePending = new boolean[voices];
+        voiceZone = new SoundFontBank.Zone[voices];
+
+        attackStep = (float) (1.0 / (ATTACK_SECONDS * sampleRate));
+    }
+
+    @Override
+    public void noteOn(int channel, int key, int velocity) {
+        if (velocity == 0) {
+            noteOff(channel, key);
+            return;
+        }
+
+        // A repeated key starts fresh voices, the old ones release underneath.
+        noteOff(channel, key);
+
+        float v01 = velocity / 127f;
+        for (int z : bank.getZonesForKey(key)) {
+            SoundFontBank.Zone zone = bank.getZone(z);
+            if (!zone.matches(key, velocity)) continue;
+
+            int v = pickVoice();
+            voiceKey[v] = key;
+            voiceChannel[v] = channel;
+            voiceStarted[v] = ++noteCounter;
+            voiceReleased[v] = false;
+            voiceLevel[v] = 0;
+            voiceAttacking[v] = true;
+            voiceGain[v] = (float) (v01 * v01 * zone.gain * MASTER_GAIN);
+            double releaseSeconds = Math.max(MIN_RELEASE_SECONDS, zone.releaseSeconds);
+            voiceRelease[v] = (float) Math.exp(Math.log(SILENT) / (releaseSeconds * sampleRate));
+
+            voiceIncrement[v] = Math.pow(2, (key - zone.rootKey) / 12.0) * zone.sampleRate / sampleRate;
+            voiceZone[v] = zone;
+            voiceData[v] = null;
+            voicePending[v] = true;
+            start(v);
+        }
+    }
+
+    /**
+     * Start a pending voice if its sample is decoded, otherwise ask the loader for it again.
+     */
+    private void start(int v) {
+        SoundFontBank.Zone zone = voiceZone[v];
+        short[] data = bank.getDecoded(zone);
+        if (data == null) {
+            // Asked for already unless it was evicted in between, then this asks again.
+            bank.request(zone);
+            return;
+        }
+
+        voicePending[v] = false;
+        voiceData[v] = data;
+        voicePosition[v] = zone.start;
+        voiceEnd[v] = Math.min(zone.end, data.length);
+        voiceLoopStart[v] = zone.loopStart;
+        voiceLoopEnd[v] = Math.min(zone.loopEnd, voiceEnd[v]);
+        voiceLoop[v] = zone.loop && voiceLoopEnd[v] - voiceLoopStart[v] > 1;
+        if (voiceEnd[v] - zone.start < 2) {
+            // Nothing to play.
+            voiceData[v] = null;
+        }
+    }
+
+    private boolean isFree(int v) {
+        return voiceData[v] == null && !voicePending[v];
+    }
+
+    @Override
+    public void noteOff(int channel, int key) {
+        for (int v = 0; v < voiceKey.length; v++) {
+            if (!isFree(v) && voiceKey[v] == key && voiceChannel[v] == channel) {
+                voiceReleased[v] = true;
+            }
+        }
+    }
+
+    @Override
+    public void allNotesOff() {
+        for (int v = 0; v < voiceReleased.length; v++) {
+            voiceReleased[v] = true;
+        }
+    }
+
+    /**
+     * A free voice, the quietest released voice or the oldest voice.
+     */
+    private int pickVoice() {
+        int quietestReleased = -1;
+        int oldest = 0;
+        for (int v = 0; v < voiceKey.length; v++) {
+            if (isFree(v)) {
+                return v;
+            }
+            if (voiceReleased[v] && (quietestReleased < 0 || voiceLevel[v] < voiceLevel[quietestReleased])) {
+                quietestReleased = v;
+            }
+            if (voiceStarted[v] < voiceStarted[oldest]) {
+                oldest = v;
+            }
+        }
+        return quietestReleased >= 0 ? quietestReleased : oldest;
+    }
+
+    @Override
+    public void render(float[] mix, int from, int to) {
+        for (int v = 0; v < voiceKey.length; v++) {
+            if (voicePending[v]) {
+                if (voiceReleased[v]) {
+                    // Released before it was heard.
+                    voicePending[v] = false;
+                    continue;
+                }
+                start(v);
+            }
+            short[] data = voiceData[v];
+            if (data == null) continue;
+
+            float level = voiceLevel[v];
+            boolean attacking = voiceAttacking[v];
+            boolean released = voiceReleased[v];
+            float gain = voiceGain[v];
+            float release = voiceRelease[v];
+            double position = voicePosition[v];
+            double increment = voiceIncrement[v];
+            int end = voiceEnd[v];
+            boolean loop = voiceLoop[v];
+            int loopStart = voiceLoopStart[v];
+            int loopEnd = voiceLoopEnd[v];
+            boolean finished = false;
+
+            for (int i = from; i < to; i++) {
+                if (released) {
+                    level *= release;
+                } else if (attacking) {
+                    level = Math.min(1f, level + attackStep);
+                    attacking = level < 1f;
+                }
+
+                int index = (int) position;
+                float fraction = (float) (position - index);
+                float a = data[index] * SAMPLE_SCALE;
+                // A looping voice goes from the last frame of the loop back to its start, not on past loopEnd.
+                int next = loop
+                        ? (index + 1 < loopEnd ? data[index + 1] : data[loopStart])
+                        : (index + 1 < end ? data[index + 1] : 0);
+                float b = next * SAMPLE_SCALE;
+                mix[i] += (a + (b - a) * fraction) * level * gain;
+
+                position += increment;
+                if (loop) {
+                    while (position >= loopEnd) position -= loopEnd - loopStart;
+                } else if (position >= end - 1) {
+                    finished = true;
+                    break;
+                }
+            }
+
+            if (finished || (released && level < SILENT)) {
+                voiceData[v] = null;
+                level = 0;
+            }
+            voiceLevel[v] = level;
+            voiceAttacking[v] = attacking;
+            voicePosition[v] = position;
+        }
+    }
+}
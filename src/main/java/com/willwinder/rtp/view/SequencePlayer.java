@@ -0,0 +1,199 @@
+package com.willwinder.rtp.view;
+
+import com.willwinder.rtp.model.TempoMap;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Plays a song with a javax Sequencer into the NoiseMaker, for listen mode. The sequencer is the song's clock: the
+ * controller reads the song position back from it instead of counting frame deltas, so the notes drawn are the
+ * notes being played no matter how long the piece is.
+ *
+ * The timeline plays songs at the BPM setting, so the sequencer plays a copy of the song with the tempo events
+ * replaced by the BPM it was loaded at. Changing the BPM afterwards only changes the tempo factor. Positions are
+ * exchanged in ticks and converted with the TempoMap, so they are timeline milliseconds at the current BPM and the
+ * song moves one millisecond per real millisecond whatever the tempo.
+ */
+public class SequencePlayer {
+    private static final int META_TEMPO = 0x51;
+
+    private final NoiseMaker.Input input;
+    private final TempoMap tempo;
+    private Sequencer sequencer = null;
+    private int loadedBpm = 0;
+    private double tempoFactor = 1.0;
+    // Sequencer microseconds per tick, at the loaded BPM.
+    private double loadedMicrosPerTick = 0;
+
+    // The sequencer only moves a tick at a time, getSongMs interpolates between ticks with the clock.
+    private long lastPositionMicros = -1;
+    private long lastPositionNanos = 0;
+
+    public SequencePlayer(NoiseMaker noiseMaker, TempoMap tempo) {
+        this.input = noiseMaker.newInput("sequencer");
+        this.tempo = tempo;
+    }
+
+    /**
+     * Load a song, stopping anything which was playing.
+     * @param bpm the current tempo.
+     */
+    public synchronized void load(Sequence song, int bpm) {
+        try {
+            if (sequencer == null) {
+                sequencer = MidiSystem.getSequencer(false);
+                sequencer.getTransmitter().setReceiver(new NoteReceiver());
+                sequencer.open();
+            }
+            sequencer.stop();
+            sequencer.setSequence(withTempo(song, bpm));
+            tempoFactor = 1.0;
+            sequencer.setTempoFactor((float) tempoFactor);
+            loadedBpm = bpm;
+            double ppqn = song.getDivisionType() == Sequence.PPQ ? song.getResolution() : song.getDivisionType();
+            loadedMicrosPerTick = 60_000_000.0 / bpm / ppqn;
+            lastPositionMicros = -1;
+        } catch (MidiUnavailableException | InvalidMidiDataException e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * @return false if there is no sequencer or nothing has been loaded.
+     */
+    public synchronized boolean isLoaded() {
+        return sequencer != null && sequencer.getSequence() != null;
+    }
+
+    /**
+     * Play at a different BPM than the song was loaded with, without moving the song position.
+     */
+    public synchronized void setBpm(int bpm) {
+        if (loadedBpm == 0) return;
+        tempoFactor = (double) bpm / loadedBpm;
+        if (sequencer != null) {
+            sequencer.setTempoFactor((float) tempoFactor);
+        }
+    }
+
+    /**
+     * Start or resume playing from a song position.
+     */
+    public synchronized void start(double songMs) {
+        if (!isLoaded()) return;
+        sequencer.stop();
+        sequencer.setMicrosecondPosition((long) (tempo.toTicks(Math.max(0, songMs)) * loadedMicrosPerTick));
+        lastPositionMicros = -1;
+        sequencer.start();
+    }
+
+    /**
+     * Stop playing, sounding notes are released.
+     */
+    public synchronized void stop() {
+        if (sequencer != null && sequencer.isRunning()) {
+            sequencer.stop();
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return sequencer != null && sequencer.isRunning();
+    }
+
+    /**
+     * @return true once the sequencer has played to the end of the song.
+     */
+    public synchronized boolean isFinished() {
+        return isLoaded() && !sequencer.isRunning() && sequencer.getTickPosition() >= sequencer.getTickLength();
+    }
+
+    /**
+     * @param nowNanos application clock time of the frame being drawn.
+     * @return the song position in timeline milliseconds.
+     */
+    public synchronized double getSongMs(long nowNanos) {
+        if (!isLoaded()) return 0;
+        long micros = sequencer.getMicrosecondPosition();
+        double songMs = tempo.toMs(micros / loadedMicrosPerTick);
+        if (!sequencer.isRunning()) {
+            lastPositionMicros = -1;
+            return songMs;
+        }
+        if (micros != lastPositionMicros) {
+            lastPositionMicros = micros;
+            lastPositionNanos = nowNanos;
+        }
+        // Never run more than a tick ahead, the next tick moves the position anyway.
+        double sinceTickMs = (nowNanos - lastPositionNanos) / 1e6;
+        return songMs + Math.min(sinceTickMs, tempo.getMsPerTick());
+    }
+
+    public synchronized void close() {
+        if (sequencer != null) {
+            sequencer.close();
+            sequencer = null;
+        }
+        loadedBpm = 0;
+    }
+
+    /**
+     * Copy a song with its tempo events replaced by one fixed tempo.
+     */
+    private static Sequence withTempo(Sequence song, int bpm) throws InvalidMidiDataException {
+        Sequence copy = new Sequence(song.getDivisionType(), song.getResolution());
+        for (Track track : song.getTracks()) {
+            Track t = copy.createTrack();
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent event = track.get(i);
+                MidiMessage m = event.getMessage();
+                if (m instanceof MetaMessage && ((MetaMessage) m).getType() == META_TEMPO) continue;
+                t.add(event);
+            }
+        }
+
+        int microsPerQuarter = (int) Math.round(60_000_000.0 / bpm);
+        byte[] data = {(byte) (microsPerQuarter >> 16), (byte) (microsPerQuarter >> 8), (byte) microsPerQuarter};
+        if (copy.getTracks().length == 0) {
+            copy.createTrack();
+        }
+        copy.getTracks()[0].add(new MidiEvent(new MetaMessage(META_TEMPO, data, data.length), 0));
+        return copy;
+    }
+
+    /**
+     * Forwards the song's notes to the synth. Synchronized because stopping can release notes from the caller's
+     * thread, while the input only supports one producer at a time.
+     */
+    private class NoteReceiver implements Receiver {
+        @Override
+        public synchronized void send(MidiMessage message, long timeStamp) {
+            if (!(message instanceof ShortMessage)) return;
+            ShortMessage m = (ShortMessage) message;
+            switch (m.getCommand()) {
+                case ShortMessage.NOTE_ON:
+                    input.noteOn(m.getChannel(), m.getData1(), m.getData2(), 0);
+                    break;
+                case ShortMessage.NOTE_OFF:
+                    input.noteOff(m.getChannel(), m.getData1(), m.getData2(), 0);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
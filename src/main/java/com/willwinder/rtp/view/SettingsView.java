@@ -8,15 +8,24 @@ import com.dlsc.formsfx.view.renderer.FormRenderer;
 
 import com.willwinder.rtp.model.params.*;
 import com.willwinder.rtp.util.BorderToolBar;
+import com.willwinder.rtp.util.StressGenerator;
+import com.willwinder.rtp.util.StressPattern;
 
+import javafx.application.Platform;
 import javafx.beans.property.SimpleListProperty;
 import javafx.collections.FXCollections;
 import javafx.scene.Scene;
+import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.layout.VBox;
+import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
 import java.util.Arrays;
 
 import static com.willwinder.rtp.Constants.DEFAULT_WIDTH;
@@ -38,6 +47,9 @@ public class SettingsView extends Stage {
         Button save = new Button("Save");
         Button reset = new Button("Reset");
         Button close = new Button("Close");
+        Button dumpLatency = new Button("Dump Latency");
+        Button stressTest = new Button("Stress Test");
+        Button calibrate = new Button("Calibrate");
 
         save.disableProperty().bind(form.persistableProperty().not());
         reset.disableProperty().bind(form.persistableProperty().not());
@@ -48,9 +60,92 @@ public class SettingsView extends Stage {
             form.reset();
             close();
         });
+        dumpLatency.setOnAction(e -> {
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setTitle("Save Latency Histograms");
+            fileChooser.setInitialFileName("latency.hgrm");
+            File f = fileChooser.showSaveDialog(this);
+            if (f != null) {
+                try {
+                    params.pipelineLatency.dump(f.toPath(), params.noteEventDispatcher,
+                            params.audioParams.noiseMaker.getBackendStatus());
+                } catch (IOException ioException) {
+                    ioException.printStackTrace();
+                }
+            }
+        });
+
+        stressTest.setOnAction(e -> {
+            // Use the values in the form even if they haven't been saved.
+            form.persist();
+            stressTest.setDisable(true);
+            StressParams stressParams = params.stressParams;
+            StressGenerator generator = new StressGenerator(params.midiInputs, params.noteEventDispatcher, params.pipelineLatency);
+            StressPattern pattern = stressParams.pattern.get();
+            int rate = stressParams.rate.get();
+            Duration duration = Duration.ofSeconds(stressParams.durationSeconds.get());
+
+            Thread t = new Thread(() -> {
+                String result;
+                try {
+                    result = generator.run(pattern, rate, duration, System.nanoTime()).toString();
+                } catch (InvalidMidiDataException ex) {
+                    result = ex.getMessage();
+                }
+                System.out.println(result);
+                String message = result;
+                Platform.runLater(() -> {
+                    stressTest.setDisable(false);
+                    Alert alert = new Alert(Alert.AlertType.INFORMATION, message);
+                    alert.setHeaderText("Stress Test");
+                    alert.initOwner(this);
+                    alert.show();
+                });
+            }, "StressGenerator");
+            t.setDaemon(true);
+            t.start();
+        });
+
+        calibrate.setOnAction(e -> {
+            form.persist();
+            calibrate.setDisable(true);
+            CalibrationParams calibrationParams = params.calibrationParams;
+            String loopback = calibrationParams.loopbackFile.get();
+            File loopbackFile = loopback.isEmpty() ? null : new File(loopback);
+
+            Thread t = new Thread(() -> {
+                LatencyCalibration.Result result = null;
+                String message;
+                try {
+                    result = calibrationParams.calibration.run(loopbackFile);
+                    message = result.toString();
+                } catch (Exception ex) {
+                    message = "Calibration failed: " + ex.getMessage();
+                }
+                System.out.println(message);
+                LatencyCalibration.Result measured = result;
+                String text = message;
+                Platform.runLater(() -> {
+                    if (measured != null) {
+                        calibrationParams.audioLatencyMs.set((int) measured.audioMs);
+                        calibrationParams.videoLatencyMs.set((int) measured.videoMs);
+                    }
+                    calibrate.setDisable(false);
+                    Alert alert = new Alert(Alert.AlertType.INFORMATION, text);
+                    alert.setHeaderText("Latency Calibration");
+                    alert.initOwner(this);
+                    alert.show();
+                });
+            }, "LatencyCalibration");
+            t.setDaemon(true);
+            t.start();
+        });
 
         toolbar.addLeft(close);
         toolbar.addCenter(reset);
+        toolbar.addCenter(dumpLatency);
+        toolbar.addCenter(stressTest);
+        toolbar.addCenter(calibrate);
         toolbar.addRight(save);
 
         var formView = new FormRenderer(form);
@@ -69,10 +164,19 @@ public class SettingsView extends Stage {
         BPMParams bpmParams = allParams.bpmParams;
         TimelineParams timelineParams = allParams.timelineParams;
         AnimationParams animationParams = allParams.animationParams;
+        RoutingParams routingParams = allParams.routingParams;
+        StressParams stressParams = allParams.stressParams;
+        MidiOutParams midiOutParams = allParams.midiOutParams;
+        CalibrationParams calibrationParams = allParams.calibrationParams;
         return Form.of(
             Section.of(
                     Field.ofSingleSelectionType(ControllerParams.modeOptionsListProperty, allParams.controllerParams.mode)
-                    .label("Play mode.")
+                    .label("Play mode."),
+                    Field.ofSingleSelectionType(AudioParams.modeOptionsListProperty, allParams.audioParams.mode)
+                    .label("Audio engine."),
+                    Field.ofBooleanType(allParams.controllerParams.clockSlave)
+                    .label("External clock.")
+                    .labelDescription("Playback follows MIDI clock, start, stop and song position from a keyboard or sequencer.")
             ).title("Settings"),
             Section.of(
                     Field.ofBooleanType(animationParams.showKeyboard)
@@ -80,7 +184,11 @@ public class SettingsView extends Stage {
                     Field.ofBooleanType(animationParams.showTimeline)
                             .label("Timeline"),
                     Field.ofBooleanType(animationParams.showStaff)
-                            .label("Staff")
+                            .label("Staff"),
+                    Field.ofBooleanType(animationParams.showLatency)
+                            .label("Latency Overlay"),
+                    Field.ofBooleanType(animationParams.showMinimap)
+                            .label("Song Minimap")
             ).title("UI Components").collapse(true),
             Section.of(
                 Field.ofIntegerType(keyPointCacheParams.firstKey)
@@ -117,7 +225,101 @@ public class SettingsView extends Stage {
                     .label("Timeline Duration Milliseconds"),
                 Field.ofBooleanType(timelineParams.out)
                     .label("Outgoing (realtime)")
-            ).title("Timeline").collapse(true)
+            ).title("Timeline").collapse(true),
+            Section.of(
+                Field.ofIntegerType(routingParams.transpose)
+                    .label("Transpose")
+                    .labelDescription("Semitones added to each key, only the upper zone when split.")
+                    .validate(IntegerRangeValidator.between(-48, 48, "Must be between -48 and 48")),
+                Field.ofIntegerType(routingParams.splitKey)
+                    .label("Split Key")
+                    .labelDescription("First key of the upper zone in MIDI key code, 0 for no split.")
+                    .validate(IntegerRangeValidator.between(0, 127, "Must be between 0-127")),
+                Field.ofIntegerType(routingParams.lowerTranspose)
+                    .label("Lower Transpose")
+                    .labelDescription("Semitones added to keys below the split.")
+                    .validate(IntegerRangeValidator.between(-48, 48, "Must be between -48 and 48")),
+                Field.ofIntegerType(routingParams.lowerTrack)
+                    .label("Lower Track")
+                    .labelDescription("Track for keys below the split, 0 to keep the keyboard's track.")
+                    .validate(IntegerRangeValidator.between(0, 255, "Must be between 0-255")),
+                Field.ofIntegerType(routingParams.layerInterval)
+                    .label("Layer Interval")
+                    .labelDescription("Semitones for a layered copy of each note, 0 for no layer.")
+                    .validate(IntegerRangeValidator.between(-48, 48, "Must be between -48 and 48")),
+                Field.ofBooleanType(routingParams.dropActiveSensing)
+                    .label("Drop Active Sensing"),
+                Field.ofBooleanType(routingParams.dropPolyPressure)
+                    .label("Drop Poly Pressure")
+            ).title("MIDI Routing").collapse(true),
+            Section.of(
+                Field.ofIntegerType(allParams.audioParams.sampleRate)
+                    .label("Sample Rate")
+                    .labelDescription("Voice pool engine sample rate.")
+                    .validate(IntegerRangeValidator.between(8000, 192000, "Must be between 8000 and 192000")),
+                Field.ofIntegerType(allParams.audioParams.bufferFrames)
+                    .label("Buffer Frames")
+                    .labelDescription("Voice pool engine block size, smaller is lower latency until the audio starts to crackle.")
+                    .validate(IntegerRangeValidator.between(16, 8192, "Must be between 16 and 8192")),
+                Field.ofIntegerType(allParams.audioParams.voices)
+                    .label("Voices")
+                    .labelDescription("Voice pool engine polyphony.")
+                    .validate(IntegerRangeValidator.between(1, 256, "Must be between 1 and 256")),
+                Field.ofStringType(allParams.audioParams.soundFont)
+                    .label("SoundFont")
+                    .labelDescription("SF2 file for the SoundFont engine, it is memory-mapped and samples are loaded as they are played."),
+                Field.ofIntegerType(allParams.audioParams.soundFontCacheMb)
+                    .label("SoundFont Cache MB")
+                    .labelDescription("Most decoded samples to keep in memory, the least recently played are dropped first.")
+                    .validate(IntegerRangeValidator.between(1, 16384, "Must be between 1 and 16384"))
+            ).title("Audio").collapse(true),
+            Section.of(
+                Field.ofIntegerType(calibrationParams.audioLatencyMs)
+                    .label("Audio Latency Milliseconds")
+                    .labelDescription("Time until a note is heard. MIDI output and metronome clicks are sent this much early. The built-in synth plays notes as they come, so in listen mode and while playing the timeline is held back instead.")
+                    .validate(IntegerRangeValidator.between(0, 1000, "Must be between 0-1000")),
+                Field.ofIntegerType(calibrationParams.videoLatencyMs)
+                    .label("Video Latency Milliseconds")
+                    .labelDescription("Time until a frame is shown, the timeline is drawn this much ahead.")
+                    .validate(IntegerRangeValidator.between(0, 1000, "Must be between 0-1000")),
+                Field.ofStringType(calibrationParams.loopbackFile)
+                    .label("Loopback Recording")
+                    .labelDescription("WAV recording of the calibration clicks, empty to use the synthesizer's own measurement.")
+            ).title("Latency Calibration").collapse(true),
+            Section.of(
+                Field.ofBooleanType(allParams.metronomeParams.enabled)
+                    .label("Enabled"),
+                Field.ofIntegerType(allParams.metronomeParams.subdivision)
+                    .label("Subdivision")
+                    .labelDescription("Clicks per beat.")
+                    .validate(IntegerRangeValidator.between(1, 8, "Must be between 1 and 8")),
+                Field.ofStringType(allParams.metronomeParams.accents)
+                    .label("Accents")
+                    .labelDescription("One character per beat of the bar: X accented, x normal, . silent. Empty accents the first beat."),
+                Field.ofIntegerType(allParams.metronomeParams.volume)
+                    .label("Volume")
+                    .validate(IntegerRangeValidator.between(0, 100, "Must be between 0-100"))
+            ).title("Metronome").collapse(true),
+            Section.of(
+                Field.ofSingleSelectionType(midiOutParams.deviceOptionsListProperty, midiOutParams.device)
+                    .label("Device")
+                    .labelDescription("Plays the song on an external sound module."),
+                Field.ofIntegerType(midiOutParams.lookaheadMs)
+                    .label("Lookahead Milliseconds")
+                    .labelDescription("How early notes are sent with a timestamp, 0 for devices which ignore timestamps.")
+                    .validate(IntegerRangeValidator.between(0, 1000, "Must be between 0-1000"))
+            ).title("MIDI Out").collapse(true),
+            Section.of(
+                Field.ofSingleSelectionType(StressParams.patternOptionsListProperty, stressParams.pattern)
+                    .label("Pattern"),
+                Field.ofIntegerType(stressParams.rate)
+                    .label("Rate")
+                    .labelDescription("MIDI messages per second.")
+                    .validate(IntegerRangeValidator.between(1, 1_000_000, "Must be between 1 and 1000000")),
+                Field.ofIntegerType(stressParams.durationSeconds)
+                    .label("Duration Seconds")
+                    .validate(IntegerRangeValidator.between(1, 86400, "Must be between 1 and 86400"))
+            ).title("Stress Test").collapse(true)
         );
     }
 }
@@ -0,0 +1,243 @@
+package com.willwinder.rtp.view;
+
+import com.willwinder.rtp.util.Util;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Renders a song to a WAV file faster than real time, for practice backing tracks.
+ *
+ * The notes are split into partitions by key, each with its own VoicePool, so a key's voice state never crosses
+ * partitions. The song is rendered one chunk at a time: every partition renders the chunk in parallel, then the
+ * partitions are mixed and streamed straight into the file. Memory is a chunk per partition no matter how long the
+ * song is.
+ *
+ * Like the timeline, the song is played at a fixed BPM and tempo changes in the file are ignored.
+ */
+public class SongRenderer {
+    private static final int CHUNK_FRAMES = 8192;
+    // Lets the last notes ring out.
+    private static final double TAIL_SECONDS = 2.0;
+
+    private final int sampleRate;
+    private final int voices;
+    private final int threads;
+
+    /**
+     * @param sampleRate frames per second of the file.
+     * @param voices     polyphony of each partition.
+     * @param threads    number of partitions rendered in parallel.
+     */
+    public SongRenderer(int sampleRate, int voices, int threads) {
+        this.sampleRate = sampleRate;
+        this.voices = voices;
+        this.threads = threads;
+    }
+
+    /**
+     * Note ons and offs of one partition as parallel arrays, sorted by frame.
+     */
+    private class Partition implements Callable<Void> {
+        final long[] frames;
+        final int[] notes;
+        final VoicePool pool = new VoicePool(sampleRate, voices);
+        final float[] mix = new float[CHUNK_FRAMES];
+        int idx = 0;
+        long chunkStart = 0;
+        int chunkLength = 0;
+
+        Partition(List<long[]> events) {
+            frames = new long[events.size()];
+            notes = new int[events.size()];
+            for (int i = 0; i < events.size(); i++) {
+                frames[i] = events.get(i)[0];
+                notes[i] = (int) events.get(i)[1];
+            }
+        }
+
+        /**
+         * Render [chunkStart, chunkStart + chunkLength) into mix, applying each note at its exact frame.
+         */
+        @Override
+        public Void call() {
+            Arrays.fill(mix, 0f);
+            long chunkEnd = chunkStart + chunkLength;
+            int rendered = 0;
+            while (idx < frames.length && frames[idx] < chunkEnd) {
+                int at = (int) Math.max(0, frames[idx] - chunkStart);
+                pool.render(mix, rendered, at);
+                rendered = at;
+
+                int note = notes[idx++];
+                int channel = (note >>> 16) & 0x0F;
+                int key = (note >>> 8) & 0x7F;
+                if (Util.decodedKey(note).isActive()) {
+                    pool.noteOn(channel, key, Util.decodedVelocity(note));
+                } else {
+                    pool.noteOff(channel, key);
+                }
+            }
+            pool.render(mix, rendered, chunkLength);
+            return null;
+        }
+    }
+
+    /**
+     * Render the song, blocking until the file is written. Cancelling deletes the partial file.
+     * @param bpm      tempo to play at.
+     * @param progress receives the fraction rendered after each chunk.
+     * @param cancelled checked after each chunk.
+     * @throws InterruptedIOException if cancelled.
+     */
+    public void render(Sequence sequence, int bpm, File file, DoubleConsumer progress, BooleanSupplier cancelled)
+            throws IOException {
+        List<List<long[]>> events = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            events.add(new ArrayList<>());
+        }
+
+        double ppqn = sequence.getDivisionType() == Sequence.PPQ ? sequence.getResolution() : sequence.getDivisionType();
+        double framesPerTick = 60.0 / bpm / ppqn * sampleRate;
+        long lastFrame = 0;
+        for (Track track : sequence.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent midiEvent = track.get(i);
+                int note = Util.decodeNote(midiEvent.getMessage());
+                if (note == Util.NOT_A_NOTE) continue;
+
+                long frame = Math.round(midiEvent.getTick() * framesPerTick);
+                int key = (note >>> 8) & 0x7F;
+                events.get(key % threads).add(new long[]{frame, note});
+                lastFrame = Math.max(lastFrame, frame);
+            }
+        }
+
+        Partition[] partitions = new Partition[threads];
+        for (int i = 0; i < threads; i++) {
+            // Stable, so a note off and a note on at the same frame keep their file order.
+            events.get(i).sort(Comparator.comparingLong(e -> e[0]));
+            partitions[i] = new Partition(events.get(i));
+        }
+
+        long totalFrames = lastFrame + (long) (TAIL_SECONDS * sampleRate);
+        AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "SongRenderer");
+            t.setDaemon(true);
+            return t;
+        });
+
+        try {
+            MixStream stream = new MixStream(partitions, executor, totalFrames, progress, cancelled);
+            AudioSystem.write(new AudioInputStream(stream, format, totalFrames), AudioFileFormat.Type.WAVE, file);
+        } catch (IOException e) {
+            Files.deleteIfExists(file.toPath());
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * PCM of the mixed partitions, each chunk is rendered when the file writer asks for it.
+     */
+    private static class MixStream extends InputStream {
+        private final Partition[] partitions;
+        private final List<Callable<Void>> tasks;
+        private final ExecutorService executor;
+        private final long totalFrames;
+        private final DoubleConsumer progress;
+        private final BooleanSupplier cancelled;
+
+        private final float[] mix = new float[CHUNK_FRAMES];
+        private final byte[] pcm = new byte[CHUNK_FRAMES * 2];
+        private long nextFrame = 0;
+        private int pos = 0;
+        private int length = 0;
+
+        MixStream(Partition[] partitions, ExecutorService executor, long totalFrames,
+                  DoubleConsumer progress, BooleanSupplier cancelled) {
+            this.partitions = partitions;
+            this.tasks = new ArrayList<>(Arrays.asList(partitions));
+            this.executor = executor;
+            this.totalFrames = totalFrames;
+            this.progress = progress;
+            this.cancelled = cancelled;
+        }
+
+        private boolean fill() throws IOException {
+            if (nextFrame >= totalFrames) return false;
+            if (cancelled.getAsBoolean()) {
+                throw new InterruptedIOException("Render cancelled.");
+            }
+
+            int frames = (int) Math.min(CHUNK_FRAMES, totalFrames - nextFrame);
+            for (Partition p : partitions) {
+                p.chunkStart = nextFrame;
+                p.chunkLength = frames;
+            }
+            try {
+                for (Future<Void> f : executor.invokeAll(tasks)) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Render interrupted.");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+
+            Arrays.fill(mix, 0, frames, 0f);
+            for (Partition p : partitions) {
+                for (int i = 0; i < frames; i++) {
+                    mix[i] += p.mix[i];
+                }
+            }
+            VoicePool.toPcm16(mix, frames, pcm);
+
+            nextFrame += frames;
+            pos = 0;
+            length = frames * 2;
+            progress.accept((double) nextFrame / totalFrames);
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == length && !fill()) return -1;
+            return pcm[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos == length && !fill()) return -1;
+            int n = Math.min(len, length - pos);
+            System.arraycopy(pcm, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
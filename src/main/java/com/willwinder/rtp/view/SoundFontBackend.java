@@ -0,0 +1,105 @@
+package com.willwinder.rtp.view;
+
+import com.willwinder.rtp.util.LatencyHistogram;
+import com.willwinder.rtp.util.SoundFontBank;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Plays the piano preset of a user supplied SF2 file through a VoicePoolBackend. The file is memory-mapped and
+ * samples are decoded on first use by the bank's loader thread, see SoundFontBank.
+ */
+public class SoundFontBackend implements AudioBackend {
+    public static class Config {
+        public final Path file;
+        public final long cacheBytes;
+
+        /**
+         * @param file       the SF2 file.
+         * @param cacheBytes most decoded sample data to keep on the heap.
+         */
+        public Config(Path file, long cacheBytes) {
+            this.file = file;
+            this.cacheBytes = cacheBytes;
+        }
+    }
+
+    // General MIDI acoustic grand piano.
+    private static final int BANK = 0;
+    private static final int PROGRAM = 0;
+
+    private final Config config;
+    private final VoicePoolBackend.Config voiceConfig;
+    private final LatencyHistogram outputLatency;
+    private final LatencyHistogram sampleLoad;
+    private final MixSource mixSource;
+    private SoundFontBank bank;
+    private VoicePoolBackend output;
+
+    /**
+     * @param mixSource added to the voice pool's blocks, or null.
+     */
+    public SoundFontBackend(Config config, VoicePoolBackend.Config voiceConfig, LatencyHistogram outputLatency,
+                            LatencyHistogram sampleLoad, MixSource mixSource) {
+        this.config = config;
+        this.voiceConfig = voiceConfig;
+        this.outputLatency = outputLatency;
+        this.sampleLoad = sampleLoad;
+        this.mixSource = mixSource;
+    }
+
+    @Override
+    public void open() throws Exception {
+        bank = SoundFontBank.open(config.file, BANK, PROGRAM, config.cacheBytes, sampleLoad);
+        output = new VoicePoolBackend(voiceConfig, outputLatency, new SamplePool(bank, voiceConfig.sampleRate, voiceConfig.voices), mixSource);
+        output.open();
+    }
+
+    @Override
+    public void noteOn(int channel, int key, int velocity) {
+        if (output == null) return;
+        // Start decoding on this thread's way in, while the note waits for the next block.
+        if (velocity > 0) bank.prefetch(key, velocity);
+        output.noteOn(channel, key, velocity);
+    }
+
+    @Override
+    public void noteOff(int channel, int key, int velocity) {
+        if (output != null) output.noteOff(channel, key, velocity);
+    }
+
+    @Override
+    public void allNotesOff() {
+        if (output != null) output.allNotesOff();
+    }
+
+    @Override
+    public void close() {
+        if (output != null) {
+            output.close();
+        }
+        if (bank != null) {
+            try {
+                bank.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        output = null;
+        bank = null;
+    }
+
+    @Override
+    public long getLatencyMicros() {
+        return output == null ? -1 : output.getLatencyMicros();
+    }
+
+    /**
+     * @return load time, resident size, first sample decode time and cache statistics of the bank.
+     */
+    @Override
+    public String toString() {
+        return bank == null ? "SoundFont not loaded: " + config.file : bank.toString();
+    }
+}
@@ -0,0 +1,23 @@
+package com.willwinder.rtp.view;
+
+/**
+ * A synthesizer which renders into a float buffer, driven by VoicePoolBackend or SongRenderer. Engines are not thread
+ * safe, every call is made from the thread which renders.
+ */
+public interface VoiceEngine {
+    /**
+     * Start a note, a velocity of 0 releases it.
+     */
+    void noteOn(int channel, int key, int velocity);
+
+    void noteOff(int channel, int key);
+
+    void allNotesOff();
+
+    /**
+     * Add the next frames of every voice to mix.
+     * @param from first frame of mix to render.
+     * @param to   frame after the last one to render.
+     */
+    void render(float[] mix, int from, int to);
+}
@@ -0,0 +1,194 @@
+package com.willwinder.rtp.view;
+
+/**
+ * A small piano-like synthesizer: a fixed pool of additive voices with a fast attack, a per-key exponential decay
+ * and a short release. Everything is preallocated as parallel arrays, so notes and rendering never allocate.
+ *
+ * Not thread safe, a pool belongs to whichever thread renders it. When every voice is busy the quietest releasing
+ * voice is stolen, or failing that the oldest one.
+ */
+public class VoicePool implements VoiceEngine {
+    private static final int TABLE_SIZE = 4096;
+    private static final float[] SINE = new float[TABLE_SIZE];
+    static {
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            SINE[i] = (float) Math.sin(2 * Math.PI * i / TABLE_SIZE);
+        }
+    }
+    // Relative level of the first harmonics.
+    private static final float[] PARTIALS = {1.0f, 0.45f, 0.25f, 0.12f};
+    private static final double ATTACK_SECONDS = 0.002;
+    private static final double RELEASE_SECONDS = 0.12;
+    private static final float SILENT = 1e-4f;
+    private static final float MASTER_GAIN = 0.25f;
+
+    public final int sampleRate;
+
+    private final int[] voiceKey;
+    private final int[] voiceChannel;
+    private final long[] voiceStarted;
+    private final boolean[] voiceReleased;
+    private final float[] voiceLevel;
+    private final float[] voiceGain;
+    private final boolean[] voiceAttacking;
+    private final float[] voiceDecay;
+    private final double[] voicePhase;
+    private final double[] voiceIncrement;
+    private long noteCounter = 0;
+
+    private final double[] keyIncrement = new double[128];
+    private final float[] keyDecay = new float[128];
+    private final float attackStep;
+    private final float releaseCoefficient;
+
+    /**
+     * @param sampleRate frames per second.
+     * @param voices     polyphony.
+     */
+    public VoicePool(int sampleRate, int voices) {
+        this.sampleRate = sampleRate;
+
+        voiceKey = new int[voices];
+        voiceChannel = new int[voices];
+        voiceStarted = new long[voices];
+        voiceReleased = new boolean[voices];
+        voiceLevel = new float[voices];
+        voiceGain = new float[voices];
+        voiceAttacking = new boolean[voices];
+        voiceDecay = new float[voices];
+        voicePhase = new double[voices];
+        voiceIncrement = new double[voices];
+
+        for (int key = 0; key < 128; key++) {
+            double frequency = 440.0 * Math.pow(2, (key - 69) / 12.0);
+            keyIncrement[key] = frequency * TABLE_SIZE / sampleRate;
+            // Low notes ring for ~8 seconds, high notes for under one.
+            double decaySeconds = 8.0 * Math.pow(0.5, (key - 21) / 24.0);
+            keyDecay[key] = (float) Math.exp(Math.log(SILENT) / (decaySeconds * sampleRate));
+        }
+        attackStep = (float) (1.0 / (ATTACK_SECONDS * sampleRate));
+        releaseCoefficient = (float) Math.exp(Math.log(SILENT) / (RELEASE_SECONDS * sampleRate));
+    }
+
+    @Override
+    public void noteOn(int channel, int key, int velocity) {
+        if (velocity == 0) {
+            noteOff(channel, key);
+            return;
+        }
+
+        int v = pickVoice(channel, key);
+        float v01 = velocity / 127f;
+        voiceKey[v] = key;
+        voiceChannel[v] = channel;
+        voiceStarted[v] = ++noteCounter;
+        voiceReleased[v] = false;
+        voiceGain[v] = v01 * v01 * MASTER_GAIN;
+        // Ramps up from the current level so a stolen or retriggered voice doesn't click.
+        voiceAttacking[v] = true;
+        voiceDecay[v] = keyDecay[key];
+        voiceIncrement[v] = keyIncrement[key];
+    }
+
+    @Override
+    public void noteOff(int channel, int key) {
+        for (int v = 0; v < voiceKey.length; v++) {
+            if (voiceKey[v] == key && voiceChannel[v] == channel) {
+                voiceReleased[v] = true;
+            }
+        }
+    }
+
+    @Override
+    public void allNotesOff() {
+        for (int v = 0; v < voiceReleased.length; v++) {
+            voiceReleased[v] = true;
+        }
+    }
+
+    /**
+     * @return true if any voice is still making sound.
+     */
+    public boolean isSounding() {
+        for (int v = 0; v < voiceLevel.length; v++) {
+            if (voiceLevel[v] > 0 || voiceAttacking[v]) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The voice already playing this key, a free voice, the quietest released voice or the oldest voice.
+     */
+    private int pickVoice(int channel, int key) {
+        int free = -1;
+        int quietestReleased = -1;
+        int oldest = 0;
+        for (int v = 0; v < voiceKey.length; v++) {
+            boolean active = voiceLevel[v] > 0 || voiceAttacking[v];
+            if (active && voiceKey[v] == key && voiceChannel[v] == channel) {
+                return v;
+            }
+            if (!active) {
+                if (free < 0) free = v;
+            } else if (voiceReleased[v]) {
+                if (quietestReleased < 0 || voiceLevel[v] < voiceLevel[quietestReleased]) quietestReleased = v;
+            }
+            if (voiceStarted[v] < voiceStarted[oldest]) {
+                oldest = v;
+            }
+        }
+        if (free >= 0) return free;
+        if (quietestReleased >= 0) return quietestReleased;
+        return oldest;
+    }
+
+    @Override
+    public void render(float[] mix, int from, int to) {
+        for (int v = 0; v < voiceKey.length; v++) {
+            float level = voiceLevel[v];
+            boolean attacking = voiceAttacking[v];
+            if (level <= 0 && !attacking) continue;
+
+            float gain = voiceGain[v];
+            double phase = voicePhase[v];
+            double increment = voiceIncrement[v];
+            float coefficient = voiceReleased[v] ? releaseCoefficient : voiceDecay[v];
+
+            for (int i = from; i < to; i++) {
+                if (attacking) {
+                    level = Math.min(1f, level + attackStep);
+                    attacking = level < 1f;
+                } else {
+                    level *= coefficient;
+                }
+
+                float sample = 0;
+                for (int p = 0; p < PARTIALS.length; p++) {
+                    sample += SINE[(int) (phase * (p + 1)) & (TABLE_SIZE - 1)] * PARTIALS[p];
+                }
+                mix[i] += sample * level * gain;
+
+                phase += increment;
+                if (phase >= TABLE_SIZE) phase -= TABLE_SIZE;
+            }
+
+            if (level < SILENT && !attacking) {
+                level = 0;
+            }
+            voiceAttacking[v] = attacking;
+            voiceLevel[v] = level;
+            voicePhase[v] = phase;
+        }
+    }
+
+    /**
+     * Convert a mix to 16 bit little endian PCM, clipping anything out of range.
+     */
+    public static void toPcm16(float[] mix, int frames, byte[] out) {
+        for (int i = 0; i < frames; i++) {
+            int sample = (int) (Math.max(-1f, Math.min(1f, mix[i])) * Short.MAX_VALUE);
+            out[2 * i] = (byte) sample;
+            out[2 * i + 1] = (byte) (sample >> 8);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.willwinder.rtp.view;
+
+import com.willwinder.rtp.util.LatencyHistogram;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.SourceDataLine;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plays a VoiceEngine, a VoicePool unless another one is given, straight to a SourceDataLine, so the buffer size and sample rate are ours to choose instead of
+ * whatever Gervill picks.
+ *
+ * The pool is owned by the render thread. Note commands reach it through an AudioCommandQueue and are applied at
+ * the start of the next block, so playing a note never allocates or locks.
+ *
+ * Output latency is measured by remembering the frame a note started in and waiting for the line's frame
+ * position to reach it.
+ *
+ * A MixSource, the metronome, can be mixed into every block, on the same frame counter as the voices.
+ */
+public class VoicePoolBackend implements AudioBackend {
+    public static class Config {
+        public final int sampleRate;
+        public final int bufferFrames;
+        public final int voices;
+
+        /**
+         * @param sampleRate   frames per second.
+         * @param bufferFrames frames per block, the line buffers two blocks.
+         * @param voices       polyphony.
+         */
+        public Config(int sampleRate, int bufferFrames, int voices) {
+            this.sampleRate = sampleRate;
+            this.bufferFrames = bufferFrames;
+            this.voices = voices;
+        }
+    }
+
+    private final Config config;
+    private final LatencyHistogram outputLatency;
+    private final AudioCommandQueue commands = new AudioCommandQueue("voices", 1024);
+    private final AtomicLong underruns = new AtomicLong(0);
+
+    // Render thread only.
+    private final VoiceEngine pool;
+    private final MixSource mixSource;
+
+    private SourceDataLine line;
+    private Thread renderThread;
+    private volatile boolean running = false;
+    private volatile long framesWritten = 0;
+
+    public VoicePoolBackend(Config config, LatencyHistogram outputLatency, MixSource mixSource) {
+        this(config, outputLatency, new VoicePool(config.sampleRate, config.voices), mixSource);
+    }
+
+    /**
+     * @param engine    renders at config.sampleRate.
+     * @param mixSource added to every block, or null.
+     */
+    public VoicePoolBackend(Config config, LatencyHistogram outputLatency, VoiceEngine engine, MixSource mixSource) {
+        this.config = config;
+        this.outputLatency = outputLatency;
+        this.pool = engine;
+        this.mixSource = mixSource;
+    }
+
+    @Override
+    public void open() throws Exception {
+        AudioFormat format = new AudioFormat(config.sampleRate, 16, 1, true, false);
+        line = AudioSystem.getSourceDataLine(format);
+        line.open(format, config.bufferFrames * format.getFrameSize() * 2);
+        line.start();
+        if (mixSource != null) {
+            mixSource.open(config.sampleRate);
+        }
+
+        running = true;
+        renderThread = new Thread(this::renderLoop, "VoicePoolBackend-render");
+        renderThread.setDaemon(true);
+        renderThread.setPriority(Thread.MAX_PRIORITY);
+        renderThread.start();
+    }
+
+    @Override
+    public void noteOn(int channel, int key, int velocity) {
+        commands.offer(AudioCommandQueue.NOTE_ON, channel, key, velocity, 0);
+    }
+
+    @Override
+    public void noteOff(int channel, int key, int velocity) {
+        commands.offer(AudioCommandQueue.NOTE_OFF, channel, key, velocity, 0);
+    }
+
+    @Override
+    public void allNotesOff() {
+        commands.offer(AudioCommandQueue.ALL_NOTES_OFF, 0, 0, 0, 0);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (renderThread != null) {
+            try {
+                renderThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (mixSource != null && line != null) {
+            mixSource.close();
+        }
+        if (line != null) {
+            line.stop();
+            line.close();
+        }
+        line = null;
+        renderThread = null;
+    }
+
+    /**
+     * @return frames buffered in the line right now, as microseconds.
+     */
+    @Override
+    public long getLatencyMicros() {
+        SourceDataLine l = this.line;
+        if (l == null) return -1;
+        return (framesWritten - l.getLongFramePosition()) * 1_000_000L / config.sampleRate;
+    }
+
+    /**
+     * @return number of blocks which found the line buffer empty.
+     */
+    public long getUnderrunCount() {
+        return underruns.get();
+    }
+
+    private void renderLoop() {
+        AudioCommandQueue.Command command = new AudioCommandQueue.Command();
+        float[] mix = new float[config.bufferFrames];
+        byte[] out = new byte[config.bufferFrames * 2];
+        // Frame and time of a note on waiting to be heard, for the latency measurement.
+        long measureFrame = -1;
+        long measureStart = 0;
+
+        while (running) {
+            while (commands.poll(command)) {
+                apply(command);
+                if (command.type == AudioCommandQueue.NOTE_ON && measureFrame < 0) {
+                    measureFrame = framesWritten;
+                    measureStart = command.enqueueNanos;
+                }
+            }
+
+            Arrays.fill(mix, 0f);
+            pool.render(mix, 0, mix.length);
+            if (mixSource != null) {
+                mixSource.render(mix, mix.length, framesWritten, line.getLongFramePosition());
+            }
+            VoicePool.toPcm16(mix, mix.length, out);
+
+            if (line.available() == line.getBufferSize() && framesWritten > 0) {
+                underruns.incrementAndGet();
+            }
+            line.write(out, 0, out.length);
+            framesWritten += mix.length;
+
+            if (measureFrame >= 0 && line.getLongFramePosition() >= measureFrame) {
+                outputLatency.recordSince(measureStart);
+                measureFrame = -1;
+            }
+        }
+    }
+
+    private void apply(AudioCommandQueue.Command c) {
+        switch (c.type) {
+            case AudioCommandQueue.NOTE_ON:
+                pool.noteOn(c.channel, c.key, c.velocity);
+                break;
+            case AudioCommandQueue.NOTE_OFF:
+                pool.noteOff(c.channel, c.key);
+                break;
+            case AudioCommandQueue.ALL_NOTES_OFF:
+                pool.allNotesOff();
+                break;
+        }
+    }
+}
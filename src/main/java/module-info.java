@@ -1,9 +1,7 @@
 module SomePianoApp {
     requires javafx.controls;
     requires java.desktop;
-
-    // Not modular
-    requires com.google.common;
+    requires java.prefs;
 
     requires org.kordamp.ikonli.fontawesome;
     requires org.kordamp.ikonli.javafx;